@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.benchmarks;
+
+import com.jonnywray.vertx.kairosdb.KairosPersistor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end dispatch of messages through {@link KairosPersistor#handle} to an in process fake KairosDB HTTP server,
+ * measuring the time from sending a message on the event bus to receiving its reply
+ *
+ * @author Jonny Wray
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+    private static final String ADDRESS = "benchmark.kairospersistor";
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Param({"1", "1000", "100000"})
+    public int points;
+
+    private PlatformManager platformManager;
+    private HttpServer server;
+    private EventBus eventBus;
+    private JsonObject addDataPoints;
+    private JsonObject queryMetrics;
+
+    @Setup
+    public void setUp() throws Exception {
+        int port = freePort();
+        platformManager = PlatformLocator.factory.createPlatformManager();
+        final Buffer queryResponse = new Buffer(Payloads.queryResponse(points).encode());
+        final BlockingQueue<Object> ready = new ArrayBlockingQueue<>(1);
+        server = platformManager.vertx().createHttpServer().requestHandler(new Handler<HttpServerRequest>() {
+            @Override
+            public void handle(final HttpServerRequest request) {
+                request.bodyHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(Buffer body) {
+                        if(request.path().endsWith("/datapoints/query")){
+                            request.response().putHeader("Content-Type", "application/json")
+                                .putHeader("Content-Length", Integer.toString(queryResponse.length()))
+                                .end(queryResponse);
+                        }
+                        else{
+                            request.response().setStatusCode(204).end();
+                        }
+                    }
+                });
+            }
+        }).listen(port, "localhost", new Handler<AsyncResult<HttpServer>>() {
+            @Override
+            public void handle(AsyncResult<HttpServer> result) {
+                ready.add(result.succeeded() ? Boolean.TRUE : result.cause());
+            }
+        });
+        check(ready.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), "fake KairosDB server did not start");
+
+        JsonObject config = new JsonObject()
+            .putString("address", ADDRESS)
+            .putString("host", "localhost")
+            .putNumber("port", port);
+        URL classpath = KairosPersistor.class.getProtectionDomain().getCodeSource().getLocation();
+        platformManager.deployVerticle(KairosPersistor.class.getName(), config, new URL[]{classpath}, 1, null,
+                new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle(AsyncResult<String> result) {
+                ready.add(result.succeeded() ? Boolean.TRUE : result.cause());
+            }
+        });
+        check(ready.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), "persistor did not deploy");
+
+        eventBus = platformManager.vertx().eventBus();
+        addDataPoints = new JsonObject()
+            .putString("action", "add_data_points")
+            .putObject("datapoints", Payloads.dataPoints(points));
+        queryMetrics = new JsonObject()
+            .putString("action", "query_metrics")
+            .putObject("query", Payloads.query());
+    }
+
+    @TearDown
+    public void tearDown(){
+        server.close();
+        platformManager.stop();
+    }
+
+    @Benchmark
+    public JsonObject addDataPoints() throws Exception {
+        return sendAndWait(addDataPoints);
+    }
+
+    @Benchmark
+    public JsonObject queryMetrics() throws Exception {
+        return sendAndWait(queryMetrics);
+    }
+
+    private JsonObject sendAndWait(JsonObject command) throws Exception {
+        final BlockingQueue<JsonObject> reply = new ArrayBlockingQueue<>(1);
+        eventBus.send(ADDRESS, command, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Message<JsonObject> message) {
+                reply.add(message.body());
+            }
+        });
+        JsonObject response = reply.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if(response == null || !"ok".equals(response.getString("status"))){
+            throw new IllegalStateException("unexpected reply: " + response);
+        }
+        return response;
+    }
+
+    private static void check(Object result, String failure) throws Exception {
+        if(result != Boolean.TRUE){
+            throw new IllegalStateException(failure, result instanceof Throwable ? (Throwable) result : null);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try(ServerSocket socket = new ServerSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.benchmarks;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Realistic payloads shared by the benchmarks
+ *
+ * @author Jonny Wray
+ */
+public final class Payloads {
+
+    private static final long START = 1388534400000L;
+    private static final long INTERVAL = 10000L;
+
+    private Payloads(){
+    }
+
+    /**
+     * @param points the number of data points
+     * @return an add data points object for a single metric with the given number of points
+     */
+    public static JsonObject dataPoints(int points){
+        return new JsonObject()
+            .putString("name", "benchmark.cpu.load")
+            .putArray("datapoints", values(points))
+            .putObject("tags", new JsonObject()
+                .putString("host", "server1")
+                .putString("data_center", "dc1"));
+    }
+
+    /**
+     * @param points the number of data points
+     * @return a query metrics response with a single series holding the given number of points
+     */
+    public static JsonObject queryResponse(int points){
+        JsonObject series = new JsonObject()
+            .putString("name", "benchmark.cpu.load")
+            .putArray("group_by", new JsonArray().addObject(new JsonObject()
+                .putString("name", "type")
+                .putString("type", "number")))
+            .putObject("tags", new JsonObject()
+                .putArray("host", new JsonArray().addString("server1"))
+                .putArray("data_center", new JsonArray().addString("dc1")))
+            .putArray("values", values(points));
+        return new JsonObject().putArray("queries", new JsonArray().addObject(new JsonObject()
+            .putNumber("sample_size", points)
+            .putArray("results", new JsonArray().addObject(series))));
+    }
+
+    /**
+     * @return a query metrics query object for the benchmark metric
+     */
+    public static JsonObject query(){
+        return new JsonObject()
+            .putNumber("start_absolute", START)
+            .putArray("metrics", new JsonArray().addObject(new JsonObject()
+                .putString("name", "benchmark.cpu.load")
+                .putObject("tags", new JsonObject().putArray("host", new JsonArray().addString("server1")))));
+    }
+
+    private static JsonArray values(int points){
+        JsonArray values = new JsonArray();
+        for(int i=0;i<points;i++){
+            values.addArray(new JsonArray()
+                .addNumber(START + i * INTERVAL)
+                .addNumber(i % 2 == 0 ? i * 0.25 : i));
+        }
+        return values;
+    }
+}
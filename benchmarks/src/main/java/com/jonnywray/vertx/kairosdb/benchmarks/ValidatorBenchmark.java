@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.benchmarks;
+
+import com.jonnywray.vertx.kairosdb.JsonValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of add data points objects
+ *
+ * @author Jonny Wray
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValidatorBenchmark {
+
+    @Param({"1", "1000", "100000"})
+    public int points;
+
+    private JsonObject dataPoints;
+
+    @Setup
+    public void setUp(){
+        dataPoints = Payloads.dataPoints(points);
+    }
+
+    @Benchmark
+    public boolean validateDataPoints(){
+        return new JsonValidator().validateDataPoints(dataPoints);
+    }
+}
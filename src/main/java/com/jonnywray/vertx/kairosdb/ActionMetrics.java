@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters and latency histograms for one action: messages received, replies by status, KairosDB responses by HTTP
+ * status, bytes sent to and received from KairosDB, and the time messages waited to be dispatched, KairosDB took
+ * to respond and responses took to parse. Latencies are recorded in microseconds and reported in milliseconds.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class ActionMetrics {
+
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private final String action;
+
+    private long requests;
+    private final Map<String, Long> replies = new TreeMap<>();
+    private final Map<String, Long> httpStatuses = new TreeMap<>();
+    private long bytesSent;
+    private long bytesReceived;
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+
+    private LatencyHistogram reportedQueueWait = new LatencyHistogram();
+    private LatencyHistogram reportedRoundTrip = new LatencyHistogram();
+    private LatencyHistogram reportedParse = new LatencyHistogram();
+
+    /**
+     * @param action the action name
+     */
+    public ActionMetrics(String action){
+        this.action = action;
+    }
+
+    /**
+     * Record that a message has been received
+     */
+    public void requestReceived(){
+        requests++;
+    }
+
+    /**
+     * Record a reply to a message
+     *
+     * @param status the status of the reply
+     */
+    public void replied(String status){
+        increment(replies, status);
+    }
+
+    /**
+     * Record a response from KairosDB
+     *
+     * @param statusCode the HTTP status code
+     * @param roundTripMicros the time from sending the request to receiving the response, in microseconds
+     */
+    public void responseReceived(int statusCode, long roundTripMicros){
+        increment(httpStatuses, Integer.toString(statusCode));
+        roundTrip.record(roundTripMicros);
+    }
+
+    /**
+     * Record the time a message waited before it was dispatched
+     *
+     * @param micros the wait in microseconds
+     */
+    public void dispatched(long micros){
+        queueWait.record(micros);
+    }
+
+    /**
+     * Record a response body that was parsed
+     *
+     * @param bytes the size of the body
+     * @param micros the time taken to parse it in microseconds
+     */
+    public void parsed(int bytes, long micros){
+        bytesReceived += bytes;
+        parse.record(micros);
+    }
+
+    /**
+     * Record a request body sent to KairosDB
+     *
+     * @param bytes the size of the body as sent
+     */
+    public void sent(int bytes){
+        bytesSent += bytes;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @param status the reply status
+     * @return the number of replies with the status
+     */
+    public long getReplies(String status){
+        Long replyCount = replies.get(status);
+        return replyCount == null ? 0 : replyCount;
+    }
+
+    /**
+     * @return the counters and latency percentiles since start up as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("requests", requests)
+            .putObject("replies", toJson(replies))
+            .putObject("http_statuses", toJson(httpStatuses))
+            .putNumber("bytes_sent", bytesSent)
+            .putNumber("bytes_received", bytesReceived)
+            .putObject("queue_wait", queueWait.toJson(MICROS_PER_MILLI))
+            .putObject("round_trip", roundTrip.toJson(MICROS_PER_MILLI))
+            .putObject("parse", parse.toJson(MICROS_PER_MILLI));
+    }
+
+    /**
+     * Produce KairosDB data points for the counters, and for the latency percentiles of the values recorded since the
+     * previous call
+     *
+     * @param prefix the prefix of the metric names
+     * @param tags the tags added to every data point
+     * @param timestamp the timestamp of the data points
+     * @param dataPoints the array the data points objects are added to
+     */
+    public void report(String prefix, JsonObject tags, long timestamp, JsonArray dataPoints){
+        JsonObject actionTags = tags.copy().putString("action", action);
+        dataPoints.addObject(dataPoint(prefix + ".requests", actionTags, timestamp, requests));
+        dataPoints.addObject(dataPoint(prefix + ".bytes_sent", actionTags, timestamp, bytesSent));
+        dataPoints.addObject(dataPoint(prefix + ".bytes_received", actionTags, timestamp, bytesReceived));
+        for(Map.Entry<String, Long> entry : replies.entrySet()){
+            dataPoints.addObject(dataPoint(prefix + ".replies", actionTags.copy().putString("status", entry.getKey()),
+                    timestamp, entry.getValue()));
+        }
+        for(Map.Entry<String, Long> entry : httpStatuses.entrySet()){
+            dataPoints.addObject(dataPoint(prefix + ".http_responses", actionTags.copy().putString("status", entry.getKey()),
+                    timestamp, entry.getValue()));
+        }
+        reportLatency(prefix, actionTags, "queue_wait", timestamp, queueWait.since(reportedQueueWait), dataPoints);
+        reportLatency(prefix, actionTags, "round_trip", timestamp, roundTrip.since(reportedRoundTrip), dataPoints);
+        reportLatency(prefix, actionTags, "parse", timestamp, parse.since(reportedParse), dataPoints);
+        reportedQueueWait = queueWait.copy();
+        reportedRoundTrip = roundTrip.copy();
+        reportedParse = parse.copy();
+    }
+
+    private static void reportLatency(String prefix, JsonObject tags, String phase, long timestamp,
+                                      LatencyHistogram histogram, JsonArray dataPoints){
+        if(histogram.getCount() == 0){
+            return;
+        }
+        JsonObject phaseTags = tags.copy().putString("phase", phase);
+        dataPoints.addObject(dataPoint(prefix + ".latency", phaseTags.copy().putString("percentile", "p50"),
+                timestamp, histogram.percentile(50) / MICROS_PER_MILLI));
+        dataPoints.addObject(dataPoint(prefix + ".latency", phaseTags.copy().putString("percentile", "p99"),
+                timestamp, histogram.percentile(99) / MICROS_PER_MILLI));
+        dataPoints.addObject(dataPoint(prefix + ".latency", phaseTags.copy().putString("percentile", "p999"),
+                timestamp, histogram.percentile(99.9) / MICROS_PER_MILLI));
+    }
+
+    private static JsonObject dataPoint(String name, JsonObject tags, long timestamp, Number value){
+        return new JsonObject()
+            .putString("name", name)
+            .putNumber("timestamp", timestamp)
+            .putNumber("value", value)
+            .putObject("tags", tags);
+    }
+
+    private static void increment(Map<String, Long> counts, String key){
+        Long current = counts.get(key);
+        counts.put(key, current == null ? 1 : current + 1);
+    }
+
+    private static JsonObject toJson(Map<String, Long> counts){
+        JsonObject json = new JsonObject();
+        for(Map.Entry<String, Long> entry : counts.entrySet()){
+            json.putNumber(entry.getKey(), entry.getValue());
+        }
+        return json;
+    }
+}
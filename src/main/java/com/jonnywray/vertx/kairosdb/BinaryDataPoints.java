@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of data points for the binary ingest address. All numbers are big endian and strings are UTF-8
+ * preceded by their length as an unsigned short. A message is a version byte followed by one or more series, each of
+ * which is
+ *
+ * <pre>
+ *   name        string
+ *   tag count   unsigned short, at least 1
+ *   tags        tag count pairs of name and value strings
+ *   value type  byte, 0 for long and 1 for double values
+ *   point count int, at least 1
+ *   points      point count pairs of a long timestamp in milliseconds and a long or double value
+ * </pre>
+ *
+ * Messages are built with a {@link Writer} and converted straight into a KairosDB
+ * <a href="https://code.google.com/p/kairosdb/wiki/AddDataPoints">add data points</a> request body without creating
+ * an object per data point.
+ *
+ * @author Jonny Wray
+ */
+public class BinaryDataPoints {
+
+    public static final byte VERSION = 1;
+    public static final byte LONG_VALUES = 0;
+    public static final byte DOUBLE_VALUES = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_STRING_LENGTH = 0xffff;
+    private static final int POINT_SIZE = 16;
+    private static final int JSON_BYTES_PER_POINT = 32;
+    private static final byte[] NAME_FIELD = "{\"name\":".getBytes(UTF8);
+    private static final byte[] TAGS_FIELD = ",\"tags\":{".getBytes(UTF8);
+    private static final byte[] DATAPOINTS_FIELD = "},\"datapoints\":[".getBytes(UTF8);
+    private static final byte[] END_SERIES = "]}".getBytes(UTF8);
+
+    /**
+     * Receives the name and tags of each series as it is converted
+     */
+    public interface Listener {
+
+        /**
+         * @param name the metric name
+         * @param tags the tag names and values
+         */
+        void series(String name, Map<String, String> tags);
+    }
+
+    private BinaryDataPoints(){
+    }
+
+    /**
+     * Convert a binary data points message into a JSON array of data points objects
+     *
+     * @param message the binary message
+     * @param listener notified of each series, or null
+     * @return the JSON request body
+     * @throws IllegalArgumentException if the message is incorrectly formatted
+     */
+    public static Buffer toJson(Buffer message, Listener listener){
+        ByteBuf out = Unpooled.buffer(message.length() / POINT_SIZE * JSON_BYTES_PER_POINT + 256);
+        toJson(message, out, listener);
+        return new Buffer(out);
+    }
+
+    /**
+     * Convert a binary data points message into a JSON array of data points objects, appending it to a buffer
+     *
+     * @param message the binary message
+     * @param out the buffer to append to
+     * @param listener notified of each series, or null
+     * @return the number of data points
+     * @throws IllegalArgumentException if the message is incorrectly formatted
+     */
+    public static int toJson(Buffer message, ByteBuf out, Listener listener){
+        int length = message.length();
+        require(message, 0, 1);
+        if(message.getByte(0) != VERSION){
+            throw new IllegalArgumentException("unsupported binary data points version: " + message.getByte(0));
+        }
+        int position = 1;
+        int points = 0;
+        out.writeByte('[');
+        while(position < length){
+            if(position > 1){
+                out.writeByte(',');
+            }
+            int nameLength = readLength(message, position);
+            if(nameLength == 0){
+                throw new IllegalArgumentException("metric name must not be empty");
+            }
+            String name = readString(message, position + 2, nameLength);
+            position += 2 + nameLength;
+
+            int tagCount = readLength(message, position);
+            if(tagCount == 0){
+                throw new IllegalArgumentException("at least one tag must be specified for " + name);
+            }
+            position += 2;
+            Map<String, String> tags = new LinkedHashMap<>();
+            out.writeBytes(NAME_FIELD);
+            JsonBodyEncoder.writeString(out, name);
+            out.writeBytes(TAGS_FIELD);
+            for(int i=0;i<tagCount;i++){
+                int tagNameLength = readLength(message, position);
+                String tagName = readString(message, position + 2, tagNameLength);
+                position += 2 + tagNameLength;
+                int tagValueLength = readLength(message, position);
+                String tagValue = readString(message, position + 2, tagValueLength);
+                position += 2 + tagValueLength;
+                if(i > 0){
+                    out.writeByte(',');
+                }
+                JsonBodyEncoder.writeString(out, tagName);
+                out.writeByte(':');
+                JsonBodyEncoder.writeString(out, tagValue);
+                tags.put(tagName, tagValue);
+            }
+
+            require(message, position, 5);
+            byte valueType = message.getByte(position);
+            if(valueType != LONG_VALUES && valueType != DOUBLE_VALUES){
+                throw new IllegalArgumentException("unsupported value type for " + name + ": " + valueType);
+            }
+            int count = message.getInt(position + 1);
+            position += 5;
+            if(count < 1){
+                throw new IllegalArgumentException("at least one data point must be specified for " + name);
+            }
+            require(message, position, (long) count * POINT_SIZE);
+            out.writeBytes(DATAPOINTS_FIELD);
+            out.ensureWritable(count * JSON_BYTES_PER_POINT);
+            for(int i=0;i<count;i++){
+                if(i > 0){
+                    out.writeByte(',');
+                }
+                out.writeByte('[');
+                JsonBodyEncoder.writeLong(out, message.getLong(position));
+                out.writeByte(',');
+                if(valueType == LONG_VALUES){
+                    JsonBodyEncoder.writeLong(out, message.getLong(position + 8));
+                }
+                else{
+                    double value = message.getDouble(position + 8);
+                    if(Double.isNaN(value) || Double.isInfinite(value)){
+                        throw new IllegalArgumentException("data point values must be finite for " + name);
+                    }
+                    JsonBodyEncoder.writeDouble(out, value);
+                }
+                out.writeByte(']');
+                position += POINT_SIZE;
+            }
+            out.writeBytes(END_SERIES);
+            points += count;
+            if(listener != null){
+                listener.series(name, tags);
+            }
+        }
+        if(position == 1){
+            throw new IllegalArgumentException("at least one series must be specified");
+        }
+        out.writeByte(']');
+        return points;
+    }
+
+    private static int readLength(Buffer message, int position){
+        require(message, position, 2);
+        return message.getShort(position) & 0xffff;
+    }
+
+    private static String readString(Buffer message, int position, int length){
+        require(message, position, length);
+        return message.getString(position, position + length, "UTF-8");
+    }
+
+    private static void require(Buffer message, int position, long bytes){
+        if(position + bytes > message.length()){
+            throw new IllegalArgumentException("binary data points message is truncated");
+        }
+    }
+
+    /**
+     * Builds binary data points messages. Series are written in the order they are started and each must have at
+     * least one data point before the next is started or the message is built.
+     *
+     * This class is not thread safe.
+     */
+    public static class Writer {
+
+        private final Buffer buffer;
+        private int countPosition = -1;
+        private int count;
+        private byte valueType;
+
+        public Writer(){
+            this(256);
+        }
+
+        /**
+         * @param initialSize the initial size in bytes of the message buffer
+         */
+        public Writer(int initialSize){
+            buffer = new Buffer(initialSize);
+            buffer.appendByte(VERSION);
+        }
+
+        /**
+         * Start a new series
+         *
+         * @param name the metric name
+         * @param tags the tag names and values, at least one is required
+         * @param doubleValues whether the data points of the series have double rather than long values
+         * @return this writer
+         */
+        public Writer series(String name, Map<String, String> tags, boolean doubleValues){
+            if(name == null || name.isEmpty()){
+                throw new IllegalArgumentException("metric name must not be empty");
+            }
+            if(tags == null || tags.isEmpty()){
+                throw new IllegalArgumentException("at least one tag must be specified");
+            }
+            if(tags.size() > MAX_STRING_LENGTH){
+                throw new IllegalArgumentException("too many tags");
+            }
+            completeSeries();
+            appendString(name);
+            buffer.appendShort((short) tags.size());
+            for(Map.Entry<String, String> tag : tags.entrySet()){
+                appendString(tag.getKey());
+                appendString(tag.getValue());
+            }
+            valueType = doubleValues ? DOUBLE_VALUES : LONG_VALUES;
+            buffer.appendByte(valueType);
+            countPosition = buffer.length();
+            buffer.appendInt(0);
+            count = 0;
+            return this;
+        }
+
+        /**
+         * Add a data point with a long value to the current series
+         *
+         * @param timestamp the timestamp in milliseconds
+         * @param value the value
+         * @return this writer
+         */
+        public Writer add(long timestamp, long value){
+            checkSeries(LONG_VALUES);
+            buffer.appendLong(timestamp).appendLong(value);
+            count++;
+            return this;
+        }
+
+        /**
+         * Add a data point with a double value to the current series
+         *
+         * @param timestamp the timestamp in milliseconds
+         * @param value the value, which must be finite
+         * @return this writer
+         */
+        public Writer add(long timestamp, double value){
+            checkSeries(DOUBLE_VALUES);
+            if(Double.isNaN(value) || Double.isInfinite(value)){
+                throw new IllegalArgumentException("data point values must be finite");
+            }
+            buffer.appendLong(timestamp).appendDouble(value);
+            count++;
+            return this;
+        }
+
+        /**
+         * @return the message
+         */
+        public Buffer build(){
+            if(countPosition == -1){
+                throw new IllegalStateException("at least one series must be written");
+            }
+            completeSeries();
+            return buffer;
+        }
+
+        private void checkSeries(byte expectedType){
+            if(countPosition == -1){
+                throw new IllegalStateException("a series must be started before data points are added");
+            }
+            if(valueType != expectedType){
+                throw new IllegalArgumentException("value type does not match the series");
+            }
+        }
+
+        private void completeSeries(){
+            if(countPosition == -1){
+                return;
+            }
+            if(count == 0){
+                throw new IllegalStateException("series must have at least one data point");
+            }
+            buffer.setInt(countPosition, count);
+        }
+
+        private void appendString(String value){
+            byte[] bytes = value.getBytes(UTF8);
+            if(bytes.length > MAX_STRING_LENGTH){
+                throw new IllegalArgumentException("string is too long: " + value);
+            }
+            buffer.appendShort((short) bytes.length).appendBytes(bytes);
+        }
+    }
+}
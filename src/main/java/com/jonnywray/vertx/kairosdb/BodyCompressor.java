@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helper class responsible for deciding whether request bodies sent to KairosDB should be gzip compressed, and
+ * compressing them if so.
+ *
+ * @author Jonny Wray
+ */
+public class BodyCompressor {
+
+    /**
+     * The supported compression modes
+     */
+    public enum Mode {
+        /** never compress */
+        OFF,
+        /** always compress */
+        GZIP,
+        /** compress bodies at least as large as the threshold */
+        THRESHOLD
+    }
+
+    private final Mode mode;
+    private final int threshold;
+
+    /**
+     * @param mode the compression mode
+     * @param threshold the body size in bytes at or above which bodies are compressed in threshold mode
+     */
+    public BodyCompressor(Mode mode, int threshold){
+        this.mode = mode;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Parse the configured compression mode
+     *
+     * @param mode the mode name, one of <code>off</code>, <code>gzip</code> or <code>threshold</code>
+     * @return the mode
+     * @throws IllegalArgumentException if the mode is not recognised
+     */
+    public static Mode parseMode(String mode){
+        try{
+            return Mode.valueOf(mode.toUpperCase());
+        }
+        catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("unsupported compression mode: " + mode);
+        }
+    }
+
+    /**
+     * @return whether any compression is enabled
+     */
+    public boolean isEnabled(){
+        return mode != Mode.OFF;
+    }
+
+    /**
+     * @param length the size of the uncompressed body in bytes
+     * @return whether a body of the given size should be compressed
+     */
+    public boolean shouldCompress(int length){
+        switch (mode){
+            case GZIP:
+                return true;
+            case THRESHOLD:
+                return length >= threshold;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gzip compress a body
+     *
+     * @param body the uncompressed body
+     * @return the compressed body
+     * @throws IOException if compression fails
+     */
+    public Buffer compress(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try(GZIPOutputStream gzip = new GZIPOutputStream(out)){
+            gzip.write(body);
+        }
+        return new Buffer(out.toByteArray());
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Drops data points that do not change a series. A point with the same timestamp and value as the last point written
+ * for its series is an exact duplicate and is always dropped. For metrics matching a dead-band rule a point whose
+ * value is within an absolute or relative band of the last value written is also dropped, unless the heartbeat
+ * interval has passed since that point, so that a steady series is still written periodically.
+ *
+ * The last written point of each series is kept in a table of fixed size from which the least recently used series is
+ * evicted, so memory stays bounded however many series there are. A point for an evicted series is always written.
+ * Filtering does not change the table: points are only recorded once {@link #written(JsonObject)} reports that they
+ * were written, so a point whose write failed is not dropped as a duplicate when it is retried.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class ChangeFilter {
+
+    private static final int MAX_CACHED_NAMES = 10000;
+    private static final Rule NO_RULE = new Rule(null, -1, -1);
+
+    private final List<Rule> rules;
+    private final long heartbeat;
+    private final Map<String, Rule> ruleCache = new HashMap<>();
+    private final Map<String, LastPoint> lastPoints;
+
+    private long evictions;
+    private long duplicates;
+    private long withinBand;
+    private long heartbeats;
+
+    /**
+     * @param rules the dead-band rules, the first rule matching a metric name is used
+     * @param maxSeries the maximum number of series whose last point is kept
+     * @param heartbeat the time in milliseconds after which a point is written even if it is within the dead-band,
+     *                  or 0 to never force a point
+     */
+    public ChangeFilter(List<Rule> rules, final int maxSeries, long heartbeat){
+        if(maxSeries < 1){
+            throw new IllegalArgumentException("max_series must be positive");
+        }
+        this.rules = rules;
+        this.heartbeat = heartbeat;
+        this.lastPoints = new LinkedHashMap<String, LastPoint>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LastPoint> eldest) {
+                if(size() > maxSeries){
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Create a filter from configuration
+     *
+     * @param config the filter configuration object
+     * @return the filter
+     */
+    public static ChangeFilter fromConfig(JsonObject config){
+        List<Rule> rules = new ArrayList<>();
+        for(Object ruleConfig : config.getArray("rules", new JsonArray())){
+            rules.add(Rule.fromConfig((JsonObject) ruleConfig));
+        }
+        return new ChangeFilter(rules, config.getInteger("max_series", 100000), config.getLong("heartbeat", 60000));
+    }
+
+    /**
+     * Remove the points of a data points object that do not change their series
+     *
+     * @param dataPoints the validated data points object, in either single or multiple form
+     * @return the data points object, a copy with fewer points if any were dropped, or null if every point was dropped
+     */
+    public JsonObject filter(JsonObject dataPoints){
+        String name = dataPoints.getString("name");
+        Rule rule = match(name);
+        // points kept earlier in this object count as written when filtering the later ones
+        LastPoint last = lastPoints.get(SeriesAccumulator.key(name, dataPoints.getObject("tags")));
+        LastPoint current = last == null ? new LastPoint() : new LastPoint(last.timestamp, last.value);
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            return accept(current, rule, dataPoints.getField("timestamp"), dataPoints.getField("value")) ? dataPoints : null;
+        }
+        JsonArray kept = null;
+        for(int i=0;i<multiple.size();i++){
+            Object point = multiple.get(i);
+            boolean accepted = !(point instanceof JsonArray) || ((JsonArray) point).size() != 2
+                    || accept(current, rule, ((JsonArray) point).get(0), ((JsonArray) point).get(1));
+            if(!accepted && kept == null){
+                kept = new JsonArray();
+                for(int j=0;j<i;j++){
+                    kept.add(multiple.get(j));
+                }
+            }
+            else if(accepted && kept != null){
+                kept.add(point);
+            }
+        }
+        if(kept == null){
+            return dataPoints;
+        }
+        if(kept.size() == 0){
+            return null;
+        }
+        return dataPoints.copy().putArray("datapoints", kept);
+    }
+
+    /**
+     * Record the points of a data points object as written, so that later points are filtered against them
+     *
+     * @param dataPoints the data points object returned by {@link #filter(JsonObject)} that has been written
+     */
+    public void written(JsonObject dataPoints){
+        String key = SeriesAccumulator.key(dataPoints.getString("name"), dataPoints.getObject("tags"));
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            record(key, dataPoints.getField("timestamp"), dataPoints.getField("value"));
+            return;
+        }
+        for(Object point : multiple){
+            if(point instanceof JsonArray && ((JsonArray) point).size() == 2){
+                record(key, ((JsonArray) point).get(0), ((JsonArray) point).get(1));
+            }
+        }
+    }
+
+    /**
+     * @return the number of series whose last point is kept
+     */
+    public int getSeries(){
+        return lastPoints.size();
+    }
+
+    /**
+     * @return the counters as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("series", lastPoints.size())
+            .putNumber("evictions", evictions)
+            .putNumber("duplicates_dropped", duplicates)
+            .putNumber("dead_band_dropped", withinBand)
+            .putNumber("heartbeats", heartbeats);
+    }
+
+    private Rule match(String name){
+        Rule rule = ruleCache.get(name);
+        if(rule == null){
+            rule = NO_RULE;
+            for(Rule candidate : rules){
+                if(candidate.pattern.matcher(name).matches()){
+                    rule = candidate;
+                    break;
+                }
+            }
+            if(ruleCache.size() < MAX_CACHED_NAMES){
+                ruleCache.put(name, rule);
+            }
+        }
+        return rule == NO_RULE ? null : rule;
+    }
+
+    private void record(String key, Object timestamp, Object value){
+        if(!(timestamp instanceof Number) || !(value instanceof Number)){
+            return;
+        }
+        long pointTimestamp = ((Number) timestamp).longValue();
+        double pointValue = ((Number) value).doubleValue();
+        LastPoint last = lastPoints.get(key);
+        if(last == null){
+            lastPoints.put(key, new LastPoint(pointTimestamp, pointValue));
+        }
+        else if(pointTimestamp >= last.timestamp){
+            last.timestamp = pointTimestamp;
+            last.value = pointValue;
+        }
+    }
+
+    private boolean accept(LastPoint last, Rule rule, Object timestamp, Object value){
+        if(!(timestamp instanceof Number) || !(value instanceof Number)){
+            return true;
+        }
+        long pointTimestamp = ((Number) timestamp).longValue();
+        double pointValue = ((Number) value).doubleValue();
+        if(!last.seen){
+            last.seen = true;
+            last.timestamp = pointTimestamp;
+            last.value = pointValue;
+            return true;
+        }
+        if(pointTimestamp == last.timestamp && pointValue == last.value){
+            duplicates++;
+            return false;
+        }
+        if(rule != null && pointTimestamp > last.timestamp && rule.isWithinBand(last.value, pointValue)){
+            if(heartbeat <= 0 || pointTimestamp - last.timestamp < heartbeat){
+                withinBand++;
+                return false;
+            }
+            heartbeats++;
+        }
+        if(pointTimestamp >= last.timestamp){
+            last.timestamp = pointTimestamp;
+            last.value = pointValue;
+        }
+        return true;
+    }
+
+    /**
+     * A dead-band rule
+     */
+    public static class Rule {
+
+        private final Pattern pattern;
+        private final double absolute;
+        private final double relative;
+
+        /**
+         * @param pattern the regular expression matching the metric names the rule applies to
+         * @param absolute the largest change from the last written value that is dropped, or a negative value to
+         *                 not use an absolute band
+         * @param relative the largest change, as a proportion of the last written value, that is dropped, or a negative
+         *                 value to not use a relative band
+         */
+        public Rule(String pattern, double absolute, double relative){
+            this.pattern = pattern == null ? null : Pattern.compile(pattern);
+            this.absolute = absolute;
+            this.relative = relative;
+        }
+
+        /**
+         * Create a rule from configuration
+         *
+         * @param config the rule configuration object
+         * @return the rule
+         */
+        public static Rule fromConfig(JsonObject config){
+            String pattern = config.getString("pattern");
+            if(pattern == null){
+                throw new IllegalArgumentException("filter rules must specify a pattern");
+            }
+            Number absolute = config.getNumber("absolute");
+            Number relative = config.getNumber("relative");
+            return new Rule(pattern, absolute == null ? -1 : absolute.doubleValue(),
+                    relative == null ? -1 : relative.doubleValue());
+        }
+
+        private boolean isWithinBand(double lastValue, double value){
+            double change = Math.abs(value - lastValue);
+            return (absolute >= 0 && change <= absolute) || (relative >= 0 && change <= relative * Math.abs(lastValue));
+        }
+    }
+
+    /**
+     * The last point written for a series
+     */
+    private static class LastPoint {
+
+        private boolean seen;
+        private long timestamp;
+        private double value;
+
+        private LastPoint(){
+        }
+
+        private LastPoint(long timestamp, double value){
+            this.seen = true;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Stops requests being sent to a KairosDB instance that is failing. The outcomes of the most recent requests are kept
+ * and when the proportion that failed reaches a threshold the breaker opens and no requests are allowed. After a
+ * fixed time the breaker becomes half open and allows a limited number of probe requests: if they all succeed the
+ * breaker closes, and if any fails it opens again.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker
+     */
+    public enum State {
+        /** requests are allowed and their outcomes recorded */
+        CLOSED,
+        /** no requests are allowed */
+        OPEN,
+        /** a limited number of probe requests are allowed */
+        HALF_OPEN
+    }
+
+    private final boolean[] outcomes;
+    private final int minimumRequests;
+    private final double failureRateThreshold;
+    private final long openDuration;
+    private final int halfOpenRequests;
+
+    private State state = State.CLOSED;
+    private int recorded;
+    private int failures;
+    private int next;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+    private long opened;
+
+    /**
+     * @param windowSize the number of most recent outcomes used to calculate the failure rate
+     * @param minimumRequests the number of outcomes needed before the breaker can open
+     * @param failureRateThreshold the proportion of failed requests, between 0 and 1, at which the breaker opens
+     * @param openDuration the time in milliseconds the breaker stays open before allowing probe requests
+     * @param halfOpenRequests the number of probe requests allowed while half open
+     */
+    public CircuitBreaker(int windowSize, int minimumRequests, double failureRateThreshold, long openDuration,
+                          int halfOpenRequests){
+        if(windowSize < 1 || halfOpenRequests < 1){
+            throw new IllegalArgumentException("window_size and half_open_requests must be positive");
+        }
+        this.outcomes = new boolean[windowSize];
+        this.minimumRequests = Math.min(Math.max(1, minimumRequests), windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenRequests = halfOpenRequests;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return whether a request may be sent now
+     */
+    public boolean allowsRequest(long now){
+        switch (state){
+            case OPEN:
+                return now - openedAt >= openDuration;
+            case HALF_OPEN:
+                return probes < halfOpenRequests;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record that a request allowed by {@link #allowsRequest(long)} is being sent
+     *
+     * @param now the current time in milliseconds
+     */
+    public void requestStarted(long now){
+        if(state == State.OPEN && now - openedAt >= openDuration){
+            state = State.HALF_OPEN;
+            probes = 0;
+            probeSuccesses = 0;
+        }
+        if(state == State.HALF_OPEN){
+            probes++;
+        }
+    }
+
+    /**
+     * Record a successful request
+     */
+    public void recordSuccess(){
+        if(state == State.HALF_OPEN){
+            probeSuccesses++;
+            if(probeSuccesses >= halfOpenRequests){
+                close();
+            }
+        }
+        else if(state == State.CLOSED){
+            record(false);
+        }
+    }
+
+    /**
+     * Record a failed request
+     *
+     * @param now the current time in milliseconds
+     */
+    public void recordFailure(long now){
+        if(state == State.HALF_OPEN){
+            open(now);
+        }
+        else if(state == State.CLOSED){
+            record(true);
+            if(recorded >= minimumRequests && failures >= failureRateThreshold * recorded){
+                open(now);
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the current state as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putString("state", state.name().toLowerCase())
+            .putNumber("recent_requests", recorded)
+            .putNumber("recent_failures", failures)
+            .putNumber("opened", opened);
+    }
+
+    private void record(boolean failure){
+        if(recorded == outcomes.length){
+            if(outcomes[next]){
+                failures--;
+            }
+        }
+        else{
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if(failure){
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open(long now){
+        state = State.OPEN;
+        openedAt = now;
+        opened++;
+    }
+
+    private void close(){
+        state = State.CLOSED;
+        recorded = 0;
+        failures = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Tracks the requests outstanding on an HTTP client so that it is visible when requests are queued waiting for one
+ * of the pooled connections. A request counts as outstanding from the time it is created until its response arrives
+ * or it fails, and any outstanding requests beyond the maximum pool size are waiting for a connection.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class ConnectionPoolMonitor {
+
+    private final int maxPoolSize;
+
+    private int inFlight;
+    private int peakQueued;
+    private long totalRequests;
+    private long queuedRequests;
+
+    /**
+     * @param maxPoolSize the maximum number of connections the client will open
+     */
+    public ConnectionPoolMonitor(int maxPoolSize){
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Record that a request has been created
+     */
+    public void requestStarted(){
+        inFlight++;
+        totalRequests++;
+        int queued = getQueued();
+        if(queued > 0){
+            queuedRequests++;
+            peakQueued = Math.max(peakQueued, queued);
+        }
+    }
+
+    /**
+     * Record that a request has received its response or failed
+     */
+    public void requestCompleted(){
+        if(inFlight > 0){
+            inFlight--;
+        }
+    }
+
+    /**
+     * @return the number of requests outstanding
+     */
+    public int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * @return the number of outstanding requests currently waiting for a connection
+     */
+    public int getQueued(){
+        return Math.max(0, inFlight - maxPoolSize);
+    }
+
+    /**
+     * @return the largest number of requests that have waited for a connection at the same time
+     */
+    public int getPeakQueued(){
+        return peakQueued;
+    }
+
+    /**
+     * @return the total number of requests that had to wait for a connection
+     */
+    public long getQueuedRequests(){
+        return queuedRequests;
+    }
+
+    /**
+     * @return the current state as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("max_pool_size", maxPoolSize)
+            .putNumber("in_flight", inFlight)
+            .putNumber("queued", getQueued())
+            .putNumber("peak_queued", peakQueued)
+            .putNumber("total_requests", totalRequests)
+            .putNumber("queued_requests", queuedRequests);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.EncodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates <a href="https://code.google.com/p/kairosdb/wiki/AddDataPoints">add data points</a> objects into a
+ * single JSON array request body so that many event bus messages can be written to KairosDB with one request.
+ * Points are held in a {@link SeriesAccumulator}, grouped by series in primitive arrays, and only encoded when the
+ * batch is drained. Data points objects the accumulator cannot hold are encoded once, straight into the body as they
+ * are added. The batch records an arbitrary token (typically the message that carried the data points) so that
+ * callers can be acknowledged once the batch has been written.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class DataPointBatcher<T> {
+
+    private final int maxPoints;
+    private final int maxBytes;
+
+    private final SeriesAccumulator columns = new SeriesAccumulator();
+    private final ByteBuf others = Unpooled.buffer();
+    private List<T> tokens;
+    private int points;
+
+    /**
+     * @param maxPoints the number of data points at which the batch is considered full
+     * @param maxBytes the approximate size of the encoded request body at which the batch is considered full
+     */
+    public DataPointBatcher(int maxPoints, int maxBytes){
+        this.maxPoints = maxPoints;
+        this.maxBytes = maxBytes;
+        reset();
+    }
+
+    /**
+     * Add a data points object to the current batch
+     *
+     * @param dataPoints the data points object to add
+     * @param token the token to be returned with the batch that carries these data points
+     * @return whether the batch is now full and should be flushed
+     * @throws EncodeException if the data points object cannot be encoded, in which case the batch is left unchanged
+     */
+    public boolean add(JsonObject dataPoints, T token){
+        if(!columns.add(dataPoints)){
+            int mark = others.writerIndex();
+            if(others.isReadable()){
+                others.writeByte(',');
+            }
+            try{
+                JsonBodyEncoder.write(others, dataPoints);
+            }
+            catch (EncodeException e){
+                others.writerIndex(mark);
+                throw e;
+            }
+        }
+        tokens.add(token);
+        points += countPoints(dataPoints);
+        return isFull();
+    }
+
+    /**
+     * @return whether the batch has reached either the point or byte limit
+     */
+    public boolean isFull(){
+        return points >= maxPoints || others.readableBytes() + columns.estimateBytes() >= maxBytes;
+    }
+
+    /**
+     * @return whether there is anything waiting to be flushed
+     */
+    public boolean isEmpty(){
+        return tokens.isEmpty();
+    }
+
+    /**
+     * @return the number of series tracked by the columnar storage
+     */
+    public int getTrackedSeries(){
+        return columns.getTrackedSeries();
+    }
+
+    /**
+     * @return the number of data points waiting to be flushed
+     */
+    public int getPoints(){
+        return points;
+    }
+
+    /**
+     * Remove the current batch, leaving this batcher empty
+     *
+     * @return the batch, or null if there was nothing to flush
+     */
+    public Batch<T> drain(){
+        if(tokens.isEmpty()){
+            return null;
+        }
+        ByteBuf body = Unpooled.buffer((int) Math.min(Integer.MAX_VALUE - 2, others.readableBytes() + columns.estimateBytes()) + 2);
+        body.writeByte('[');
+        body.writeBytes(others);
+        columns.writeTo(body, others.writerIndex() > 0);
+        body.writeByte(']');
+        Batch<T> batch = new Batch<>(new Buffer(body), tokens, points);
+        reset();
+        return batch;
+    }
+
+    /**
+     * Count the number of individual data points contained in a data points object
+     *
+     * @param dataPoints the data points object, in either single or multiple form
+     * @return the number of points
+     */
+    public static int countPoints(JsonObject dataPoints){
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        return multiple == null ? 1 : multiple.size();
+    }
+
+    private void reset(){
+        others.clear();
+        columns.clear();
+        tokens = new ArrayList<>();
+        points = 0;
+    }
+
+    /**
+     * A drained batch, consisting of the encoded JSON array request body and the tokens of everything it contains
+     */
+    public static class Batch<T> {
+
+        private final Buffer body;
+        private final List<T> tokens;
+        private final int points;
+
+        private Batch(Buffer body, List<T> tokens, int points){
+            this.body = body;
+            this.tokens = tokens;
+            this.points = points;
+        }
+
+        public Buffer getBody() {
+            return body;
+        }
+
+        public List<T> getTokens() {
+            return tokens;
+        }
+
+        public int getPoints() {
+            return points;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a series to at most a fixed number of points while preserving its visual shape, so that a series drawn into
+ * a chart a few thousand pixels wide need not carry every point. Two methods are supported
+ * <ul>
+ *     <li><code>lttb</code>: Largest-Triangle-Three-Buckets, which divides the points into equal buckets and keeps
+ *     from each the point forming the largest triangle with the point kept from the previous bucket and the average
+ *     of the next. The first and last points are always kept</li>
+ *     <li><code>min_max</code>: divides the points into equal buckets and keeps the minimum and maximum of each, so
+ *     every peak and trough survives</li>
+ * </ul>
+ * Both make a single pass over the points and allocate only the array of selected indices.
+ *
+ * @author Jonny Wray
+ */
+public class Downsampler {
+
+    /**
+     * The downsampling methods
+     */
+    public enum Method {
+        LTTB("lttb", 3),
+        MIN_MAX("min_max", 2);
+
+        private final String name;
+        private final int minimumPoints;
+
+        Method(String name, int minimumPoints){
+            this.name = name;
+            this.minimumPoints = minimumPoints;
+        }
+
+        /**
+         * @param name the method name
+         * @return the method
+         * @throws IllegalArgumentException if the name is not a supported method
+         */
+        public static Method fromName(String name){
+            for(Method method : values()){
+                if(method.name.equals(name)){
+                    return method;
+                }
+            }
+            throw new IllegalArgumentException("unsupported downsample method: " + name);
+        }
+
+        @Override
+        public String toString(){
+            return name;
+        }
+    }
+
+    private final Method method;
+    private final int maxPoints;
+
+    /**
+     * @param method the downsampling method
+     * @param maxPoints the maximum number of points of each series
+     * @throws IllegalArgumentException if the maximum is too small for the method
+     */
+    public Downsampler(Method method, int maxPoints){
+        if(maxPoints < method.minimumPoints){
+            throw new IllegalArgumentException("max_points must be at least " + method.minimumPoints + " for " + method);
+        }
+        this.method = method;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * @return the maximum number of points of each series
+     */
+    public int getMaxPoints(){
+        return maxPoints;
+    }
+
+    /**
+     * @return the downsampling method
+     */
+    public Method getMethod(){
+        return method;
+    }
+
+    /**
+     * Select the points to keep
+     *
+     * @param timestamps the timestamps of the points, in order
+     * @param values the values of the points
+     * @param count the number of points
+     * @return the indices of the points to keep in ascending order, or null if the series has no more than the
+     * maximum number of points
+     */
+    public int[] select(long[] timestamps, double[] values, int count){
+        if(count <= maxPoints){
+            return null;
+        }
+        return method == Method.LTTB ? largestTriangles(timestamps, values, count) : minMax(values, count);
+    }
+
+    private int[] largestTriangles(long[] timestamps, double[] values, int count){
+        int[] selected = new int[maxPoints];
+        int selectedCount = 0;
+        selected[selectedCount++] = 0;
+        double every = (double) (count - 2) / (maxPoints - 2);
+        int previous = 0;
+        for(int bucket=0;bucket<maxPoints-2;bucket++){
+            // the average of the next bucket is the third point of each triangle
+            int averageStart = (int) ((bucket + 1) * every) + 1;
+            int averageEnd = Math.min((int) ((bucket + 2) * every) + 1, count);
+            double averageTime = 0;
+            double averageValue = 0;
+            for(int i=averageStart;i<averageEnd;i++){
+                averageTime += timestamps[i] - timestamps[previous];
+                averageValue += values[i];
+            }
+            averageTime /= averageEnd - averageStart;
+            averageValue /= averageEnd - averageStart;
+
+            int start = (int) (bucket * every) + 1;
+            int end = (int) ((bucket + 1) * every) + 1;
+            double previousValue = values[previous];
+            double maxArea = -1;
+            int next = start;
+            for(int i=start;i<end;i++){
+                // twice the triangle area, with times relative to the previous point
+                double area = Math.abs(averageTime * (previousValue - values[i])
+                        - (timestamps[i] - timestamps[previous]) * (previousValue - averageValue));
+                if(area > maxArea){
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            selected[selectedCount++] = next;
+            previous = next;
+        }
+        selected[selectedCount] = count - 1;
+        return selected;
+    }
+
+    private int[] minMax(double[] values, int count){
+        int buckets = maxPoints / 2;
+        int[] selected = new int[buckets * 2];
+        int selectedCount = 0;
+        for(int bucket=0;bucket<buckets;bucket++){
+            int start = (int) ((long) bucket * count / buckets);
+            int end = (int) ((long) (bucket + 1) * count / buckets);
+            int min = start;
+            int max = start;
+            for(int i=start+1;i<end;i++){
+                if(values[i] < values[min]){
+                    min = i;
+                }
+                if(values[i] > values[max]){
+                    max = i;
+                }
+            }
+            selected[selectedCount++] = Math.min(min, max);
+            if(min != max){
+                selected[selectedCount++] = Math.max(min, max);
+            }
+        }
+        return selectedCount == selected.length ? selected : Arrays.copyOf(selected, selectedCount);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits the number of requests of one class that are executing at the same time. Requests beyond the limit wait in
+ * a bounded first in first out queue, and requests arriving when the queue is full are rejected immediately so that
+ * a slow database causes fast failures rather than unbounded memory growth.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class InFlightLimiter<T> {
+
+    /**
+     * The outcome of offering a request to the limiter
+     */
+    public enum Admission {
+        /** the request may execute now */
+        ADMITTED,
+        /** the request is waiting and will be returned by a later call to {@link #release()} */
+        QUEUED,
+        /** the request must be rejected */
+        REJECTED
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Deque<T> queue = new ArrayDeque<>();
+
+    private int inFlight;
+    private int peakQueued;
+    private long admitted;
+    private long queuedRequests;
+    private long rejected;
+
+    /**
+     * @param maxInFlight the maximum number of requests executing at the same time
+     * @param maxQueued the maximum number of requests waiting to execute
+     */
+    public InFlightLimiter(int maxInFlight, int maxQueued){
+        if(maxInFlight <= 0){
+            throw new IllegalArgumentException("max_in_flight must be positive");
+        }
+        if(maxQueued < 0){
+            throw new IllegalArgumentException("max_queued must not be negative");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Offer a request to the limiter
+     *
+     * @param request the request
+     * @return whether the request may execute now, has been queued or must be rejected
+     */
+    public Admission offer(T request){
+        if(inFlight < maxInFlight){
+            inFlight++;
+            admitted++;
+            return Admission.ADMITTED;
+        }
+        if(queue.size() < maxQueued){
+            queue.add(request);
+            queuedRequests++;
+            peakQueued = Math.max(peakQueued, queue.size());
+            return Admission.QUEUED;
+        }
+        rejected++;
+        return Admission.REJECTED;
+    }
+
+    /**
+     * Record that an executing request has completed
+     *
+     * @return the next queued request, which is now counted as executing and must be executed, or null if none are
+     * waiting
+     */
+    public T release(){
+        T next = queue.poll();
+        if(next != null){
+            admitted++;
+        }
+        else if(inFlight > 0){
+            inFlight--;
+        }
+        return next;
+    }
+
+    /**
+     * @return the number of requests executing
+     */
+    public int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting to execute
+     */
+    public int getQueued(){
+        return queue.size();
+    }
+
+    /**
+     * @return the total number of requests rejected
+     */
+    public long getRejected(){
+        return rejected;
+    }
+
+    /**
+     * @return the current state and counters as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("max_in_flight", maxInFlight)
+            .putNumber("max_queued", maxQueued)
+            .putNumber("in_flight", inFlight)
+            .putNumber("queued", queue.size())
+            .putNumber("peak_queued", peakQueued)
+            .putNumber("admitted", admitted)
+            .putNumber("queued_requests", queuedRequests)
+            .putNumber("rejected", rejected);
+    }
+}
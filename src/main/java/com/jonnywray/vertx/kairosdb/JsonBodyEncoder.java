@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.EncodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonElement;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Encodes JSON request bodies as UTF-8 straight into a buffer in a single pass, producing the same bytes as
+ * {@link JsonObject#encode()} without first building the whole body as a {@link String} and then copying it to a
+ * byte array. Strings are transcoded character by character and integral numbers are written digit by digit, and the
+ * <code>datapoints</code> arrays of <a href="https://code.google.com/p/kairosdb/wiki/AddDataPoints">add data points</a>
+ * objects, which make up nearly all of a write, are written as pairs of numbers without wrapping each pair. Values of
+ * types the encoder does not know are encoded with the Vert.x JSON encoder.
+ *
+ * The buffers are unpooled so that a body may be kept for retries or spooling without managing reference counts.
+ *
+ * @author Jonny Wray
+ */
+public class JsonBodyEncoder {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int BYTES_PER_POINT = 32;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private JsonBodyEncoder(){
+    }
+
+    /**
+     * Encode a JSON object or array into a new buffer
+     *
+     * @param element the object or array
+     * @return the UTF-8 encoded buffer
+     * @throws EncodeException if the element contains a value that cannot be encoded
+     */
+    public static Buffer encode(JsonElement element){
+        ByteBuf out = Unpooled.buffer(estimateSize(element));
+        write(out, element);
+        return new Buffer(out);
+    }
+
+    /**
+     * Encode a JSON object or array, appending it to a buffer
+     *
+     * @param out the buffer to append to
+     * @param element the object or array
+     * @throws EncodeException if the element contains a value that cannot be encoded
+     */
+    public static void write(ByteBuf out, JsonElement element){
+        if(element.isObject()){
+            writeObject(out, element.asObject());
+        }
+        else{
+            writeArray(out, element.asArray());
+        }
+    }
+
+    private static int estimateSize(JsonElement element){
+        int points = 0;
+        if(element.isObject()){
+            points = countPoints(element.asObject());
+        }
+        else{
+            for(Object value : element.asArray()){
+                if(value instanceof JsonObject){
+                    points += countPoints((JsonObject) value);
+                }
+            }
+        }
+        return INITIAL_CAPACITY + points * BYTES_PER_POINT;
+    }
+
+    private static int countPoints(JsonObject object){
+        Object points = object.getField("datapoints");
+        return points instanceof JsonArray ? ((JsonArray) points).size() : 0;
+    }
+
+    private static void writeObject(ByteBuf out, JsonObject object){
+        out.writeByte('{');
+        boolean first = true;
+        for(String name : object.getFieldNames()){
+            if(!first){
+                out.writeByte(',');
+            }
+            first = false;
+            writeString(out, name);
+            out.writeByte(':');
+            Object value = object.getField(name);
+            if("datapoints".equals(name) && value instanceof JsonArray){
+                writeDataPoints(out, (JsonArray) value);
+            }
+            else{
+                writeValue(out, value);
+            }
+        }
+        out.writeByte('}');
+    }
+
+    private static void writeArray(ByteBuf out, JsonArray array){
+        out.writeByte('[');
+        boolean first = true;
+        for(Object value : array){
+            if(!first){
+                out.writeByte(',');
+            }
+            first = false;
+            writeValue(out, value);
+        }
+        out.writeByte(']');
+    }
+
+    private static void writeDataPoints(ByteBuf out, JsonArray points){
+        out.writeByte('[');
+        boolean first = true;
+        for(Object point : points){
+            if(!first){
+                out.writeByte(',');
+            }
+            first = false;
+            if(point instanceof JsonArray && ((JsonArray) point).size() == 2){
+                JsonArray pair = (JsonArray) point;
+                Object timestamp = pair.get(0);
+                Object value = pair.get(1);
+                out.writeByte('[');
+                writeValue(out, timestamp);
+                out.writeByte(',');
+                writeValue(out, value);
+                out.writeByte(']');
+            }
+            else{
+                writeValue(out, point);
+            }
+        }
+        out.writeByte(']');
+    }
+
+    private static void writeValue(ByteBuf out, Object value){
+        if(value == null){
+            out.writeBytes(NULL);
+        }
+        else if(value instanceof String){
+            writeString(out, (String) value);
+        }
+        else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+            writeLong(out, ((Number) value).longValue());
+        }
+        else if(value instanceof Double || value instanceof Float){
+            writeFloatingPoint(out, (Number) value);
+        }
+        else if(value instanceof Boolean){
+            out.writeBytes((Boolean) value ? TRUE : FALSE);
+        }
+        else if(value instanceof JsonObject){
+            writeObject(out, (JsonObject) value);
+        }
+        else if(value instanceof JsonArray){
+            writeArray(out, (JsonArray) value);
+        }
+        else if(value instanceof BigInteger || value instanceof BigDecimal){
+            writeAscii(out, value.toString());
+        }
+        else{
+            writeAscii(out, Json.encode(value));
+        }
+    }
+
+    static void writeLong(ByteBuf out, long value){
+        if(value == Long.MIN_VALUE){
+            out.writeBytes(LONG_MIN_VALUE);
+            return;
+        }
+        if(value < 0){
+            out.writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for(long remaining = value / 10; remaining > 0; remaining /= 10){
+            digits++;
+        }
+        out.ensureWritable(digits);
+        int start = out.writerIndex();
+        for(int i=start + digits - 1;i>=start;i--){
+            out.setByte(i, '0' + (int) (value % 10));
+            value /= 10;
+        }
+        out.writerIndex(start + digits);
+    }
+
+    private static void writeFloatingPoint(ByteBuf out, Number value){
+        double doubleValue = value.doubleValue();
+        if(Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)){
+            // matches the default of quoting non numeric numbers
+            out.writeByte('"');
+            writeAscii(out, value.toString());
+            out.writeByte('"');
+        }
+        else if(value instanceof Double){
+            writeDouble(out, doubleValue);
+        }
+        else{
+            writeAscii(out, value.toString());
+        }
+    }
+
+    /**
+     * Write a finite double as {@link Double#toString(double)} would
+     */
+    static void writeDouble(ByteBuf out, double value){
+        if(value == Math.rint(value) && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)){
+            // the shortest representation of a small integral value is the integer followed by .0
+            writeLong(out, (long) value);
+            out.writeByte('.');
+            out.writeByte('0');
+        }
+        else{
+            writeAscii(out, Double.toString(value));
+        }
+    }
+
+    private static void writeAscii(ByteBuf out, String value){
+        int length = value.length();
+        out.ensureWritable(length);
+        for(int i=0;i<length;i++){
+            out.writeByte(value.charAt(i));
+        }
+    }
+
+    static void writeString(ByteBuf out, String value){
+        int length = value.length();
+        out.ensureWritable(length + 2);
+        out.writeByte('"');
+        for(int i=0;i<length;i++){
+            char c = value.charAt(i);
+            if(c >= 0x20 && c < 0x80){
+                if(c == '"' || c == '\\'){
+                    out.writeByte('\\');
+                }
+                out.writeByte(c);
+            }
+            else if(c < 0x20){
+                writeControl(out, c);
+            }
+            else if(c < 0x800){
+                out.writeByte(0xc0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.writeByte(0xf0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                out.writeByte(0x80 | (codePoint & 0x3f));
+            }
+            else if(Character.isSurrogate(c)){
+                throw new EncodeException("unpaired surrogate in string value");
+            }
+            else{
+                out.writeByte(0xe0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+        out.writeByte('"');
+    }
+
+    private static void writeControl(ByteBuf out, char c){
+        out.writeByte('\\');
+        switch (c){
+            case '\b':
+                out.writeByte('b');
+                break;
+            case '\t':
+                out.writeByte('t');
+                break;
+            case '\n':
+                out.writeByte('n');
+                break;
+            case '\f':
+                out.writeByte('f');
+                break;
+            case '\r':
+                out.writeByte('r');
+                break;
+            default:
+                out.writeByte('u');
+                out.writeByte('0');
+                out.writeByte('0');
+                out.writeByte(HEX[c >> 4]);
+                out.writeByte(HEX[c & 0xf]);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A single KairosDB instance together with the HTTP client used to reach it and the state used to balance load
+ * across instances: the outstanding requests, a moving average of response latency and whether the instance is
+ * currently considered healthy.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class KairosNode {
+
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String host;
+    private final int port;
+    private final HttpClient client;
+    private final ConnectionPoolMonitor monitor;
+    private CircuitBreaker circuitBreaker;
+
+    private double latency;
+    private boolean latencySampled;
+    private boolean healthy = true;
+    private int consecutiveFailures;
+
+    /**
+     * @param host the host name or ip address of the instance
+     * @param port the port of the REST interface
+     * @param client the HTTP client connected to the instance
+     * @param maxPoolSize the maximum pool size of the client
+     */
+    public KairosNode(String host, int port, HttpClient client, int maxPoolSize){
+        this.host = host;
+        this.port = port;
+        this.client = client;
+        this.monitor = new ConnectionPoolMonitor(maxPoolSize);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    public ConnectionPoolMonitor getMonitor() {
+        return monitor;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return whether the circuit breaker, if any, allows a request to be sent to this instance now
+     */
+    public boolean allowsRequest(long now){
+        return circuitBreaker == null || circuitBreaker.allowsRequest(now);
+    }
+
+    /**
+     * @return the exponentially weighted moving average of response latency in milliseconds
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return whether a response latency has been recorded for this instance
+     */
+    public boolean hasLatency() {
+        return latencySampled;
+    }
+
+    /**
+     * Record the latency of a response from this instance
+     *
+     * @param millis the latency in milliseconds
+     */
+    public void recordLatency(long millis){
+        latency = latencySampled ? (1 - LATENCY_WEIGHT) * latency + LATENCY_WEIGHT * millis : millis;
+        latencySampled = true;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Record a successful health check, bringing the instance back into use
+     */
+    public void healthCheckPassed(){
+        consecutiveFailures = 0;
+        healthy = true;
+    }
+
+    /**
+     * Record a failed health check, removing the instance from use once enough consecutive checks have failed
+     *
+     * @param failureThreshold the number of consecutive failures at which the instance is ejected
+     * @return whether this failure ejected the instance
+     */
+    public boolean healthCheckFailed(int failureThreshold){
+        consecutiveFailures++;
+        if(healthy && consecutiveFailures >= failureThreshold){
+            healthy = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the current state as a JSON object
+     */
+    public JsonObject toJson(){
+        JsonObject json = new JsonObject()
+            .putString("host", host)
+            .putNumber("port", port)
+            .putBoolean("healthy", healthy)
+            .putNumber("latency", latency)
+            .putObject("http_client", monitor.toJson());
+        if(circuitBreaker != null){
+            json.putObject("circuit_breaker", circuitBreaker.toJson());
+        }
+        return json;
+    }
+
+    @Override
+    public String toString(){
+        return host + ":" + port;
+    }
+}
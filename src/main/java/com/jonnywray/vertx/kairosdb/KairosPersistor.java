@@ -20,15 +20,33 @@ package com.jonnywray.vertx.kairosdb;
 
 import io.netty.handler.codec.http.HttpHeaders;
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpClient;
 import org.vertx.java.core.http.HttpClientRequest;
 import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.EncodeException;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Verticle implementing persistence service to the <a href="https://code.google.com/p/kairosdb/">KairosDB time series database</a>
@@ -53,11 +71,100 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
     private static final String TAG_NAMES_URI = BASE_URI + "tagnames";
     private static final String TAG_VALUES_URI = BASE_URI + "tagvalues";
 
+    private static final String BINARY_ADDRESS_SUFFIX = ".binary";
+    private static final String BINARY_ACTION = "add_binary_data_points";
+
+    private static final String DEFAULT_FORMAT = "pairs";
+    private static final String COLUMNAR_FORMAT = "columnar";
+
+    private static final Set<String> ACTION_CLASSES = new HashSet<>(Arrays.asList("write", "delete", "read"));
+
+    private static final Map<String, Long> DEFAULT_TIMEOUTS = new HashMap<>();
+    static {
+        DEFAULT_TIMEOUTS.put("add_data_points", 30000L);
+        DEFAULT_TIMEOUTS.put("delete_data_points", 60000L);
+        DEFAULT_TIMEOUTS.put("delete_metric", 60000L);
+        DEFAULT_TIMEOUTS.put("query_metrics", 60000L);
+        DEFAULT_TIMEOUTS.put("query_metric_tags", 30000L);
+        DEFAULT_TIMEOUTS.put("list_metric_names", 10000L);
+        DEFAULT_TIMEOUTS.put("list_tag_names", 10000L);
+        DEFAULT_TIMEOUTS.put("list_tag_values", 10000L);
+        DEFAULT_TIMEOUTS.put("version", 5000L);
+    }
+
+    private static final Set<String> COALESCED_ACTIONS = new HashSet<>(Arrays.asList("query_metrics", "query_metric_tags",
+            "list_metric_names", "list_tag_names", "list_tag_values", "version"));
+
     protected String address;
     protected String host;
     protected int port;
 
-    protected HttpClient client;
+    protected NodeSelector nodeSelector;
+    protected long healthCheckTimer = -1;
+    protected BodyCompressor compressor;
+    protected TelnetWriter telnetWriter;
+    protected TelnetFormatter telnetFormatter;
+
+    protected RequestCoalescer<Message<JsonObject>> coalescer;
+    protected QueryCache queryCache;
+    protected MetadataCache metadataCache;
+    protected long metadataRefreshTimer = -1;
+
+    protected DataPointBatcher<Message<JsonObject>> batcher;
+    protected long maxLinger;
+    private long lingerTimer = -1;
+
+    protected Map<String, InFlightLimiter<Object>> limiters = new HashMap<>();
+    private Map<Object, InFlightLimiter<Object>> admitted = new IdentityHashMap<>();
+
+    protected Map<String, RetryPolicy> retryPolicies = new HashMap<>();
+    private final Random random = new Random();
+    private long retries;
+    private long circuitRejections;
+    private long timedOut;
+    private long expired;
+    private long redispatched;
+
+    protected Map<String, Long> timeouts = new HashMap<>();
+
+    protected Map<String, ActionMetrics> actionMetrics = new TreeMap<>();
+    private Map<Message<?>, Long> queuedAt = new IdentityHashMap<>();
+    private long metricsReportTimer = -1;
+
+    protected WriteAheadSpool spool;
+    protected int spoolReplayBytes;
+    private long spoolReplayTimer = -1;
+    private long spoolSyncTimer = -1;
+    private boolean replaying;
+    private int spoolSingleRecords;
+    private long spoolDiscarded;
+
+    protected ShardRouter shardRouter;
+    protected int shardIndex = -1;
+    protected long forwardTimeout;
+    private final String shardOwner = UUID.randomUUID().toString();
+    private long forwarded;
+    private long forwardFailures;
+
+    protected ChangeFilter changeFilter;
+    private final Map<Message<?>, JsonObject> unwrittenPoints = new HashMap<>();
+    private final Map<Message<?>, List<JsonObject>> unwrittenSeries = new HashMap<>();
+
+    protected RollupAggregator rollups;
+    private long rollupTimer = -1;
+
+    protected boolean splitByDefault;
+    protected long splitSubRange;
+    protected int splitMaxParallel;
+    private long splitQueries;
+
+    protected QueryBatcher<Message<JsonObject>> queryBatcher;
+    protected long queryBatchWindow;
+    private long queryBatchFallbacks;
+
+    protected int streamChunkPoints;
+    protected int streamMaxQueuedChunks;
+    protected long streamTimeout;
 
     @Override
     public void start() {
@@ -67,12 +174,177 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
         host = getOptionalStringConfig("host", "localhost");
         port = getOptionalIntConfig("port", 8080);
         try{
-            client = vertx.createHttpClient()
-                .setPort(port)
-                .setHost(host)
-                .setKeepAlive(true)
-                .setSSL(false);
+            JsonObject shardingConfig = getOptionalObjectConfig("sharding", null);
+            if(shardingConfig != null){
+                startSharding(shardingConfig);
+            }
+            compressor = new BodyCompressor(BodyCompressor.parseMode(getOptionalStringConfig("compression", "off")),
+                    getOptionalIntConfig("compression_threshold", 1024));
+            JsonObject httpConfig = getOptionalObjectConfig("http_client", new JsonObject());
+            JsonArray hosts = getOptionalArrayConfig("hosts", null);
+            List<KairosNode> nodes = new ArrayList<>();
+            if(hosts == null){
+                nodes.add(createNode(host, port, httpConfig));
+            }
+            else{
+                for(Object hostObject : hosts){
+                    JsonObject hostConfig = (JsonObject) hostObject;
+                    nodes.add(createNode(hostConfig.getString("host", host), hostConfig.getInteger("port", port), httpConfig));
+                }
+            }
+            JsonObject breakerConfig = getOptionalObjectConfig("circuit_breaker", null);
+            if(breakerConfig != null){
+                Number failureRateThreshold = breakerConfig.getNumber("failure_rate_threshold");
+                for(KairosNode node : nodes){
+                    node.setCircuitBreaker(new CircuitBreaker(breakerConfig.getInteger("window_size", 20),
+                            breakerConfig.getInteger("minimum_requests", 10),
+                            failureRateThreshold == null ? 0.5 : failureRateThreshold.doubleValue(),
+                            breakerConfig.getLong("open_duration", 5000),
+                            breakerConfig.getInteger("half_open_requests", 1)));
+                }
+            }
+            nodeSelector = new NodeSelector(nodes,
+                    NodeSelector.parseStrategy(getOptionalStringConfig("load_balancing", "round_robin")));
+            JsonObject healthConfig = getOptionalObjectConfig("health_check", hosts == null ? null : new JsonObject());
+            if(healthConfig != null){
+                startHealthChecks(healthConfig);
+            }
+
+            for(String action : DEFAULT_TIMEOUTS.keySet()){
+                actionMetrics.put(action, new ActionMetrics(action));
+            }
+            actionMetrics.put("stats", new ActionMetrics("stats"));
+            actionMetrics.put(BINARY_ACTION, new ActionMetrics(BINARY_ACTION));
+            JsonObject reportingConfig = getOptionalObjectConfig("metrics_reporting", null);
+            if(reportingConfig != null){
+                startMetricsReporting(reportingConfig);
+            }
+
+            timeouts.putAll(DEFAULT_TIMEOUTS);
+            JsonObject timeoutConfig = getOptionalObjectConfig("timeouts", new JsonObject());
+            for(String action : timeoutConfig.getFieldNames()){
+                if(!DEFAULT_TIMEOUTS.containsKey(action)){
+                    throw new IllegalArgumentException("unsupported action in timeouts: " + action);
+                }
+                timeouts.put(action, timeoutConfig.getLong(action));
+            }
+
+            JsonObject retryConfig = getOptionalObjectConfig("retry", new JsonObject());
+            for(String actionClass : retryConfig.getFieldNames()){
+                if(!ACTION_CLASSES.contains(actionClass)){
+                    throw new IllegalArgumentException("unsupported action class in retry: " + actionClass);
+                }
+            }
+            retryPolicies.put("read", RetryPolicy.fromConfig(retryConfig.getObject("read"), 3));
+            retryPolicies.put("write", RetryPolicy.fromConfig(retryConfig.getObject("write"), 3));
+            retryPolicies.put("delete", RetryPolicy.fromConfig(retryConfig.getObject("delete"), 1));
+
+            String transport = getOptionalStringConfig("transport", "rest");
+            if(transport.equals("telnet")){
+                JsonObject telnetConfig = getOptionalObjectConfig("telnet", new JsonObject());
+                telnetFormatter = new TelnetFormatter(telnetConfig.getString("command", "put"));
+                List<String> telnetHosts = new ArrayList<>();
+                for(KairosNode node : nodes){
+                    telnetHosts.add(node.getHost());
+                }
+                telnetWriter = new TelnetWriter(vertx, container.logger(), telnetHosts,
+                        telnetConfig.getInteger("port", 4242),
+                        telnetConfig.getInteger("connections", 4),
+                        telnetConfig.getInteger("write_queue_max_size", 64 * 1024),
+                        telnetConfig.getInteger("max_pending", 10000),
+                        telnetConfig.getLong("reconnect_interval", 1000));
+                telnetWriter.start();
+            }
+            else if(!transport.equals("rest")){
+                throw new IllegalArgumentException("unsupported transport: " + transport);
+            }
+
+            if(getOptionalBooleanConfig("coalesce_requests", false)){
+                coalescer = new RequestCoalescer<>();
+            }
+
+            JsonObject cacheConfig = getOptionalObjectConfig("query_cache", null);
+            if(cacheConfig != null){
+                queryCache = new QueryCache(cacheConfig.getInteger("max_entries", 1000),
+                        cacheConfig.getLong("max_bytes", 64 * 1024 * 1024),
+                        cacheConfig.getLong("ttl", 60000),
+                        cacheConfig.getLong("relative_ttl", 5000));
+            }
+
+            JsonObject metadataConfig = getOptionalObjectConfig("metadata_cache", null);
+            if(metadataConfig != null){
+                metadataCache = new MetadataCache();
+                refreshMetadata();
+                metadataRefreshTimer = vertx.setPeriodic(metadataConfig.getLong("refresh_interval", 60000), new Handler<Long>() {
+                    @Override
+                    public void handle(Long timerId) {
+                        refreshMetadata();
+                    }
+                });
+            }
+
+            JsonObject batchConfig = getOptionalObjectConfig("batch", null);
+            if(batchConfig != null){
+                batcher = new DataPointBatcher<>(batchConfig.getInteger("max_points", 1000),
+                        batchConfig.getInteger("max_bytes", 1024 * 1024));
+                maxLinger = batchConfig.getLong("max_linger", 100);
+            }
+
+            JsonObject spoolConfig = getOptionalObjectConfig("spool", null);
+            if(spoolConfig != null){
+                startSpool(spoolConfig);
+            }
+
+            JsonObject filterConfig = getOptionalObjectConfig("filter", null);
+            if(filterConfig != null){
+                changeFilter = ChangeFilter.fromConfig(filterConfig);
+            }
+
+            JsonObject rollupConfig = getOptionalObjectConfig("rollup", null);
+            if(rollupConfig != null){
+                startRollups(rollupConfig);
+            }
+
+            JsonObject splitConfig = getOptionalObjectConfig("query_split", new JsonObject());
+            splitByDefault = splitConfig.getBoolean("enabled", false);
+            splitSubRange = splitConfig.getLong("sub_range", 86400000);
+            splitMaxParallel = splitConfig.getInteger("max_parallel", 4);
+            if(splitSubRange < 1 || splitMaxParallel < 1){
+                throw new IllegalArgumentException("query_split sub_range and max_parallel must be positive");
+            }
+
+            JsonObject queryBatchConfig = getOptionalObjectConfig("query_batch", null);
+            if(queryBatchConfig != null){
+                queryBatchWindow = queryBatchConfig.getLong("window", 5);
+                int maxMetrics = queryBatchConfig.getInteger("max_metrics", 100);
+                if(queryBatchWindow < 1 || maxMetrics < 1){
+                    throw new IllegalArgumentException("query_batch window and max_metrics must be positive");
+                }
+                queryBatcher = new QueryBatcher<>(maxMetrics);
+            }
+
+            JsonObject streamConfig = getOptionalObjectConfig("stream", new JsonObject());
+            streamChunkPoints = streamConfig.getInteger("chunk_points", 10000);
+            streamMaxQueuedChunks = streamConfig.getInteger("max_queued_chunks", 4);
+            streamTimeout = streamConfig.getLong("timeout", 30000);
+
+            JsonObject limitsConfig = getOptionalObjectConfig("limits", new JsonObject());
+            for(String actionClass : limitsConfig.getFieldNames()){
+                if(!ACTION_CLASSES.contains(actionClass)){
+                    throw new IllegalArgumentException("unsupported action class in limits: " + actionClass);
+                }
+                JsonObject limitConfig = limitsConfig.getObject(actionClass);
+                limiters.put(actionClass, new InFlightLimiter<Object>(
+                        limitConfig.getInteger("max_in_flight", 64),
+                        limitConfig.getInteger("max_queued", 1000)));
+            }
             eb.registerHandler(address, this);
+            eb.registerHandler(address + BINARY_ADDRESS_SUFFIX, new Handler<Message<Buffer>>() {
+                @Override
+                public void handle(Message<Buffer> message) {
+                    handleBinary(message);
+                }
+            });
 
             container.logger().info("successfully started KairosDB persistor module");
         }
@@ -84,17 +356,241 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
 
     @Override
     public void stop(){
-        if(client != null){
-            client.close();
+        if(batcher != null){
+            DataPointBatcher.Batch<Message<JsonObject>> batch = batcher.drain();
+            if(batch != null){
+                spoolOrFail(batch.getTokens(), batch.getBody(), "persistor stopped before data points were written");
+            }
+        }
+        if(rollupTimer != -1){
+            vertx.cancelTimer(rollupTimer);
+        }
+        if(queryBatcher != null){
+            for(String key : queryBatcher.getKeys()){
+                QueryBatcher.Batch<Message<JsonObject>> batch = queryBatcher.drain(key);
+                vertx.cancelTimer(batch.getTimer());
+                for(Message<JsonObject> message : batch.getTokens()){
+                    sendError(message, "persistor stopped before metrics were queried");
+                }
+            }
+        }
+        if(rollups != null){
+            JsonArray remaining = rollups.closeAll();
+            if(remaining.size() > 0 && !spool(JsonBodyEncoder.encode(remaining))){
+                container.logger().error("persistor stopped before " + remaining.size() + " rollup data points were written");
+            }
+        }
+        if(metricsReportTimer != -1){
+            vertx.cancelTimer(metricsReportTimer);
+        }
+        if(spoolReplayTimer != -1){
+            vertx.cancelTimer(spoolReplayTimer);
+        }
+        if(shardRouter != null && shardIndex != -1){
+            ConcurrentMap<String, String> claims = vertx.sharedData().getMap(address + ".shards");
+            shardRouter.release(claims, shardOwner, shardIndex);
+        }
+        if(spoolSyncTimer != -1){
+            vertx.cancelTimer(spoolSyncTimer);
+        }
+        if(telnetWriter != null){
+            telnetWriter.close();
+        }
+        if(spool != null){
+            spool.close();
+        }
+        if(healthCheckTimer != -1){
+            vertx.cancelTimer(healthCheckTimer);
+        }
+        if(metadataRefreshTimer != -1){
+            vertx.cancelTimer(metadataRefreshTimer);
+        }
+        if(nodeSelector != null){
+            for(KairosNode node : nodeSelector.getNodes()){
+                node.getClient().close();
+            }
+        }
+    }
+
+    private KairosNode createNode(String nodeHost, int nodePort, JsonObject httpConfig){
+        int maxPoolSize = httpConfig.getInteger("max_pool_size", 5);
+        HttpClient client = vertx.createHttpClient()
+            .setPort(nodePort)
+            .setHost(nodeHost)
+            .setKeepAlive(true)
+            .setMaxPoolSize(maxPoolSize)
+            .setConnectTimeout(httpConfig.getInteger("connect_timeout", 60000))
+            .setTCPNoDelay(httpConfig.getBoolean("tcp_no_delay", true))
+            .setTCPKeepAlive(httpConfig.getBoolean("tcp_keep_alive", true))
+            .setReuseAddress(httpConfig.getBoolean("reuse_address", true))
+            .setUsePooledBuffers(httpConfig.getBoolean("use_pooled_buffers", false))
+            .setTryUseCompression(compressor.isEnabled())
+            .setSSL(false);
+        if(httpConfig.getInteger("send_buffer_size") != null){
+            client.setSendBufferSize(httpConfig.getInteger("send_buffer_size"));
+        }
+        if(httpConfig.getInteger("receive_buffer_size") != null){
+            client.setReceiveBufferSize(httpConfig.getInteger("receive_buffer_size"));
+        }
+        return new KairosNode(nodeHost, nodePort, client, maxPoolSize);
+    }
+
+    private void startHealthChecks(JsonObject healthConfig){
+        final long timeout = healthConfig.getLong("timeout", 2000);
+        final long maxLatency = healthConfig.getLong("max_latency", 1000);
+        final int failureThreshold = healthConfig.getInteger("failures", 2);
+        healthCheckTimer = vertx.setPeriodic(healthConfig.getLong("interval", 5000), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                for(KairosNode node : nodeSelector.getNodes()){
+                    checkHealth(node, timeout, maxLatency, failureThreshold);
+                }
+            }
+        });
+    }
+
+    private void checkHealth(final KairosNode node, long timeout, final long maxLatency, final int failureThreshold){
+        final long start = System.currentTimeMillis();
+        HttpClientRequest request = node.getClient().get(VERSION_URI, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(final HttpClientResponse response) {
+                response.bodyHandler(new Handler<Buffer>() {
+                    public void handle(Buffer body) {
+                        long latency = System.currentTimeMillis() - start;
+                        if(response.statusCode() == 200 && latency <= maxLatency){
+                            if(!node.isHealthy()){
+                                container.logger().info("KairosDB node " + node + " is healthy again");
+                            }
+                            node.healthCheckPassed();
+                        }
+                        else{
+                            healthCheckFailed(node, failureThreshold, response.statusCode() + " " + response.statusMessage() + " in " + latency + "ms");
+                        }
+                    }
+                });
+            }
+        });
+        request.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                healthCheckFailed(node, failureThreshold, throwable.getMessage());
+            }
+        });
+        request.setTimeout(timeout);
+        request.end();
+    }
+
+    private void healthCheckFailed(KairosNode node, int failureThreshold, String reason){
+        if(node.healthCheckFailed(failureThreshold)){
+            container.logger().warn("KairosDB node " + node + " failed health check and was removed: " + reason);
         }
     }
 
     public void handle(Message<JsonObject> message) {
+        if(shardRouter != null && "add_data_points".equals(message.body().getString("action"))){
+            int shard = shardRouter.shardFor(message.body().getObject("datapoints"));
+            if(shard != -1 && shard != shardIndex){
+                forward(shard, message);
+                return;
+            }
+        }
+        process(message);
+    }
+
+    /**
+     * Claim a shard index and listen on its address for data points routed from the other instances
+     */
+    private void startSharding(JsonObject shardingConfig){
+        forwardTimeout = shardingConfig.getLong("forward_timeout", 60000);
+        ConcurrentMap<String, String> claims = vertx.sharedData().getMap(address + ".shards");
+        shardRouter = new ShardRouter(address, ShardRouter.node(claims, shardOwner), shardingConfig.getInteger("shards", 1));
+        shardIndex = shardRouter.claim(claims, shardOwner);
+        if(shardIndex == -1){
+            throw new IllegalStateException("more instances deployed than the " + shardRouter.getShards() + " configured shards");
+        }
+        eb.registerHandler(shardRouter.shardAddress(shardIndex), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Message<JsonObject> message) {
+                process(message);
+            }
+        });
+        container.logger().info("KairosDB persistor instance claimed shard " + shardIndex + " of " + shardRouter.getShards());
+    }
+
+    /**
+     * Send a message to the instance owning its shard and relay the reply
+     */
+    private void forward(int shard, final Message<JsonObject> message){
+        forwarded++;
+        eb.sendWithTimeout(shardRouter.shardAddress(shard), message.body(), forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle(AsyncResult<Message<JsonObject>> result) {
+                if(result.succeeded()){
+                    message.reply(result.result().body());
+                }
+                else{
+                    forwardFailures++;
+                    sendError(message, "error forwarding data points to their shard: " + result.cause().getMessage());
+                }
+            }
+        });
+    }
+
+    private void process(Message<JsonObject> message) {
         String action = message.body().getString("action");
         if (action == null) {
             sendError(message, "action must be specified");
             return;
         }
+        ActionMetrics messageMetrics = metrics(action);
+        if(messageMetrics != null){
+            messageMetrics.requestReceived();
+        }
+        admit(action, message);
+    }
+
+    /**
+     * Coalesce a message with an identical one in flight, or pass it through its in flight limit to be dispatched. A
+     * message only joins a request whose deadline is no later than its own, otherwise it could wait beyond its deadline
+     */
+    private void admit(String action, Message<JsonObject> message){
+        if(coalescer != null && COALESCED_ACTIONS.contains(action) && !message.body().getBoolean("stream", false)){
+            String key = coalescingKey(action, message.body());
+            Message<JsonObject> leader = coalescer.getLeader(key);
+            if((leader == null || !expiresBefore(message, leader)) && coalescer.join(key, message)){
+                return;
+            }
+        }
+        InFlightLimiter<Object> limiter = limiters.get(actionClass(action));
+        if(limiter != null){
+            switch (limiter.offer(message)){
+                case ADMITTED:
+                    admitted.put(message, limiter);
+                    break;
+                case QUEUED:
+                    queuedAt.put(message, System.nanoTime());
+                    return;
+                case REJECTED:
+                    sendStatus("overloaded", message, new JsonObject()
+                        .putString("message", "too many " + actionClass(action) + " requests in progress"));
+                    return;
+            }
+        }
+        dispatch(action, message);
+    }
+
+    private void dispatch(String action, Message<JsonObject> message){
+        ActionMetrics messageMetrics = metrics(action);
+        Long queued = queuedAt.remove(message);
+        if(messageMetrics != null){
+            messageMetrics.dispatched(queued == null ? 0 : (System.nanoTime() - queued) / 1000);
+        }
+        Number deadline = message.body().getNumber("deadline");
+        if(deadline != null && deadline.longValue() <= System.currentTimeMillis()){
+            expired++;
+            sendDeadlineError(message, "deadline passed before the request was dispatched");
+            return;
+        }
         switch (action){
             case "add_data_points" :
                 addDataPoints(message);
@@ -123,38 +619,353 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
             case "version" :
                 version(message);
                 break;
+            case "stats" :
+                stats(message);
+                break;
             default:
                 sendError(message, "unsupported action specified: "+action);
         }
     }
 
-    private void writeObject(Message<JsonObject> message, HttpClientRequest request, JsonObject object){
+    @Override
+    protected void sendStatus(String status, Message<JsonObject> message, JsonObject json) {
+        List<Message<JsonObject>> followers = coalescer == null ? null : coalescer.complete(message);
+        if(followers != null){
+            for(Message<JsonObject> follower : followers){
+                super.sendStatus(status, follower, json == null ? null : json.copy());
+                recordReply(follower, status);
+            }
+        }
+        super.sendStatus(status, message, json);
+        recordReply(message, status);
+        JsonObject written = unwrittenPoints.remove(message);
+        if(written != null && "ok".equals(status)){
+            if(changeFilter != null){
+                changeFilter.written(written);
+            }
+            if(metadataCache != null){
+                metadataCache.observe(written);
+            }
+        }
+        release(message);
+    }
+
+    @Override
+    protected void sendError(Message<JsonObject> message, String error, Exception e) {
+        List<Message<JsonObject>> followers = coalescer == null ? null : coalescer.complete(message);
+        if(followers != null){
+            for(Message<JsonObject> follower : followers){
+                super.sendError(follower, error, e);
+                recordReply(follower, "error");
+            }
+        }
+        super.sendError(message, error, e);
+        recordReply(message, "error");
+        unwrittenPoints.remove(message);
+        release(message);
+    }
+
+    /**
+     * @return whether the caller deadline of a message is earlier than that of another, no deadline being the latest
+     */
+    private static boolean expiresBefore(Message<JsonObject> message, Message<JsonObject> other){
+        Number deadline = message.body().getNumber("deadline");
+        Number otherDeadline = other.body().getNumber("deadline");
+        return deadline != null && (otherDeadline == null || deadline.longValue() < otherDeadline.longValue());
+    }
+
+    /**
+     * Reply with an error to a message that ran out of time. Coalesced followers whose own deadline is later than the
+     * message's are not failed with it but admitted again, so they share a new request
+     */
+    private void sendDeadlineError(Message<JsonObject> message, String error){
+        List<Message<JsonObject>> followers = coalescer == null ? null : coalescer.complete(message);
+        sendError(message, error);
+        if(followers == null){
+            return;
+        }
+        for(Message<JsonObject> follower : followers){
+            if(expiresBefore(message, follower)){
+                redispatched++;
+                admit(follower.body().getString("action"), follower);
+            }
+            else{
+                super.sendError(follower, error, null);
+                recordReply(follower, "error");
+            }
+        }
+    }
+
+    /**
+     * Build the key identifying identical requests, ignoring the deadline which differs between callers
+     */
+    private static String coalescingKey(String action, JsonObject body){
+        if(body.getField("deadline") != null){
+            body = body.copy();
+            body.removeField("deadline");
+        }
+        return QueryCache.key(action, body);
+    }
+
+    /**
+     * Determine the class of an action for the purpose of in flight limits
+     *
+     * @param action the action
+     * @return the action class, or null if the action is not limited
+     */
+    protected static String actionClass(String action){
+        switch (action){
+            case "add_data_points":
+            case BINARY_ACTION:
+                return "write";
+            case "delete_data_points":
+            case "delete_metric":
+                return "delete";
+            case "stats":
+                return null;
+            default:
+                return "read";
+        }
+    }
+
+    private void recordReply(Message<JsonObject> message, String status){
+        ActionMetrics messageMetrics = metrics(message.body().getString("action"));
+        if(messageMetrics != null){
+            messageMetrics.replied(status);
+        }
+    }
+
+    /**
+     * Release the in flight slot held by a message or a batch of data points, executing the next request waiting for it
+     */
+    @SuppressWarnings("unchecked")
+    private void release(Object request){
+        InFlightLimiter<Object> limiter = admitted.remove(request);
+        if(limiter != null){
+            Object next = limiter.release();
+            if(next != null){
+                admitted.put(next, limiter);
+                if(next instanceof DataPointBatcher.Batch){
+                    writeBatch((DataPointBatcher.Batch<Message<JsonObject>>) next);
+                }
+                else if(((Message<?>) next).body() instanceof Buffer){
+                    addBinaryDataPoints((Message<Buffer>) next);
+                }
+                else{
+                    Message<JsonObject> nextMessage = (Message<JsonObject>) next;
+                    dispatch(nextMessage.body().getString("action"), nextMessage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a request to a KairosDB instance, retrying connection failures and server errors according to the retry
+     * policy. The response handler receives the first response that is not a server error, or the last response if
+     * every attempt failed
+     */
+    private void send(String action, String method, String uri, Buffer body, boolean compressible, RetryPolicy retryPolicy,
+                      long deadline, Handler<Throwable> exceptionHandler, Handler<HttpClientResponse> responseHandler){
+        send(metrics(action), method, uri, body, compressible, retryPolicy, deadline, 1, exceptionHandler, responseHandler);
+    }
+
+    private void send(final ActionMetrics actionMetrics, final String method, final String uri, final Buffer body,
+                      final boolean compressible, final RetryPolicy retryPolicy, final long deadline, final int attempt,
+                      final Handler<Throwable> exceptionHandler, final Handler<HttpClientResponse> responseHandler){
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        if(start >= deadline){
+            expired++;
+            exceptionHandler.handle(new TimeoutException("deadline passed before the request was sent"));
+            return;
+        }
+        final KairosNode node = nodeSelector.select(start);
+        if(node == null){
+            circuitRejections++;
+            exceptionHandler.handle(new IOException("no KairosDB instance available, circuit breakers are open"));
+            return;
+        }
+        final CircuitBreaker circuitBreaker = node.getCircuitBreaker();
+        if(circuitBreaker != null){
+            circuitBreaker.requestStarted(start);
+        }
+        node.getMonitor().requestStarted();
+        HttpClientRequest request = node.getClient().request(method, uri, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                long now = System.currentTimeMillis();
+                node.getMonitor().requestCompleted();
+                node.recordLatency(now - start);
+                if(actionMetrics != null){
+                    actionMetrics.responseReceived(response.statusCode(), (System.nanoTime() - startNanos) / 1000);
+                }
+                boolean serverError = response.statusCode() >= 500;
+                if(circuitBreaker != null){
+                    if(serverError){
+                        circuitBreaker.recordFailure(now);
+                    }
+                    else{
+                        circuitBreaker.recordSuccess();
+                    }
+                }
+                if(serverError && retryPolicy.canRetry(attempt)){
+                    retry(actionMetrics, method, uri, body, compressible, retryPolicy, deadline, attempt, exceptionHandler, responseHandler);
+                    return;
+                }
+                responseHandler.handle(response);
+            }
+        });
+        request.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                node.getMonitor().requestCompleted();
+                if(throwable instanceof TimeoutException){
+                    timedOut++;
+                }
+                if(circuitBreaker != null){
+                    circuitBreaker.recordFailure(System.currentTimeMillis());
+                }
+                if(retryPolicy.canRetry(attempt)){
+                    retry(actionMetrics, method, uri, body, compressible, retryPolicy, deadline, attempt, exceptionHandler, responseHandler);
+                    return;
+                }
+                exceptionHandler.handle(throwable);
+            }
+        });
+        request.setTimeout(deadline - start);
+        if(body == null){
+            request.end();
+        }
+        else{
+            int sent = writeBody(request, body, compressible);
+            if(actionMetrics != null){
+                actionMetrics.sent(sent);
+            }
+        }
+    }
+
+    private void retry(final ActionMetrics actionMetrics, final String method, final String uri, final Buffer body, final boolean compressible,
+                       final RetryPolicy retryPolicy, final long deadline, final int attempt,
+                       final Handler<Throwable> exceptionHandler, final Handler<HttpClientResponse> responseHandler){
+        retries++;
+        vertx.setTimer(Math.max(1, retryPolicy.delay(attempt, random)), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                send(actionMetrics, method, uri, body, compressible, retryPolicy, deadline, attempt + 1, exceptionHandler, responseHandler);
+            }
+        });
+    }
+
+    /**
+     * Determine the time by which a request to KairosDB must complete: the configured timeout for the action, or
+     * the deadline in the message if that is sooner
+     */
+    private long deadline(String action, Message<JsonObject> message){
+        long deadline = System.currentTimeMillis() + timeouts.get(action);
+        Number requested = message == null ? null : message.body().getNumber("deadline");
+        return requested == null ? deadline : Math.min(deadline, requested.longValue());
+    }
+
+    private static String listAction(MetadataCache.Kind kind){
+        return "list_" + kind.name().toLowerCase();
+    }
+
+    private Handler<Throwable> failureHandler(final Message<JsonObject> message, final String errorContext){
+        return new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                String errorMessage = errorContext + ": " + throwable.getMessage();
+                container.logger().error(errorMessage, throwable);
+                if(throwable instanceof TimeoutException){
+                    sendDeadlineError(message, errorMessage);
+                }
+                else{
+                    sendError(message, errorMessage);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reply with an error to a message whose KairosDB response could not be parsed, so that it is not left without a
+     * reply holding its in flight slot
+     */
+    private void parseFailed(Message<JsonObject> message, String errorContext, RuntimeException e){
+        String errorMessage = errorContext + ": unable to parse response: " + e.getMessage();
+        container.logger().error(errorMessage, e);
+        sendError(message, errorMessage);
+    }
+
+    private JsonObject parseResponse(String action, Buffer body){
+        return parseResponse(action, body, false, null);
+    }
+
+    private JsonObject parseResponse(String action, Buffer body, boolean columnar, Downsampler downsampler){
+        long start = System.nanoTime();
+        JsonObject responseObject = QueryResponseParser.parse(body, columnar, downsampler);
+        ActionMetrics actionMetrics = metrics(action);
+        if(actionMetrics != null){
+            actionMetrics.parsed(body.length(), (System.nanoTime() - start) / 1000);
+        }
+        return responseObject;
+    }
+
+    /**
+     * @param action the action name, or null for requests made by the module itself
+     * @return the metrics of the action, or null if the action is not recognised
+     */
+    private ActionMetrics metrics(String action){
+        return action == null ? null : actionMetrics.get(action);
+    }
+
+    private Buffer encode(Message<JsonObject> message, JsonObject object){
         try{
-            String encodedObject = object.encode();
-            request.putHeader(HttpHeaders.Names.CONTENT_TYPE, JSON_CONTENT_TYPE)
-                .putHeader(HttpHeaders.Names.CONTENT_LENGTH, Integer.toString(encodedObject.getBytes("UTF-8").length))
-                .write(encodedObject)
-                .end();
-        }
-        catch (UnsupportedEncodingException e){
-            container.logger().error("error converting JSON objects to byte[] with UTF-8 encoding", e);
+            return JsonBodyEncoder.encode(object);
+        }
+        catch (EncodeException e){
+            container.logger().error("error encoding JSON object as a request body", e);
             sendError(message, "unable to encode command body");
+            return null;
+        }
+    }
+
+    private int writeBody(HttpClientRequest request, Buffer body, boolean compressible){
+        request.putHeader(HttpHeaders.Names.CONTENT_TYPE, JSON_CONTENT_TYPE);
+        if(compressible && compressor.shouldCompress(body.length())){
+            try{
+                body = compressor.compress(body.getBytes());
+                request.putHeader(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+            }
+            catch (IOException e){
+                container.logger().error("error compressing request body, sending uncompressed", e);
+            }
         }
+        request.putHeader(HttpHeaders.Names.CONTENT_LENGTH, Integer.toString(body.length()))
+            .write(body)
+            .end();
+        return body.length();
     }
 
     private void deleteDataPoints(final Message<JsonObject> message){
-        JsonObject query = message.body().getObject("query");
+        final JsonObject query = message.body().getObject("query");
         if (query == null) {
             sendError(message, "metric query must be specified");
             return;
         }
-        HttpClientRequest request = client.post(DELETE_DATAPOINTS_URI, new Handler<HttpClientResponse>() {
+        final Buffer body = encode(message, query);
+        if(body == null){
+            return;
+        }
+        send("delete_data_points", "POST", DELETE_DATAPOINTS_URI, body, false, retryPolicies.get("delete"), deadline("delete_data_points", message), failureHandler(message, "error deleting data points"), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
                         int responseCode = response.statusCode();
                         if (responseCode == 204) {
+                            if(queryCache != null){
+                                queryCache.invalidateQuery(query);
+                            }
                             sendOK(message);
                         } else {
                             String errorMessage = "error deleting data points: " + response.statusCode() + " " + response.statusMessage();
@@ -165,23 +976,124 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
                 });
             }
         });
-        writeObject(message, request, query);
     }
 
     private void queryMetrics(final Message<JsonObject> message){
-        JsonObject query = message.body().getObject("query");
+        final JsonObject query = message.body().getObject("query");
         if (query == null) {
             sendError(message, "metric query must be specified");
             return;
         }
-        HttpClientRequest request = client.post(QUERY_DATAPOINTS_URI, new Handler<HttpClientResponse>() {
+        if(message.body().getBoolean("stream", false)){
+            streamQueryMetrics(message, query);
+            return;
+        }
+        String format = message.body().getString("format", DEFAULT_FORMAT);
+        if(!DEFAULT_FORMAT.equals(format) && !COLUMNAR_FORMAT.equals(format)){
+            sendError(message, "unsupported format: " + format);
+            return;
+        }
+        try{
+            downsampler(message);
+        }
+        catch (IllegalArgumentException e){
+            sendError(message, e.getMessage());
+            return;
+        }
+        final String cacheKey = queryCacheKey(message, query);
+        if(cacheKey != null){
+            JsonObject cached = queryCache.get(cacheKey, System.currentTimeMillis());
+            if(cached != null){
+                sendOK(message, cached.copy());
+                return;
+            }
+        }
+        if(DEFAULT_FORMAT.equals(replyForm(message)) && message.body().getBoolean("split", splitByDefault)){
+            List<JsonObject> splits = QuerySplitter.split(query, splitSubRange, System.currentTimeMillis());
+            if(splits != null){
+                new SplitQuery(message, query, splits, cacheKey).start();
+                return;
+            }
+        }
+        if(queryBatcher != null && message.body().getBoolean("batch", true)){
+            String batchKey = QueryBatcher.key(query);
+            if(batchKey != null){
+                batchQuery(replyForm(message) + ":" + batchKey, message, query);
+                return;
+            }
+        }
+        sendQueryMetrics(message, query, cacheKey);
+    }
+
+    private static boolean isColumnar(Message<JsonObject> message){
+        return COLUMNAR_FORMAT.equals(message.body().getString("format"));
+    }
+
+    /**
+     * @return the downsampler requested by a query metrics message, or null if every point is to be returned
+     * @throws IllegalArgumentException if the downsampling parameters are not valid
+     */
+    private static Downsampler downsampler(Message<JsonObject> message){
+        Integer maxPoints = message.body().getInteger("max_points");
+        if(maxPoints == null){
+            return null;
+        }
+        return new Downsampler(Downsampler.Method.fromName(message.body().getString("downsample", "lttb")), maxPoints);
+    }
+
+    /**
+     * @return the format of the reply to a query metrics message, and the downsampling if any
+     */
+    private static String replyForm(Message<JsonObject> message){
+        String form = message.body().getString("format", DEFAULT_FORMAT);
+        Downsampler downsampler = downsampler(message);
+        return downsampler == null ? form : form + ":" + downsampler.getMethod() + ":" + downsampler.getMaxPoints();
+    }
+
+    /**
+     * @return the query cache key of a query metrics message, distinguishing the reply forms, or null if results
+     * are not cached
+     */
+    private String queryCacheKey(Message<JsonObject> message, JsonObject query){
+        if(queryCache == null){
+            return null;
+        }
+        String form = replyForm(message);
+        return QueryCache.key(DEFAULT_FORMAT.equals(form) ? "query_metrics" : "query_metrics:" + form, query);
+    }
+
+    /**
+     * @return the query cache invalidation generation, taken as a query is sent so its result is not cached if data is
+     * deleted while it is in flight
+     */
+    private long cacheGeneration(){
+        return queryCache == null ? 0 : queryCache.getGeneration();
+    }
+
+    private void sendQueryMetrics(final Message<JsonObject> message, final JsonObject query, final String cacheKey){
+        final Buffer body = encode(message, query);
+        if(body == null){
+            return;
+        }
+        final long generation = cacheGeneration();
+        send("query_metrics", "POST", QUERY_DATAPOINTS_URI, body, false, retryPolicies.get("read"), deadline("query_metrics", message), failureHandler(message, "error querying metrics"), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
                         int responseCode = response.statusCode();
                         if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
+                            JsonObject responseObject;
+                            try{
+                                responseObject = parseResponse("query_metrics", body, isColumnar(message), downsampler(message));
+                            }
+                            catch (RuntimeException e){
+                                parseFailed(message, "error querying metrics", e);
+                                return;
+                            }
+                            if(cacheKey != null){
+                                queryCache.put(cacheKey, query, responseObject.copy(), body.length(), generation, System.currentTimeMillis());
+                            }
                             sendOK(message, responseObject);
                         } else {
                             String errorMessage = "error querying metrics: " + response.statusCode() + " " + response.statusMessage();
@@ -192,23 +1104,309 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
                 });
             }
         });
-        writeObject(message, request, query);
+    }
+
+    private void batchQuery(final String key, Message<JsonObject> message, JsonObject query){
+        QueryBatcher.Batch<Message<JsonObject>> batch = queryBatcher.add(key, query, message);
+        if(queryBatcher.isFull(key)){
+            if(batch.getTimer() != -1){
+                vertx.cancelTimer(batch.getTimer());
+            }
+            flushQueryBatch(key);
+        }
+        else if(batch.size() == 1){
+            batch.setTimer(vertx.setTimer(queryBatchWindow, new Handler<Long>() {
+                @Override
+                public void handle(Long timerId) {
+                    flushQueryBatch(key);
+                }
+            }));
+        }
+    }
+
+    private void flushQueryBatch(String key){
+        final QueryBatcher.Batch<Message<JsonObject>> batch = queryBatcher.drain(key);
+        if(batch == null){
+            return;
+        }
+        if(batch.size() == 1){
+            Message<JsonObject> message = batch.getTokens().get(0);
+            JsonObject query = batch.getQueries().get(0);
+            sendQueryMetrics(message, query, queryCacheKey(message, query));
+            return;
+        }
+        long deadline = Long.MAX_VALUE;
+        for(Message<JsonObject> message : batch.getTokens()){
+            deadline = Math.min(deadline, deadline("query_metrics", message));
+        }
+        final Buffer body;
+        try{
+            body = JsonBodyEncoder.encode(batch.getQuery());
+        }
+        catch (EncodeException e){
+            unbatchQueries(batch, "error encoding batched metrics query");
+            return;
+        }
+        final long generation = cacheGeneration();
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                failQueryBatch(batch, "error querying batched metrics: " + throwable.getMessage(), throwable instanceof TimeoutException);
+            }
+        };
+        send("query_metrics", "POST", QUERY_DATAPOINTS_URI, body, false, retryPolicies.get("read"), deadline, exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(final HttpClientResponse response) {
+                response.bodyHandler(new Handler<Buffer>() {
+                    public void handle(Buffer body) {
+                        String errorMessage = "error querying batched metrics: " + response.statusCode() + " " + response.statusMessage();
+                        if(response.statusCode() >= 500){
+                            failQueryBatch(batch, errorMessage, false);
+                            return;
+                        }
+                        if(response.statusCode() != 200){
+                            unbatchQueries(batch, errorMessage);
+                            return;
+                        }
+                        JsonObject combined;
+                        try{
+                            Message<JsonObject> first = batch.getTokens().get(0);
+                            combined = parseResponse("query_metrics", body, isColumnar(first), downsampler(first));
+                        }
+                        catch (RuntimeException e){
+                            failQueryBatch(batch, "error querying batched metrics: unable to parse response: " + e.getMessage(), false);
+                            return;
+                        }
+                        List<JsonObject> responses;
+                        try{
+                            responses = batch.demultiplex(combined);
+                        }
+                        catch (IllegalArgumentException e){
+                            unbatchQueries(batch, "error querying batched metrics: " + e.getMessage());
+                            return;
+                        }
+                        long now = System.currentTimeMillis();
+                        for(int i=0;i<batch.size();i++){
+                            JsonObject query = batch.getQueries().get(i);
+                            JsonObject responseObject = responses.get(i);
+                            if(queryCache != null){
+                                queryCache.put(queryCacheKey(batch.getTokens().get(i), query), query, responseObject.copy(),
+                                        body.length() / batch.size(), generation, now);
+                            }
+                            sendOK(batch.getTokens().get(i), responseObject);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fail every query of a batch whose request failed for a reason none of its queries can be blamed for, such as a
+     * timeout or a server error. The request has already been retried, so querying individually would only add load
+     */
+    private void failQueryBatch(QueryBatcher.Batch<Message<JsonObject>> batch, String errorMessage, boolean timedOut){
+        container.logger().error(errorMessage);
+        for(Message<JsonObject> message : batch.getTokens()){
+            if(timedOut){
+                sendDeadlineError(message, errorMessage);
+            }
+            else{
+                sendError(message, errorMessage);
+            }
+        }
+    }
+
+    /**
+     * One invalid query fails the whole batched request, so the queries are retried individually to give each caller
+     * its own result or error
+     */
+    private void unbatchQueries(QueryBatcher.Batch<Message<JsonObject>> batch, String errorMessage){
+        container.logger().warn(errorMessage + ", querying individually");
+        queryBatchFallbacks++;
+        for(int i=0;i<batch.size();i++){
+            JsonObject query = batch.getQueries().get(i);
+            sendQueryMetrics(batch.getTokens().get(i), query, queryCacheKey(batch.getTokens().get(i), query));
+        }
+    }
+
+    /**
+     * The queries of the sub-ranges of a query, run at most the configured number at once. The reply is the merged
+     * results once all have completed, or the first error
+     */
+    private class SplitQuery {
+
+        private final Message<JsonObject> message;
+        private final JsonObject query;
+        private final List<JsonObject> splits;
+        private final String cacheKey;
+        private final long deadline;
+        private final long generation;
+        private final JsonObject[] responses;
+        private int started;
+        private int completed;
+        private int bytes;
+        private boolean failed;
+
+        private SplitQuery(Message<JsonObject> message, JsonObject query, List<JsonObject> splits, String cacheKey){
+            this.message = message;
+            this.query = query;
+            this.splits = splits;
+            this.cacheKey = cacheKey;
+            this.deadline = deadline("query_metrics", message);
+            this.generation = cacheGeneration();
+            this.responses = new JsonObject[splits.size()];
+        }
+
+        private void start(){
+            splitQueries++;
+            for(int i=0;i<Math.min(splitMaxParallel, splits.size());i++){
+                startNext();
+            }
+        }
+
+        private void startNext(){
+            if(failed || started == splits.size()){
+                return;
+            }
+            final int index = started++;
+            Buffer body = encode(message, splits.get(index));
+            if(body == null){
+                failed = true;
+                return;
+            }
+            Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+                @Override
+                public void handle(Throwable throwable) {
+                    fail("error querying metrics: " + throwable.getMessage(), throwable instanceof TimeoutException);
+                }
+            };
+            send("query_metrics", "POST", QUERY_DATAPOINTS_URI, body, false, retryPolicies.get("read"), deadline, exceptionHandler, new Handler<HttpClientResponse>() {
+                @Override
+                public void handle(final HttpClientResponse response) {
+                    response.bodyHandler(new Handler<Buffer>() {
+                        public void handle(Buffer body) {
+                            if(response.statusCode() == 200){
+                                completed(index, body);
+                            }
+                            else{
+                                fail("error querying metrics: " + response.statusCode() + " " + response.statusMessage(), false);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void completed(int index, Buffer body){
+            if(failed){
+                return;
+            }
+            try{
+                responses[index] = parseResponse("query_metrics", body);
+            }
+            catch (RuntimeException e){
+                fail("error parsing metrics query response: " + e.getMessage(), false);
+                return;
+            }
+            bytes += body.length();
+            if(++completed < splits.size()){
+                startNext();
+                return;
+            }
+            JsonObject merged = QuerySplitter.merge(query, Arrays.asList(responses));
+            if(cacheKey != null){
+                queryCache.put(cacheKey, query, merged.copy(), bytes, generation, System.currentTimeMillis());
+            }
+            sendOK(message, merged);
+        }
+
+        private void fail(String errorMessage, boolean timedOut){
+            if(!failed){
+                failed = true;
+                container.logger().error(errorMessage);
+                if(timedOut){
+                    sendDeadlineError(message, errorMessage);
+                }
+                else{
+                    sendError(message, errorMessage);
+                }
+            }
+        }
+    }
+
+    private void streamQueryMetrics(final Message<JsonObject> message, JsonObject query){
+        final int chunkPoints = message.body().getInteger("chunk_points", streamChunkPoints);
+        if(chunkPoints <= 0){
+            sendError(message, "chunk_points must be positive");
+            return;
+        }
+        final Buffer body = encode(message, query);
+        if(body == null){
+            return;
+        }
+        send("query_metrics", "POST", QUERY_DATAPOINTS_URI, body, false, retryPolicies.get("read"), deadline("query_metrics", message), failureHandler(message, "error querying metrics"), new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(final HttpClientResponse response) {
+                if (response.statusCode() == 200) {
+                    new QueryResultStream(message, response, chunkPoints, streamMaxQueuedChunks, streamTimeout,
+                            container.logger()).endHandler(new Handler<Void>() {
+                        @Override
+                        public void handle(Void event) {
+                            recordReply(message, "streamed");
+                            release(message);
+                        }
+                    }).start();
+                } else {
+                    response.bodyHandler(new Handler<Buffer>() {
+                        public void handle(Buffer body) {
+                            String errorMessage = "error querying metrics: " + response.statusCode() + " " + response.statusMessage();
+                            container.logger().error(errorMessage);
+                            sendError(message, errorMessage);
+                        }
+                    });
+                }
+            }
+        });
     }
 
     private void queryMetricTags(final Message<JsonObject> message){
-        JsonObject query = message.body().getObject("query");
+        final JsonObject query = message.body().getObject("query");
         if (query == null) {
             sendError(message, "metric query must be specified");
             return;
         }
-        HttpClientRequest request = client.post(QUERY_DATAPOINTS_TAGS_URI, new Handler<HttpClientResponse>() {
+        final String cacheKey = queryCache == null ? null : QueryCache.key("query_metric_tags", query);
+        if(cacheKey != null){
+            JsonObject cached = queryCache.get(cacheKey, System.currentTimeMillis());
+            if(cached != null){
+                sendOK(message, cached.copy());
+                return;
+            }
+        }
+        final Buffer body = encode(message, query);
+        if(body == null){
+            return;
+        }
+        final long generation = cacheGeneration();
+        send("query_metric_tags", "POST", QUERY_DATAPOINTS_TAGS_URI, body, false, retryPolicies.get("read"), deadline("query_metric_tags", message), failureHandler(message, "error querying metric tags"), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
                         int responseCode = response.statusCode();
                         if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
+                            JsonObject responseObject;
+                            try{
+                                responseObject = parseResponse("query_metric_tags", body);
+                            }
+                            catch (RuntimeException e){
+                                parseFailed(message, "error querying metric tags", e);
+                                return;
+                            }
+                            if(cacheKey != null){
+                                queryCache.put(cacheKey, query, responseObject.copy(), body.length(), generation, System.currentTimeMillis());
+                            }
                             sendOK(message, responseObject);
                         } else {
                             String errorMessage = "error querying metric tags: " + response.statusCode() + " " + response.statusMessage();
@@ -219,22 +1417,24 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
                 });
             }
         });
-        writeObject(message, request, query);
     }
 
     private void deleteMetric(final Message<JsonObject> message) {
-        String metricName = message.body().getString("metric_name");
+        final String metricName = message.body().getString("metric_name");
         if (metricName == null) {
             sendError(message, "metric name must be specified");
             return;
         }
-        HttpClientRequest request = client.delete(String.format(DELETE_METRIC_URI, metricName), new Handler<HttpClientResponse>() {
+        send("delete_metric", "DELETE", String.format(DELETE_METRIC_URI, metricName), null, false, retryPolicies.get("delete"), deadline("delete_metric", message), failureHandler(message, "error deleting metric"), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
             response.bodyHandler(new Handler<Buffer>() {
                 public void handle(Buffer body) {
                 int responseCode = response.statusCode();
                 if (responseCode == 204) {
+                    if(queryCache != null){
+                        queryCache.invalidateMetric(metricName);
+                    }
                     sendOK(message);
                 }
                 else{
@@ -246,18 +1446,24 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
             });
             }
         });
-        request.end();
     }
 
     private void version(final Message<JsonObject> message) {
-        HttpClientRequest request = client.get(VERSION_URI, new Handler<HttpClientResponse>() {
+        send("version", "GET", VERSION_URI, null, false, retryPolicies.get("read"), deadline("version", message), failureHandler(message, "error requesting version"), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
                         int responseCode = response.statusCode();
                         if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
+                            JsonObject responseObject;
+                            try{
+                                responseObject = parseResponse("version", body);
+                            }
+                            catch (RuntimeException e){
+                                parseFailed(message, "error requesting version", e);
+                                return;
+                            }
                             sendOK(message, responseObject);
                         }
                         else{
@@ -269,11 +1475,58 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
                 });
             }
         });
-        request.end();
     }
 
     private void addDataPoints(final Message<JsonObject> message) {
-        HttpClientRequest request = client.post(ADD_DATAPOINTS_URI, new Handler<HttpClientResponse>() {
+        JsonObject dataPoints = message.body().getObject("datapoints");
+        if(dataPoints == null){
+            sendError(message, "data points object is not specified");
+            return;
+        }
+        JsonValidator validator = new JsonValidator();
+        if(!validator.validateDataPoints(dataPoints)){
+            sendError(message, "data points object was incorrectly formatted");
+            return;
+        }
+        if(rollups != null){
+            RollupAggregator.Rule rule = rollups.add(dataPoints, System.currentTimeMillis());
+            if(rule != null && !rule.isKeepRaw()){
+                sendOK(message, new JsonObject().putBoolean("rolled_up", true));
+                return;
+            }
+        }
+        if(changeFilter != null){
+            dataPoints = changeFilter.filter(dataPoints);
+            if(dataPoints == null){
+                sendOK(message, new JsonObject().putBoolean("filtered", true));
+                return;
+            }
+        }
+        if(changeFilter != null || metadataCache != null){
+            unwrittenPoints.put(message, dataPoints);
+        }
+        if(telnetWriter != null){
+            telnetDataPoints(message, dataPoints);
+            return;
+        }
+        if(batcher != null){
+            batchDataPoints(message, dataPoints);
+            return;
+        }
+        final Buffer body = encode(message, dataPoints);
+        if(body == null){
+            return;
+        }
+        final List<Message<JsonObject>> messages = Collections.singletonList(message);
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                String errorMessage = "error adding data points: " + throwable.getMessage();
+                container.logger().error(errorMessage, throwable);
+                spoolOrFail(messages, body, errorMessage);
+            }
+        };
+        send("add_data_points", "POST", ADD_DATAPOINTS_URI, body, true, retryPolicies.get("write"), deadline("add_data_points", message), exceptionHandler, new Handler<HttpClientResponse>() {
             @Override
             public void handle(HttpClientResponse response) {
             int responseCode = response.statusCode();
@@ -283,61 +1536,592 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
             else{
                 String errorMessage =  "error adding data points: " + response.statusCode() + " " + response.statusMessage();
                 container.logger().error(errorMessage);
-                sendError(message, errorMessage);
+                if(responseCode >= 500){
+                    spoolOrFail(messages, body, errorMessage);
+                }
+                else{
+                    sendError(message, errorMessage);
+                }
             }
             }
         });
+    }
 
-        JsonObject dataPoints = message.body().getObject("datapoints");
-        if(dataPoints == null){
-            sendError(message, "data points object is not specified");
+    private void handleBinary(Message<Buffer> message){
+        ActionMetrics binaryMetrics = metrics(BINARY_ACTION);
+        binaryMetrics.requestReceived();
+        InFlightLimiter<Object> limiter = limiters.get(actionClass(BINARY_ACTION));
+        if(limiter != null){
+            switch (limiter.offer(message)){
+                case ADMITTED:
+                    admitted.put(message, limiter);
+                    break;
+                case QUEUED:
+                    queuedAt.put(message, System.nanoTime());
+                    return;
+                case REJECTED:
+                    replyBinary(message, "overloaded", "too many write requests in progress", false);
+                    return;
+            }
+        }
+        addBinaryDataPoints(message);
+    }
+
+    /**
+     * Write a binary data points message, converting it straight into the JSON request body. Binary data points are
+     * always written over HTTP and are never batched, a single message can already carry many series
+     */
+    private void addBinaryDataPoints(final Message<Buffer> message){
+        Long queued = queuedAt.remove(message);
+        metrics(BINARY_ACTION).dispatched(queued == null ? 0 : (System.nanoTime() - queued) / 1000);
+        final Buffer body;
+        final List<JsonObject> series = new ArrayList<>();
+        try{
+            body = BinaryDataPoints.toJson(message.body(), metadataCache == null ? null : new BinaryDataPoints.Listener() {
+                @Override
+                public void series(String name, Map<String, String> tags) {
+                    series.add(new JsonObject().putString("name", name).putObject("tags", new JsonObject(new HashMap<String, Object>(tags))));
+                }
+            });
+        }
+        catch (IllegalArgumentException e){
+            replyBinary(message, "error", "binary data points message was incorrectly formatted: " + e.getMessage(), false);
             return;
         }
-        JsonValidator validator = new JsonValidator();
-        if(!validator.validateDataPoints(dataPoints)){
-            sendError(message, "data points object was incorrectly formatted");
+        if(metadataCache != null){
+            unwrittenSeries.put(message, series);
+        }
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                String errorMessage = "error adding data points: " + throwable.getMessage();
+                container.logger().error(errorMessage, throwable);
+                binarySpoolOrFail(message, body, errorMessage);
+            }
+        };
+        send(BINARY_ACTION, "POST", ADD_DATAPOINTS_URI, body, true, retryPolicies.get("write"), deadline("add_data_points", null), exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                int responseCode = response.statusCode();
+                if (responseCode == 204) {
+                    replyBinary(message, "ok", null, false);
+                }
+                else{
+                    String errorMessage =  "error adding data points: " + response.statusCode() + " " + response.statusMessage();
+                    container.logger().error(errorMessage);
+                    if(responseCode >= 500){
+                        binarySpoolOrFail(message, body, errorMessage);
+                    }
+                    else{
+                        replyBinary(message, "error", errorMessage, false);
+                    }
+                }
+            }
+        });
+    }
+
+    private void binarySpoolOrFail(Message<Buffer> message, Buffer body, String errorMessage){
+        if(spool(body)){
+            replyBinary(message, "ok", null, true);
+        }
+        else{
+            replyBinary(message, "error", errorMessage, false);
+        }
+    }
+
+    /**
+     * Reply to a binary data points message in the same form as the replies to JSON messages
+     */
+    private void replyBinary(Message<Buffer> message, String status, String errorMessage, boolean spooled){
+        JsonObject reply = new JsonObject().putString("status", status);
+        if(errorMessage != null){
+            reply.putString("message", errorMessage);
+        }
+        if(spooled){
+            reply.putBoolean("spooled", true);
+        }
+        message.reply(reply);
+        metrics(BINARY_ACTION).replied(status);
+        List<JsonObject> written = unwrittenSeries.remove(message);
+        if(written != null && "ok".equals(status)){
+            for(JsonObject dataPoints : written){
+                metadataCache.observe(dataPoints);
+            }
+        }
+        release(message);
+    }
+
+    /**
+     * Hand data points to a telnet connection, replying once they are handed over. Data points refused because no
+     * connection is open or too many writes are waiting are spooled, if there is a spool, for replay over REST
+     */
+    private void telnetDataPoints(final Message<JsonObject> message, final JsonObject dataPoints){
+        Buffer lines = telnetFormatter.format(dataPoints);
+        if(lines == null){
+            sendError(message, "data points object cannot be written with telnet, names and tags must not contain white space");
             return;
         }
-        writeObject(message, request, dataPoints);
+        telnetWriter.write(lines, new Handler<TelnetWriter.Result>() {
+            @Override
+            public void handle(TelnetWriter.Result result) {
+                if(result == TelnetWriter.Result.WRITTEN){
+                    sendOK(message);
+                }
+                else{
+                    String errorMessage = result == TelnetWriter.Result.QUEUE_FULL
+                            ? "error adding data points: telnet write queue full"
+                            : "error adding data points: no telnet connection available";
+                    container.logger().error(errorMessage);
+                    Buffer body = encode(message, dataPoints);
+                    if(body != null){
+                        spoolOrFail(Collections.singletonList(message), body, errorMessage);
+                    }
+                }
+            }
+        });
     }
 
+    /**
+     * Add data points to the pending batch. Once buffered the message no longer holds a write slot, the batch takes
+     * one when it is flushed, so the write limit caps requests to KairosDB rather than buffered messages
+     */
+    private void batchDataPoints(Message<JsonObject> message, JsonObject dataPoints){
+        boolean wasEmpty = batcher.isEmpty();
+        boolean full;
+        try{
+            full = batcher.add(dataPoints, message);
+        }
+        catch (EncodeException e){
+            container.logger().error("error encoding JSON object as a request body", e);
+            sendError(message, "unable to encode command body");
+            return;
+        }
+        if(full){
+            flushBatch();
+        }
+        else if(wasEmpty){
+            lingerTimer = vertx.setTimer(maxLinger, new Handler<Long>() {
+                @Override
+                public void handle(Long timerId) {
+                    lingerTimer = -1;
+                    flushBatch();
+                }
+            });
+        }
+        release(message);
+    }
 
-    private void listMetricNames(final Message<JsonObject> message) {
-        HttpClientRequest request = client.get(METRIC_NAMES_URI, new Handler<HttpClientResponse>() {
+    private void flushBatch(){
+        if(lingerTimer != -1){
+            vertx.cancelTimer(lingerTimer);
+            lingerTimer = -1;
+        }
+        DataPointBatcher.Batch<Message<JsonObject>> batch = batcher.drain();
+        if(batch == null){
+            return;
+        }
+        InFlightLimiter<Object> limiter = limiters.get(actionClass("add_data_points"));
+        if(limiter != null){
+            switch (limiter.offer(batch)){
+                case ADMITTED:
+                    admitted.put(batch, limiter);
+                    break;
+                case QUEUED:
+                    return;
+                case REJECTED:
+                    String errorMessage = "too many write requests in progress";
+                    container.logger().error("error adding data points: " + errorMessage);
+                    spoolOrFail(batch.getTokens(), batch.getBody(), errorMessage);
+                    return;
+            }
+        }
+        writeBatch(batch);
+    }
+
+    private void writeBatch(final DataPointBatcher.Batch<Message<JsonObject>> batch){
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
             @Override
-            public void handle(final HttpClientResponse response) {
-                response.bodyHandler(new Handler<Buffer>() {
-                    public void handle(Buffer body) {
-                        int responseCode = response.statusCode();
-                        if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
-                            sendOK(message, responseObject);
-                        }
-                        else{
-                            String errorMessage =  "error listing metric names: " + response.statusCode() + " " + response.statusMessage();
-                            container.logger().error(errorMessage);
-                            sendError(message, errorMessage);
-                        }
+            public void handle(Throwable throwable) {
+                String errorMessage = "error adding data points: " + throwable.getMessage();
+                container.logger().error(errorMessage, throwable);
+                spoolOrFail(batch.getTokens(), batch.getBody(), errorMessage);
+                release(batch);
+            }
+        };
+        send("add_data_points", "POST", ADD_DATAPOINTS_URI, batch.getBody(), true, retryPolicies.get("write"), deadline("add_data_points", null), exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                int responseCode = response.statusCode();
+                if (responseCode == 204) {
+                    for(Message<JsonObject> message : batch.getTokens()){
+                        sendOK(message);
                     }
-                });
+                }
+                else{
+                    String errorMessage =  "error adding data points: " + response.statusCode() + " " + response.statusMessage();
+                    container.logger().error(errorMessage);
+                    if(responseCode >= 500){
+                        spoolOrFail(batch.getTokens(), batch.getBody(), errorMessage);
+                    }
+                    else{
+                        failBatch(batch.getTokens(), errorMessage);
+                    }
+                }
+                release(batch);
             }
         });
-        request.end();
+    }
+
+    private void failBatch(List<Message<JsonObject>> messages, String errorMessage){
+        for(Message<JsonObject> message : messages){
+            sendError(message, errorMessage);
+        }
+    }
+
+    private void startRollups(JsonObject rollupConfig){
+        rollups = RollupAggregator.fromConfig(rollupConfig.getArray("rules", new JsonArray()));
+        rollupTimer = vertx.setPeriodic(rollupConfig.getLong("check_interval", 1000), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                writeRollups(rollups.closeWindows(System.currentTimeMillis()));
+            }
+        });
+    }
+
+    /**
+     * Write the data points of closed rollup windows, spooling them if they cannot be written
+     */
+    private void writeRollups(JsonArray dataPoints){
+        if(dataPoints.size() == 0){
+            return;
+        }
+        if(metadataCache != null){
+            for(Object rollup : dataPoints){
+                metadataCache.observe((JsonObject) rollup);
+            }
+        }
+        final Buffer body = JsonBodyEncoder.encode(dataPoints);
+        final int points = dataPoints.size();
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                rollupsFailed(body, points, throwable.getMessage());
+            }
+        };
+        send(null, "POST", ADD_DATAPOINTS_URI, body, true, retryPolicies.get("write"), deadline("add_data_points", null), exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                if(response.statusCode() != 204){
+                    String reason = response.statusCode() + " " + response.statusMessage();
+                    if(response.statusCode() >= 500){
+                        rollupsFailed(body, points, reason);
+                    }
+                    else{
+                        container.logger().error("error writing " + points + " rollup data points: " + reason);
+                    }
+                }
+            }
+        });
+    }
+
+    private void rollupsFailed(Buffer body, int points, String reason){
+        if(!spool(body)){
+            container.logger().error("error writing " + points + " rollup data points: " + reason);
+        }
+    }
+
+    private void startMetricsReporting(JsonObject reportingConfig){
+        final String prefix = reportingConfig.getString("prefix", "mod-kairosdb");
+        final JsonObject tags = reportingConfig.getObject("tags", new JsonObject().putString("address", address));
+        metricsReportTimer = vertx.setPeriodic(reportingConfig.getLong("interval", 60000), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                reportMetrics(prefix, tags);
+            }
+        });
+    }
+
+    /**
+     * Write the action metrics to KairosDB as data points. Failures are logged and the data points dropped
+     */
+    private void reportMetrics(String prefix, JsonObject tags){
+        long now = System.currentTimeMillis();
+        JsonArray dataPoints = new JsonArray();
+        for(ActionMetrics entry : actionMetrics.values()){
+            if(entry.getRequests() > 0){
+                entry.report(prefix, tags, now, dataPoints);
+            }
+        }
+        if(dataPoints.size() == 0){
+            return;
+        }
+        Buffer body;
+        try{
+            body = JsonBodyEncoder.encode(dataPoints);
+        }
+        catch (EncodeException e){
+            container.logger().error("error encoding metrics data points", e);
+            return;
+        }
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                container.logger().warn("error reporting metrics: " + throwable.getMessage());
+            }
+        };
+        send(null, "POST", ADD_DATAPOINTS_URI, body, true, RetryPolicy.NONE, deadline("add_data_points", null), exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                if(response.statusCode() != 204){
+                    container.logger().warn("error reporting metrics: " + response.statusCode() + " " + response.statusMessage());
+                }
+            }
+        });
+    }
+
+    private void startSpool(JsonObject spoolConfig){
+        File directory = new File(spoolConfig.getString("directory", "kairosdb-spool"));
+        spool = new WriteAheadSpool(directory,
+                spoolConfig.getInteger("segment_size", 64 * 1024 * 1024),
+                spoolConfig.getLong("max_bytes", 1024L * 1024 * 1024));
+        try{
+            spool.open();
+        }
+        catch (IOException e){
+            throw new IllegalStateException("unable to open spool in " + directory.getAbsolutePath(), e);
+        }
+        if(!spool.isEmpty()){
+            container.logger().info("recovered " + spool.getRecords() + " spooled data points bodies");
+        }
+        spoolReplayBytes = spoolConfig.getInteger("replay_batch_bytes", 4 * 1024 * 1024);
+        spoolReplayTimer = vertx.setPeriodic(spoolConfig.getLong("replay_interval", 1000), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                replaySpool();
+            }
+        });
+        spoolSyncTimer = vertx.setPeriodic(spoolConfig.getLong("sync_interval", 1000), new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                spool.force();
+            }
+        });
+    }
+
+    /**
+     * Append a data points body that could not be written to the spool, replying to its messages with success if it
+     * was spooled and with the error if there is no spool or it is full
+     */
+    private void spoolOrFail(List<Message<JsonObject>> messages, Buffer body, String errorMessage){
+        if(spool(body)){
+            for(Message<JsonObject> message : messages){
+                sendOK(message, new JsonObject().putBoolean("spooled", true));
+            }
+        }
+        else{
+            failBatch(messages, errorMessage);
+        }
+    }
+
+    private boolean spool(Buffer body){
+        if(spool == null){
+            return false;
+        }
+        try{
+            if(spool.append(body.getBytes())){
+                return true;
+            }
+            container.logger().error("spool is full, data points not spooled");
+        }
+        catch (IOException e){
+            container.logger().error("error appending data points to spool", e);
+        }
+        return false;
+    }
+
+    /**
+     * Write the oldest spooled data points bodies to KairosDB as a single array, continuing until the spool is empty or
+     * a write fails. Bodies rejected by KairosDB as invalid are discarded so they cannot block the spool
+     */
+    private void replaySpool(){
+        if(replaying || spool.isEmpty()){
+            return;
+        }
+        // after a batch is rejected its records are replayed one at a time, so only the invalid ones are discarded
+        final boolean single = spoolSingleRecords > 0;
+        final List<byte[]> records = spool.peek(single ? 0 : spoolReplayBytes);
+        Buffer body = WriteAheadSpool.joinArrays(records);
+        if(body == null){
+            acknowledgeSpool(records.size(), single);
+            replaySpool();
+            return;
+        }
+        replaying = true;
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                replaying = false;
+                container.logger().warn("error replaying spooled data points, will retry: " + throwable.getMessage());
+            }
+        };
+        send(null, "POST", ADD_DATAPOINTS_URI, body, true, RetryPolicy.NONE, deadline("add_data_points", null), exceptionHandler, new Handler<HttpClientResponse>() {
+            @Override
+            public void handle(HttpClientResponse response) {
+                replaying = false;
+                int responseCode = response.statusCode();
+                if(responseCode == 204){
+                    acknowledgeSpool(records.size(), single);
+                    replaySpool();
+                }
+                else if(responseCode < 500 && !single && records.size() > 1){
+                    container.logger().warn("spooled data points rejected: " + responseCode + " " + response.statusMessage()
+                            + ", replaying " + records.size() + " records individually");
+                    spoolSingleRecords = records.size();
+                    replaySpool();
+                }
+                else if(responseCode < 500){
+                    container.logger().error("spooled data points rejected and discarded: " + responseCode + " " + response.statusMessage());
+                    spoolDiscarded += records.size();
+                    acknowledgeSpool(records.size(), single);
+                    replaySpool();
+                }
+                else{
+                    container.logger().warn("error replaying spooled data points, will retry: " + responseCode + " " + response.statusMessage());
+                }
+            }
+        });
+    }
+
+    private void acknowledgeSpool(int count, boolean single){
+        spool.acknowledge(count);
+        if(single){
+            spoolSingleRecords = Math.max(0, spoolSingleRecords - count);
+        }
+    }
+
+    private void stats(Message<JsonObject> message){
+        JsonObject stats = new JsonObject();
+        JsonArray nodes = new JsonArray();
+        for(KairosNode node : nodeSelector.getNodes()){
+            nodes.addObject(node.toJson());
+        }
+        stats.putArray("nodes", nodes);
+        stats.putObject("requests", new JsonObject()
+            .putNumber("retries", retries)
+            .putNumber("circuit_rejections", circuitRejections)
+            .putNumber("timeouts", timedOut)
+            .putNumber("expired", expired)
+            .putNumber("split_queries", splitQueries));
+        JsonObject actions = new JsonObject();
+        for(ActionMetrics entry : actionMetrics.values()){
+            if(entry.getRequests() > 0){
+                actions.putObject(entry.getAction(), entry.toJson());
+            }
+        }
+        stats.putObject("actions", actions);
+        if(telnetWriter != null){
+            stats.putObject("telnet", new JsonObject()
+                .putNumber("open_connections", telnetWriter.getOpenConnections())
+                .putNumber("pending_writes", telnetWriter.getPendingWrites()));
+        }
+        if(coalescer != null){
+            stats.putObject("coalescer", new JsonObject()
+                .putNumber("in_flight", coalescer.getInFlight())
+                .putNumber("coalesced", coalescer.getCoalesced())
+                .putNumber("redispatched", redispatched));
+        }
+        if(queryCache != null){
+            stats.putObject("query_cache", queryCache.toJson());
+        }
+        if(queryBatcher != null){
+            stats.putObject("query_batch", new JsonObject()
+                .putNumber("pending_queries", queryBatcher.getPending())
+                .putNumber("batches", queryBatcher.getBatches())
+                .putNumber("batched_queries", queryBatcher.getBatchedQueries())
+                .putNumber("fallbacks", queryBatchFallbacks));
+        }
+        if(metadataCache != null){
+            stats.putObject("metadata_cache", new JsonObject()
+                .putNumber("metric_names", metadataCache.size(MetadataCache.Kind.METRIC_NAMES))
+                .putNumber("tag_names", metadataCache.size(MetadataCache.Kind.TAG_NAMES))
+                .putNumber("tag_values", metadataCache.size(MetadataCache.Kind.TAG_VALUES)));
+        }
+        if(!limiters.isEmpty()){
+            JsonObject limits = new JsonObject();
+            for(Map.Entry<String, InFlightLimiter<Object>> entry : limiters.entrySet()){
+                limits.putObject(entry.getKey(), entry.getValue().toJson());
+            }
+            stats.putObject("limits", limits);
+        }
+        if(spool != null){
+            stats.putObject("spool", spool.toJson().putNumber("discarded", spoolDiscarded));
+        }
+        if(rollups != null){
+            stats.putObject("rollup", rollups.toJson());
+        }
+        if(changeFilter != null){
+            stats.putObject("filter", changeFilter.toJson());
+        }
+        if(shardRouter != null){
+            stats.putObject("sharding", new JsonObject()
+                .putNumber("shard", shardIndex)
+                .putString("address", shardRouter.shardAddress(shardIndex))
+                .putNumber("shards", shardRouter.getShards())
+                .putNumber("forwarded", forwarded)
+                .putNumber("forward_failures", forwardFailures));
+        }
+        if(batcher != null){
+            stats.putObject("batch", new JsonObject()
+                .putNumber("pending_points", batcher.getPoints())
+                .putNumber("tracked_series", batcher.getTrackedSeries()));
+        }
+        sendOK(message, stats);
+    }
+
+    private void listMetricNames(final Message<JsonObject> message) {
+        listNames(message, MetadataCache.Kind.METRIC_NAMES, METRIC_NAMES_URI, "error listing metric names");
     }
 
     private void listTagNames(final Message<JsonObject> message) {
-        HttpClientRequest request = client.get(TAG_NAMES_URI, new Handler<HttpClientResponse>() {
+        listNames(message, MetadataCache.Kind.TAG_NAMES, TAG_NAMES_URI, "error listing tag names");
+    }
+
+    private void listTagValues(final Message<JsonObject> message) {
+        listNames(message, MetadataCache.Kind.TAG_VALUES, TAG_VALUES_URI, "error listing tag values");
+    }
+
+    private void listNames(final Message<JsonObject> message, final MetadataCache.Kind kind, String uri, final String errorContext) {
+        final String prefix = message.body().getString("prefix");
+        final String contains = message.body().getString("contains");
+        if(metadataCache != null && metadataCache.isLoaded(kind)){
+            sendOK(message, new JsonObject().putArray("results", metadataCache.list(kind, prefix, contains)));
+            return;
+        }
+        send(message.body().getString("action"), "GET", uri, null, false, retryPolicies.get("read"), deadline(message.body().getString("action"), message), failureHandler(message, errorContext), new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
                         int responseCode = response.statusCode();
                         if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
+                            JsonObject responseObject;
+                            JsonArray results;
+                            try{
+                                responseObject = parseResponse(message.body().getString("action"), body);
+                                results = responseObject.getArray("results", new JsonArray());
+                            }
+                            catch (RuntimeException e){
+                                parseFailed(message, errorContext, e);
+                                return;
+                            }
+                            if(metadataCache != null){
+                                metadataCache.replace(kind, results);
+                            }
+                            responseObject.putArray("results", MetadataCache.filter(results, prefix, contains));
                             sendOK(message, responseObject);
                         }
                         else{
-                            String errorMessage =  "error listing tag names: " + response.statusCode() + " " + response.statusMessage();
+                            String errorMessage =  errorContext + ": " + response.statusCode() + " " + response.statusMessage();
                             container.logger().error(errorMessage);
                             sendError(message, errorMessage);
                         }
@@ -345,30 +2129,42 @@ public class KairosPersistor extends BusModBase implements Handler<Message<JsonO
                 });
             }
         });
-        request.end();
     }
 
-    private void listTagValues(final Message<JsonObject> message) {
-        HttpClientRequest request = client.get(TAG_VALUES_URI, new Handler<HttpClientResponse>() {
+    private void refreshMetadata(){
+        refreshMetadata(MetadataCache.Kind.METRIC_NAMES, METRIC_NAMES_URI);
+        refreshMetadata(MetadataCache.Kind.TAG_NAMES, TAG_NAMES_URI);
+        refreshMetadata(MetadataCache.Kind.TAG_VALUES, TAG_VALUES_URI);
+    }
+
+    private void refreshMetadata(final MetadataCache.Kind kind, final String uri) {
+        final String errorContext = "error refreshing " + uri;
+        Handler<Throwable> exceptionHandler = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                container.logger().error(errorContext + ": " + throwable.getMessage(), throwable);
+            }
+        };
+        send(null, "GET", uri, null, false, retryPolicies.get("read"), deadline(listAction(kind), null), exceptionHandler, new Handler<HttpClientResponse>() {
             @Override
             public void handle(final HttpClientResponse response) {
                 response.bodyHandler(new Handler<Buffer>() {
                     public void handle(Buffer body) {
-                        int responseCode = response.statusCode();
-                        if (responseCode == 200) {
-                            JsonObject responseObject = new JsonObject(body.toString());
-                            sendOK(message, responseObject);
+                        if (response.statusCode() == 200) {
+                            try{
+                                metadataCache.replace(kind, parseResponse(null, body).getArray("results", new JsonArray()));
+                            }
+                            catch (RuntimeException e){
+                                container.logger().error(errorContext + ": " + e.getMessage(), e);
+                            }
                         }
                         else{
-                            String errorMessage =  "error listing tag values: " + response.statusCode() + " " + response.statusMessage();
-                            container.logger().error(errorMessage);
-                            sendError(message, errorMessage);
+                            container.logger().error(errorContext + ": " + response.statusCode() + " " + response.statusMessage());
                         }
                     }
                 });
             }
         });
-        request.end();
     }
 
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram of non negative values, such as latencies in microseconds, from which percentiles can be
+ * estimated. Values below 32 are counted exactly; above that each power of two is divided into 16 buckets, so any
+ * percentile is within about 6% of the true value. Recording is constant time and allocation free.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public LatencyHistogram(){
+        this.counts = new long[BUCKETS];
+    }
+
+    private LatencyHistogram(long[] counts, long count, long sum, long min, long max){
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values are recorded as zero and very large values as the maximum
+     */
+    public void record(long value){
+        value = Math.min(Math.max(0, value), MAX_VALUE);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Estimate a percentile
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated value below which the given percentage of values fall, or 0 if nothing is recorded
+     */
+    public long percentile(double percentile){
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for(int i=0;i<counts.length;i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return Math.max(min, Math.min(max, upperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if nothing is recorded
+     */
+    public double getMean(){
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return an independent copy of this histogram
+     */
+    public LatencyHistogram copy(){
+        return new LatencyHistogram(Arrays.copyOf(counts, counts.length), count, sum, min, max);
+    }
+
+    /**
+     * Produce a histogram of the values recorded since an earlier copy of this histogram was taken. The minimum and
+     * maximum are estimated from the buckets
+     *
+     * @param earlier an earlier copy of this histogram
+     * @return the histogram of values recorded since
+     */
+    public LatencyHistogram since(LatencyHistogram earlier){
+        long[] difference = new long[counts.length];
+        long differenceMin = Long.MAX_VALUE;
+        long differenceMax = 0;
+        for(int i=0;i<counts.length;i++){
+            difference[i] = counts[i] - earlier.counts[i];
+            if(difference[i] > 0){
+                differenceMin = Math.min(differenceMin, lowerBound(i));
+                differenceMax = Math.max(differenceMax, Math.min(max, upperBound(i)));
+            }
+        }
+        return new LatencyHistogram(difference, count - earlier.count, sum - earlier.sum, differenceMin, differenceMax);
+    }
+
+    /**
+     * @param scale the divisor converting recorded values to the reported unit, for example 1000 to report
+     *              microseconds as milliseconds
+     * @return the count, mean, maximum and the 50th, 99th and 99.9th percentiles as a JSON object
+     */
+    public JsonObject toJson(double scale){
+        return new JsonObject()
+            .putNumber("count", count)
+            .putNumber("mean", getMean() / scale)
+            .putNumber("p50", percentile(50) / scale)
+            .putNumber("p99", percentile(99) / scale)
+            .putNumber("p999", percentile(99.9) / scale)
+            .putNumber("max", max / scale);
+    }
+
+    private static int index(long value){
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return SUB_BUCKETS * shift + (int) (value >> shift);
+    }
+
+    private static long lowerBound(int index){
+        if(index < 2 * SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - SUB_BUCKETS * shift) << shift;
+    }
+
+    private static long upperBound(int index){
+        if(index < 2 * SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (index - SUB_BUCKETS * shift + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * In memory copy of the KairosDB metric names, tag names and tag values lists. The lists are replaced wholesale when
+ * refreshed from the database and added to as data points with previously unseen names are written, and can be
+ * filtered by prefix or substring without a database request.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class MetadataCache {
+
+    /**
+     * The lists held by the cache
+     */
+    public enum Kind {
+        METRIC_NAMES,
+        TAG_NAMES,
+        TAG_VALUES
+    }
+
+    private final Map<Kind, NavigableSet<String>> lists = new EnumMap<>(Kind.class);
+
+    /**
+     * Replace a list with the results of a database request
+     *
+     * @param kind the list
+     * @param results the complete list from KairosDB
+     */
+    public void replace(Kind kind, JsonArray results){
+        NavigableSet<String> values = new TreeSet<>();
+        for(Object value : results){
+            if(value != null){
+                values.add(value.toString());
+            }
+        }
+        lists.put(kind, values);
+    }
+
+    /**
+     * @param kind the list
+     * @return whether the list has been loaded from the database and can be served from memory
+     */
+    public boolean isLoaded(Kind kind){
+        return lists.containsKey(kind);
+    }
+
+    /**
+     * @param kind the list
+     * @return the number of values in the list
+     */
+    public int size(Kind kind){
+        NavigableSet<String> values = lists.get(kind);
+        return values == null ? 0 : values.size();
+    }
+
+    /**
+     * Get a loaded list, optionally filtered
+     *
+     * @param kind the list
+     * @param prefix if not null only values starting with this are returned
+     * @param contains if not null only values containing this are returned
+     * @return the values, in sorted order
+     */
+    public JsonArray list(Kind kind, String prefix, String contains){
+        NavigableSet<String> values = lists.get(kind);
+        if(prefix != null){
+            values = values.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+        }
+        JsonArray results = new JsonArray();
+        for(String value : values){
+            if(contains == null || value.contains(contains)){
+                results.addString(value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add the metric name, tag names and tag values of a data points object to any loaded lists
+     *
+     * @param dataPoints the validated data points object
+     */
+    public void observe(JsonObject dataPoints){
+        add(Kind.METRIC_NAMES, dataPoints.getString("name"));
+        JsonObject tags = dataPoints.getObject("tags");
+        for(String tagName : tags.getFieldNames()){
+            add(Kind.TAG_NAMES, tagName);
+            Object tagValue = tags.getValue(tagName);
+            if(tagValue != null){
+                add(Kind.TAG_VALUES, tagValue.toString());
+            }
+        }
+    }
+
+    /**
+     * Add a metric name and its tag names and values to any loaded lists
+     *
+     * @param name the metric name
+     * @param tags the tag names and values
+     */
+    public void observe(String name, Map<String, String> tags){
+        add(Kind.METRIC_NAMES, name);
+        for(Map.Entry<String, String> tag : tags.entrySet()){
+            add(Kind.TAG_NAMES, tag.getKey());
+            add(Kind.TAG_VALUES, tag.getValue());
+        }
+    }
+
+    /**
+     * Filter a list of values that was not served from the cache
+     *
+     * @param results the values
+     * @param prefix if not null only values starting with this are returned
+     * @param contains if not null only values containing this are returned
+     * @return the filtered values
+     */
+    public static JsonArray filter(JsonArray results, String prefix, String contains){
+        if(prefix == null && contains == null){
+            return results;
+        }
+        JsonArray filtered = new JsonArray();
+        for(Object result : results){
+            String value = String.valueOf(result);
+            if((prefix == null || value.startsWith(prefix)) && (contains == null || value.contains(contains))){
+                filtered.addString(value);
+            }
+        }
+        return filtered;
+    }
+
+    private void add(Kind kind, String value){
+        NavigableSet<String> values = lists.get(kind);
+        if(values != null && value != null){
+            values.add(value);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses which KairosDB instance a request is sent to. Only healthy instances are chosen, unless none are healthy
+ * in which case every instance is a candidate so that requests are still attempted. Instances whose circuit breaker
+ * does not allow requests are never chosen.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class NodeSelector {
+
+    /**
+     * The supported load balancing strategies
+     */
+    public enum Strategy {
+        /** each instance in turn */
+        ROUND_ROBIN,
+        /** the instance with the fewest outstanding requests */
+        LEAST_OUTSTANDING,
+        /** a random instance weighted by the inverse of its average latency */
+        LATENCY_WEIGHTED
+    }
+
+    private final List<KairosNode> nodes;
+    private final Strategy strategy;
+    private final Random random;
+    private int next;
+
+    public NodeSelector(List<KairosNode> nodes, Strategy strategy){
+        this(nodes, strategy, new Random());
+    }
+
+    public NodeSelector(List<KairosNode> nodes, Strategy strategy, Random random){
+        this.nodes = nodes;
+        this.strategy = strategy;
+        this.random = random;
+    }
+
+    /**
+     * Parse the configured load balancing strategy
+     *
+     * @param strategy the strategy name, one of <code>round_robin</code>, <code>least_outstanding</code> or
+     *                 <code>latency_weighted</code>
+     * @return the strategy
+     * @throws IllegalArgumentException if the strategy is not recognised
+     */
+    public static Strategy parseStrategy(String strategy){
+        try{
+            return Strategy.valueOf(strategy.toUpperCase());
+        }
+        catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("unsupported load balancing strategy: " + strategy);
+        }
+    }
+
+    /**
+     * @return all the instances, healthy or not
+     */
+    public List<KairosNode> getNodes(){
+        return nodes;
+    }
+
+    /**
+     * @return the instance the next request should be sent to
+     */
+    public KairosNode select(){
+        return select(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return the instance the next request should be sent to, or null if every circuit breaker is open
+     */
+    public KairosNode select(long now){
+        List<KairosNode> candidates = candidates(now);
+        if(candidates.isEmpty()){
+            return null;
+        }
+        if(candidates.size() == 1){
+            return candidates.get(0);
+        }
+        switch (strategy){
+            case LEAST_OUTSTANDING:
+                return leastOutstanding(candidates);
+            case LATENCY_WEIGHTED:
+                return latencyWeighted(candidates);
+            default:
+                next = (next + 1) % candidates.size();
+                return candidates.get(next);
+        }
+    }
+
+    private List<KairosNode> candidates(long now){
+        List<KairosNode> allowed = new ArrayList<>(nodes.size());
+        List<KairosNode> healthy = new ArrayList<>(nodes.size());
+        for(KairosNode node : nodes){
+            if(node.allowsRequest(now)){
+                allowed.add(node);
+                if(node.isHealthy()){
+                    healthy.add(node);
+                }
+            }
+        }
+        return healthy.isEmpty() ? allowed : healthy;
+    }
+
+    private KairosNode leastOutstanding(List<KairosNode> candidates){
+        KairosNode best = null;
+        int start = next = (next + 1) % candidates.size();
+        for(int i=0;i<candidates.size();i++){
+            KairosNode node = candidates.get((start + i) % candidates.size());
+            if(best == null || node.getMonitor().getInFlight() < best.getMonitor().getInFlight()){
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Instances with no latency recorded yet are weighted as if they had the average latency of the others, so that
+     * they are neither starved nor preferred over every measured instance
+     */
+    private KairosNode latencyWeighted(List<KairosNode> candidates){
+        double sampledTotal = 0;
+        int sampled = 0;
+        for(KairosNode node : candidates){
+            if(node.hasLatency()){
+                sampledTotal += node.getLatency();
+                sampled++;
+            }
+        }
+        double unsampledLatency = sampled == 0 ? 1.0 : sampledTotal / sampled;
+        double[] weights = new double[candidates.size()];
+        double total = 0;
+        for(int i=0;i<candidates.size();i++){
+            KairosNode node = candidates.get(i);
+            weights[i] = 1.0 / Math.max(1.0, node.hasLatency() ? node.getLatency() : unsampledLatency);
+            total += weights[i];
+        }
+        double target = random.nextDouble() * total;
+        for(int i=0;i<candidates.size();i++){
+            target -= weights[i];
+            if(target < 0){
+                return candidates.get(i);
+            }
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects <a href="https://code.google.com/p/kairosdb/wiki/QueryMetrics">metric queries</a> with the same time range
+ * into a single query holding all of their metrics, so that queries arriving close together can be sent to KairosDB
+ * with one request. KairosDB answers with one entry in <code>queries</code> for each metric, in order, which the
+ * batch splits back into a response for each of the original queries. Each query records an arbitrary token
+ * (typically the message that carried it) so that callers can be answered once the batch completes.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class QueryBatcher<T> {
+
+    private final int maxMetrics;
+    private final Map<String, Batch<T>> pending = new HashMap<>();
+    private long batches;
+    private long batchedQueries;
+
+    /**
+     * @param maxMetrics the number of metrics at which a batch is considered full
+     */
+    public QueryBatcher(int maxMetrics){
+        this.maxMetrics = maxMetrics;
+    }
+
+    /**
+     * The key identifying queries that can be batched together, being every field of the query but its metrics
+     *
+     * @param query the KairosDB query
+     * @return the key, or null if the query has no metrics and cannot be batched
+     */
+    public static String key(JsonObject query){
+        JsonArray metrics = query.getArray("metrics");
+        if(metrics == null || metrics.size() == 0){
+            return null;
+        }
+        JsonObject range = query.copy();
+        range.removeField("metrics");
+        return QueryCache.key("query_metrics", range);
+    }
+
+    /**
+     * Add a query to the batch for its key
+     *
+     * @param key the key of the query, as returned by {@link #key(JsonObject)}
+     * @param query the KairosDB query
+     * @param token the token recorded against the query
+     * @return the batch the query was added to, holding just this query if it started a new batch
+     */
+    public Batch<T> add(String key, JsonObject query, T token){
+        Batch<T> batch = pending.get(key);
+        if(batch == null){
+            batch = new Batch<>(query);
+            pending.put(key, batch);
+        }
+        batch.add(query, token);
+        return batch;
+    }
+
+    /**
+     * @param key the batch key
+     * @return whether the batch for the key has reached the maximum number of metrics
+     */
+    public boolean isFull(String key){
+        Batch<T> batch = pending.get(key);
+        return batch != null && batch.metrics.size() >= maxMetrics;
+    }
+
+    /**
+     * Remove the batch for a key
+     *
+     * @param key the batch key
+     * @return the batch, or null if there is none
+     */
+    public Batch<T> drain(String key){
+        Batch<T> batch = pending.remove(key);
+        if(batch != null && batch.size() > 1){
+            batches++;
+            batchedQueries += batch.size();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the keys of the batches waiting to be sent
+     */
+    public List<String> getKeys(){
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /**
+     * @return the number of queries waiting to be sent
+     */
+    public int getPending(){
+        int queries = 0;
+        for(Batch<T> batch : pending.values()){
+            queries += batch.size();
+        }
+        return queries;
+    }
+
+    /**
+     * @return the total number of batches of more than one query drained
+     */
+    public long getBatches(){
+        return batches;
+    }
+
+    /**
+     * @return the total number of queries drained in batches of more than one query
+     */
+    public long getBatchedQueries(){
+        return batchedQueries;
+    }
+
+    /**
+     * The queries collected for one key
+     */
+    public static class Batch<T> {
+
+        private final JsonObject range;
+        private final JsonArray metrics = new JsonArray();
+        private final List<JsonObject> queries = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+        private final List<T> tokens = new ArrayList<>();
+        private long timer = -1;
+
+        private Batch(JsonObject query){
+            range = query.copy();
+            range.removeField("metrics");
+        }
+
+        private void add(JsonObject query, T token){
+            offsets.add(metrics.size());
+            for(Object metric : query.getArray("metrics")){
+                metrics.add(metric);
+            }
+            queries.add(query);
+            tokens.add(token);
+        }
+
+        /**
+         * @return the number of queries in the batch
+         */
+        public int size(){
+            return tokens.size();
+        }
+
+        /**
+         * @return the original queries, in the order they were added
+         */
+        public List<JsonObject> getQueries(){
+            return queries;
+        }
+
+        /**
+         * @return the tokens, in the order their queries were added
+         */
+        public List<T> getTokens(){
+            return tokens;
+        }
+
+        /**
+         * @return the query holding the metrics of every query in the batch
+         */
+        public JsonObject getQuery(){
+            return range.copy().putArray("metrics", metrics);
+        }
+
+        /**
+         * Split the response to the batched query into a response for each original query
+         *
+         * @param response the KairosDB response to the query returned by {@link #getQuery()}
+         * @return the responses, in the order their queries were added
+         * @throws IllegalArgumentException if the response does not hold one entry in <code>queries</code> for each metric
+         */
+        public List<JsonObject> demultiplex(JsonObject response){
+            JsonArray results = response.getArray("queries");
+            if(results == null || results.size() != metrics.size()){
+                throw new IllegalArgumentException("expected " + metrics.size() + " query results but received "
+                        + (results == null ? 0 : results.size()));
+            }
+            List<JsonObject> responses = new ArrayList<>(tokens.size());
+            for(int i=0;i<tokens.size();i++){
+                int end = i + 1 < offsets.size() ? offsets.get(i + 1) : metrics.size();
+                JsonArray slice = new JsonArray();
+                for(int j=offsets.get(i);j<end;j++){
+                    slice.add(results.get(j));
+                }
+                JsonObject single = new JsonObject();
+                for(String field : response.getFieldNames()){
+                    if(!"queries".equals(field)){
+                        single.putValue(field, response.getValue(field));
+                    }
+                }
+                single.putArray("queries", slice);
+                responses.add(single);
+            }
+            return responses;
+        }
+
+        /**
+         * @return the id of the timer that sends the batch, or -1 if none has been set
+         */
+        public long getTimer(){
+            return timer;
+        }
+
+        /**
+         * @param timer the id of the timer that sends the batch
+         */
+        public void setTimer(long timer){
+            this.timer = timer;
+        }
+    }
+}
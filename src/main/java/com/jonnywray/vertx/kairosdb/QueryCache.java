@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Least recently used cache of <a href="https://code.google.com/p/kairosdb/wiki/QueryMetrics">query</a> results,
+ * bounded by both entry count and total response size. Entries are keyed by a canonical form of the query, so queries
+ * that differ only in field order share an entry.
+ *
+ * Queries whose time range is relative to now, or whose absolute range ends in the future, produce different results
+ * as time passes and so are cached with a separate, normally much shorter, time to live. Entries record the metrics
+ * their query names so they can be invalidated when those metrics are deleted. Every invalidation advances a
+ * generation, and a result is only cached if no invalidation happened after its query was sent, so a query that
+ * races a delete cannot put the deleted data back.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class QueryCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+    private final long relativeTtl;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+    private long generation;
+    private long stalePuts;
+
+    /**
+     * @param maxEntries the maximum number of cached results
+     * @param maxBytes the maximum total size of cached results, measured as the size of the KairosDB response body
+     * @param ttl the time to live in milliseconds of results for queries over a fixed time range in the past
+     * @param relativeTtl the time to live in milliseconds of results for queries over a time range relative to now,
+     *                    zero to not cache them
+     */
+    public QueryCache(int maxEntries, long maxBytes, long ttl, long relativeTtl){
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.relativeTtl = relativeTtl;
+    }
+
+    /**
+     * Build the cache key for a query
+     *
+     * @param action the action the query is used for, so the same query for different actions is kept apart
+     * @param query the query object
+     * @return the key
+     */
+    public static String key(String action, JsonObject query){
+        StringBuilder key = new StringBuilder(action).append(':');
+        appendCanonical(key, query.toMap());
+        return key.toString();
+    }
+
+    /**
+     * Look up a cached result
+     *
+     * @param key the cache key
+     * @param now the current time in milliseconds
+     * @return the cached result, or null if there is none or it has expired. The result must not be modified
+     */
+    public JsonObject get(String key, long now){
+        Entry entry = entries.get(key);
+        if(entry == null){
+            misses++;
+            return null;
+        }
+        if(entry.expires <= now){
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * @return the invalidation generation, to be taken when a query is sent and passed to
+     * {@link #put(String, JsonObject, JsonObject, int, long, long)} with its result
+     */
+    public long getGeneration(){
+        return generation;
+    }
+
+    /**
+     * Cache a result, unless the cache has been invalidated since the query that produced it was sent
+     *
+     * @param key the cache key
+     * @param query the query that produced the result
+     * @param result the result
+     * @param size the size of the result in bytes
+     * @param generation the generation returned by {@link #getGeneration()} when the query was sent
+     * @param now the current time in milliseconds
+     */
+    public void put(String key, JsonObject query, JsonObject result, int size, long generation, long now){
+        if(generation != this.generation){
+            stalePuts++;
+            return;
+        }
+        long entryTtl = isRelative(query, now) ? relativeTtl : ttl;
+        if(entryTtl <= 0 || size > maxBytes){
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(result, size, now + entryTtl, metricNames(query)));
+        bytes += size;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()){
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove every cached result whose query names the given metric
+     *
+     * @param metricName the metric name
+     */
+    public void invalidateMetric(String metricName){
+        generation++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(iterator.hasNext()){
+            Entry entry = iterator.next();
+            if(entry.metrics.contains(metricName)){
+                iterator.remove();
+                bytes -= entry.size;
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Remove every cached result whose query names any metric named in the given query
+     *
+     * @param query the query, typically one used to delete data points
+     */
+    public void invalidateQuery(JsonObject query){
+        for(String metricName : metricNames(query)){
+            invalidateMetric(metricName);
+        }
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public int size(){
+        return entries.size();
+    }
+
+    /**
+     * @return the current state and counters as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("entries", entries.size())
+            .putNumber("bytes", bytes)
+            .putNumber("hits", hits)
+            .putNumber("misses", misses)
+            .putNumber("evictions", evictions)
+            .putNumber("expirations", expirations)
+            .putNumber("invalidations", invalidations)
+            .putNumber("stale_puts", stalePuts);
+    }
+
+    /**
+     * Determine whether a query covers a time range relative to now, rather than a fixed range in the past
+     *
+     * @param query the query
+     * @param now the current time in milliseconds
+     * @return whether the query results can change as time passes
+     */
+    public static boolean isRelative(JsonObject query, long now){
+        if(query.getObject("start_relative") != null || query.getObject("end_relative") != null){
+            return true;
+        }
+        Number endAbsolute = query.getNumber("end_absolute");
+        return endAbsolute == null || endAbsolute.longValue() > now;
+    }
+
+    /**
+     * Extract the names of the metrics a query refers to
+     *
+     * @param query the query
+     * @return the metric names
+     */
+    public static Set<String> metricNames(JsonObject query){
+        JsonArray metrics = query.getArray("metrics");
+        if(metrics == null){
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<>();
+        for(Object metric : metrics){
+            if(metric instanceof JsonObject && ((JsonObject) metric).getString("name") != null){
+                names.add(((JsonObject) metric).getString("name"));
+            }
+        }
+        return names;
+    }
+
+    private void remove(String key){
+        Entry entry = entries.remove(key);
+        if(entry != null){
+            bytes -= entry.size;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendCanonical(StringBuilder builder, Object value){
+        if(value instanceof Map){
+            Map<String, Object> map = (Map<String, Object>) value;
+            List<String> names = new ArrayList<>(map.keySet());
+            Collections.sort(names);
+            builder.append('{');
+            for(int i=0;i<names.size();i++){
+                if(i > 0){
+                    builder.append(',');
+                }
+                appendString(builder, names.get(i));
+                builder.append(':');
+                appendCanonical(builder, map.get(names.get(i)));
+            }
+            builder.append('}');
+        }
+        else if(value instanceof List){
+            List<Object> list = (List<Object>) value;
+            builder.append('[');
+            for(int i=0;i<list.size();i++){
+                if(i > 0){
+                    builder.append(',');
+                }
+                appendCanonical(builder, list.get(i));
+            }
+            builder.append(']');
+        }
+        else if(value instanceof String){
+            appendString(builder, (String) value);
+        }
+        else{
+            builder.append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder builder, String value){
+        builder.append('"');
+        for(int i=0;i<value.length();i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+
+    private static class Entry {
+
+        private final JsonObject result;
+        private final int size;
+        private final long expires;
+        private final Set<String> metrics;
+
+        private Entry(JsonObject result, int size, long expires, Set<String> metrics){
+            this.result = result;
+            this.size = size;
+            this.expires = expires;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Base64;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses KairosDB response bodies with a streaming tokenizer reading the bytes of the buffer, rather than first
+ * decoding the whole body into a {@link String} and then into a tree. The result is the same as
+ * {@link JsonObject#JsonObject(String)} of the body, built directly from the tokens.
+ *
+ * The <code>values</code> arrays of the series in a <a href="https://code.google.com/p/kairosdb/wiki/QueryMetrics">query
+ * metrics</a> response are read into primitive arrays as they are parsed. In the default form they are then returned
+ * as arrays of <code>[timestamp, value]</code> pairs. In the columnar form each series instead has binary
+ * <code>timestamps</code> and <code>values</code> fields, read with {@link JsonObject#getBinary(String)}, of 8 byte big
+ * endian numbers, one of each per point, and a <code>value_type</code> of <code>long</code> or <code>double</code>.
+ * Each column is then a single string rather than a list, two boxed numbers and an array for every point. A series
+ * whose values are not all numeric pairs is always returned in the default form.
+ *
+ * A {@link Downsampler} may be applied to the primitive arrays of each series, before any point is boxed. A series
+ * that was downsampled has a <code>downsampled_from</code> field holding its original number of points.
+ *
+ * @author Jonny Wray
+ */
+public class QueryResponseParser {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * Parse a response body
+     *
+     * @param body the UTF-8 JSON body
+     * @param columnar whether series values are returned in the columnar form
+     * @return the parsed body
+     * @throws DecodeException if the body is not a JSON object
+     */
+    public static JsonObject parse(Buffer body, boolean columnar){
+        return parse(body, columnar, null);
+    }
+
+    /**
+     * Parse a response body, downsampling the series values
+     *
+     * @param body the UTF-8 JSON body
+     * @param columnar whether series values are returned in the columnar form
+     * @param downsampler the downsampler applied to each series, or null to return every point
+     * @return the parsed body
+     * @throws DecodeException if the body is not a JSON object
+     */
+    public static JsonObject parse(Buffer body, boolean columnar, Downsampler downsampler){
+        ByteBuf buf = body.getByteBuf();
+        try{
+            JsonParser parser;
+            if(buf.hasArray()){
+                parser = FACTORY.createParser(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+            }
+            else{
+                parser = FACTORY.createParser(body.getBytes());
+            }
+            try{
+                if(parser.nextToken() != JsonToken.START_OBJECT){
+                    throw new DecodeException("response body is not a JSON object");
+                }
+                Map<String, Object> response = new LinkedHashMap<>();
+                while(parser.nextToken() == JsonToken.FIELD_NAME){
+                    String field = parser.getCurrentName();
+                    if(parser.nextToken() == JsonToken.START_ARRAY && "queries".equals(field)){
+                        response.put(field, readQueries(parser, columnar, downsampler));
+                    }
+                    else{
+                        response.put(field, readValue(parser));
+                    }
+                }
+                return new JsonObject(response);
+            }
+            finally {
+                parser.close();
+            }
+        }
+        catch (IOException e){
+            throw new DecodeException("failed to decode response body: " + e.getMessage());
+        }
+    }
+
+    private static List<Object> readQueries(JsonParser parser, boolean columnar, Downsampler downsampler) throws IOException {
+        List<Object> queries = new ArrayList<>();
+        JsonToken token;
+        while((token = parser.nextToken()) != JsonToken.END_ARRAY){
+            if(token != JsonToken.START_OBJECT){
+                queries.add(readValue(parser));
+                continue;
+            }
+            Map<String, Object> query = new LinkedHashMap<>();
+            while(parser.nextToken() == JsonToken.FIELD_NAME){
+                String field = parser.getCurrentName();
+                if(parser.nextToken() == JsonToken.START_ARRAY && "results".equals(field)){
+                    query.put(field, readResults(parser, columnar, downsampler));
+                }
+                else{
+                    query.put(field, readValue(parser));
+                }
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    private static List<Object> readResults(JsonParser parser, boolean columnar, Downsampler downsampler) throws IOException {
+        List<Object> results = new ArrayList<>();
+        JsonToken token;
+        while((token = parser.nextToken()) != JsonToken.END_ARRAY){
+            if(token != JsonToken.START_OBJECT){
+                results.add(readValue(parser));
+                continue;
+            }
+            Map<String, Object> series = new LinkedHashMap<>();
+            while(parser.nextToken() == JsonToken.FIELD_NAME){
+                String field = parser.getCurrentName();
+                if(parser.nextToken() == JsonToken.START_ARRAY && "values".equals(field)){
+                    readValues(parser, series, columnar, downsampler);
+                }
+                else{
+                    series.put(field, readValue(parser));
+                }
+            }
+            results.add(series);
+        }
+        return results;
+    }
+
+    /**
+     * Read a values array into primitive arrays, falling back to generic values from the first element that is not
+     * a pair of numbers
+     */
+    private static void readValues(JsonParser parser, Map<String, Object> series, boolean columnar,
+                                   Downsampler downsampler) throws IOException {
+        long[] timestamps = new long[64];
+        long[] longValues = new long[64];
+        double[] doubleValues = null;
+        BitSet doubles = null;
+        int count = 0;
+        JsonToken token;
+        while((token = parser.nextToken()) != JsonToken.END_ARRAY){
+            if(token != JsonToken.START_ARRAY || !isIntegral(parser, parser.nextToken())){
+                List<Object> values = toPairs(timestamps, longValues, doubleValues, doubles, count);
+                values.add(token == JsonToken.START_ARRAY ? readRemaining(parser) : readValue(parser));
+                while(parser.nextToken() != JsonToken.END_ARRAY){
+                    values.add(readValue(parser));
+                }
+                series.put("values", values);
+                return;
+            }
+            long timestamp = parser.getLongValue();
+            JsonToken valueToken = parser.nextToken();
+            boolean integral = isIntegral(parser, valueToken);
+            if(!integral && valueToken != JsonToken.VALUE_NUMBER_FLOAT){
+                List<Object> values = toPairs(timestamps, longValues, doubleValues, doubles, count);
+                List<Object> pair = new ArrayList<>();
+                pair.add(box(timestamp));
+                pair.add(readValue(parser));
+                while(parser.nextToken() != JsonToken.END_ARRAY){
+                    pair.add(readValue(parser));
+                }
+                values.add(pair);
+                while(parser.nextToken() != JsonToken.END_ARRAY){
+                    values.add(readValue(parser));
+                }
+                series.put("values", values);
+                return;
+            }
+            if(count == timestamps.length){
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                longValues = Arrays.copyOf(longValues, count * 2);
+                if(doubleValues != null){
+                    doubleValues = Arrays.copyOf(doubleValues, count * 2);
+                }
+            }
+            timestamps[count] = timestamp;
+            if(integral){
+                longValues[count] = parser.getLongValue();
+            }
+            else{
+                if(doubles == null){
+                    doubles = new BitSet();
+                    doubleValues = new double[timestamps.length];
+                }
+                doubles.set(count);
+                doubleValues[count] = parser.getDoubleValue();
+            }
+            count++;
+            if(parser.nextToken() != JsonToken.END_ARRAY){
+                // not a pair, so keep the points read so far and this one generically
+                List<Object> values = toPairs(timestamps, longValues, doubleValues, doubles, count);
+                @SuppressWarnings("unchecked")
+                List<Object> pair = (List<Object>) values.get(count - 1);
+                do{
+                    pair.add(readValue(parser));
+                } while(parser.nextToken() != JsonToken.END_ARRAY);
+                while(parser.nextToken() != JsonToken.END_ARRAY){
+                    values.add(readValue(parser));
+                }
+                series.put("values", values);
+                return;
+            }
+        }
+        if(downsampler != null && count > downsampler.getMaxPoints()){
+            double[] values = new double[count];
+            for(int i=0;i<count;i++){
+                values[i] = doubles != null && doubles.get(i) ? doubleValues[i] : longValues[i];
+            }
+            int[] selected = downsampler.select(timestamps, values, count);
+            // selected indices ascend and are never less than their position, so the arrays compact in place
+            for(int i=0;i<selected.length;i++){
+                int index = selected[i];
+                timestamps[i] = timestamps[index];
+                longValues[i] = longValues[index];
+                if(doubles != null){
+                    doubleValues[i] = doubleValues[index];
+                    doubles.set(i, doubles.get(index));
+                }
+            }
+            series.put("downsampled_from", count);
+            count = selected.length;
+        }
+        if(!columnar){
+            series.put("values", toPairs(timestamps, longValues, doubleValues, doubles, count));
+            return;
+        }
+        byte[] timestampBytes = new byte[count * 8];
+        byte[] valueBytes = new byte[count * 8];
+        for(int i=0;i<count;i++){
+            writeLong(timestampBytes, i * 8, timestamps[i]);
+            if(doubles == null){
+                writeLong(valueBytes, i * 8, longValues[i]);
+            }
+            else{
+                double value = doubles.get(i) ? doubleValues[i] : longValues[i];
+                writeLong(valueBytes, i * 8, Double.doubleToLongBits(value));
+            }
+        }
+        series.put("value_type", doubles == null ? "long" : "double");
+        series.put("timestamps", Base64.encodeBytes(timestampBytes));
+        series.put("values", Base64.encodeBytes(valueBytes));
+    }
+
+    private static boolean isIntegral(JsonParser parser, JsonToken token) throws IOException {
+        return token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER;
+    }
+
+    private static List<Object> toPairs(long[] timestamps, long[] longValues, double[] doubleValues, BitSet doubles, int count){
+        List<Object> values = new ArrayList<>(count + 1);
+        for(int i=0;i<count;i++){
+            List<Object> pair = new ArrayList<>(2);
+            pair.add(box(timestamps[i]));
+            if(doubles != null && doubles.get(i)){
+                pair.add(doubleValues[i]);
+            }
+            else{
+                pair.add(box(longValues[i]));
+            }
+            values.add(pair);
+        }
+        return values;
+    }
+
+    /**
+     * Box an integral number as the Jackson tree decoder does, as an integer when it fits
+     */
+    private static Object box(long value){
+        if(value == (int) value){
+            return (int) value;
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value){
+        for(int i=7;i>=0;i--){
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Read the rest of an array whose start token has already been consumed, the parser being positioned on its first
+     * element or end
+     */
+    private static List<Object> readRemaining(JsonParser parser) throws IOException {
+        List<Object> list = new ArrayList<>();
+        JsonToken token = parser.getCurrentToken();
+        while(token != JsonToken.END_ARRAY){
+            list.add(readValue(parser));
+            token = parser.nextToken();
+        }
+        return list;
+    }
+
+    /**
+     * Read the value starting at the current token
+     */
+    private static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()){
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                while(parser.nextToken() == JsonToken.FIELD_NAME){
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(field, readValue(parser));
+                }
+                return map;
+            case START_ARRAY:
+                parser.nextToken();
+                return readRemaining(parser);
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new DecodeException("unexpected token " + parser.getCurrentToken());
+        }
+    }
+}
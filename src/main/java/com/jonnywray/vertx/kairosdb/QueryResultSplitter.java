@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Incrementally splits a <a href="https://code.google.com/p/kairosdb/wiki/QueryMetrics">query metrics</a> response
+ * into bounded pieces as the response body arrives, so that the complete response never has to be held in memory.
+ *
+ * The response is scanned byte by byte. The values of each series in <code>queries[].results[]</code> are emitted
+ * in slices of at most a fixed number of points, each slice accompanied by the fields of its series seen so far
+ * (normally the name, group by and tags, which KairosDB writes before the values). The final slice of a series carries
+ * all of its fields. When a query completes its remaining fields, such as <code>sample_size</code>, are emitted with
+ * an empty <code>results</code> array.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class QueryResultSplitter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the pieces of a response
+     */
+    public interface Listener {
+
+        /**
+         * Called with each slice of the values of a series
+         *
+         * @param queryIndex the index of the query in the response
+         * @param seriesIndex the index of the series within the query results
+         * @param series the series fields with a <code>values</code> array holding this slice
+         * @param last whether this is the final slice of the series
+         */
+        void series(int queryIndex, int seriesIndex, JsonObject series, boolean last);
+
+        /**
+         * Called when a query has been completely read
+         *
+         * @param queryIndex the index of the query in the response
+         * @param query the query fields, with an empty <code>results</code> array
+         */
+        void queryComplete(int queryIndex, JsonObject query);
+    }
+
+    private final int chunkPoints;
+    private final Listener listener;
+
+    private final String[] keys = new String[8];
+    private final ByteArrayOutputStream string = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream queryHeader = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream seriesHeader = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream points = new ByteArrayOutputStream();
+
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean collectingString;
+    private String pendingKey;
+
+    private boolean inQueries;
+    private boolean inResults;
+    private boolean inValues;
+    private int queryIndex = -1;
+    private int seriesIndex = -1;
+    private int pointCount;
+
+    /**
+     * @param chunkPoints the maximum number of points in each emitted slice
+     * @param listener the listener receiving the pieces
+     */
+    public QueryResultSplitter(int chunkPoints, Listener listener){
+        this.chunkPoints = chunkPoints;
+        this.listener = listener;
+    }
+
+    /**
+     * Feed the next part of the response body
+     *
+     * @param data the next bytes of the body
+     */
+    public void feed(Buffer data){
+        byte[] bytes = data.getBytes();
+        for(byte b : bytes){
+            process(b);
+        }
+    }
+
+    private void process(byte b){
+        if(inString){
+            route(b);
+            if(collectingString){
+                string.write(b);
+            }
+            if(escaped){
+                escaped = false;
+            }
+            else if(b == '\\'){
+                escaped = true;
+            }
+            else if(b == '"'){
+                inString = false;
+                if(collectingString){
+                    byte[] value = string.toByteArray();
+                    pendingKey = new String(value, 1, value.length - 2, UTF8);
+                }
+            }
+            return;
+        }
+        switch (b){
+            case '"':
+                inString = true;
+                collectingString = depth == 1 || depth == 3 || depth == 5;
+                string.reset();
+                if(collectingString){
+                    string.write(b);
+                }
+                route(b);
+                break;
+            case ':':
+                if(depth < keys.length){
+                    keys[depth] = pendingKey;
+                }
+                route(b);
+                break;
+            case '{':
+            case '[':
+                open(b);
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                close(b);
+                break;
+            default:
+                route(b);
+        }
+    }
+
+    private void open(byte b){
+        if(!inQueries && depth == 1 && b == '[' && "queries".equals(keys[1])){
+            inQueries = true;
+        }
+        else if(inQueries && !inResults && depth == 2 && b == '{'){
+            queryIndex++;
+            seriesIndex = -1;
+            queryHeader.reset();
+            queryHeader.write(b);
+        }
+        else if(inQueries && !inResults && depth == 3 && b == '[' && "results".equals(keys[3])){
+            inResults = true;
+            queryHeader.write(b);
+        }
+        else if(inResults && depth == 4 && b == '{'){
+            seriesIndex++;
+            seriesHeader.reset();
+            seriesHeader.write(b);
+            points.reset();
+            pointCount = 0;
+            keys[5] = null;
+        }
+        else if(inResults && !inValues && depth == 5 && b == '[' && "values".equals(keys[5])){
+            inValues = true;
+            seriesHeader.write(b);
+        }
+        else if(inValues && depth == 6){
+            if(pointCount > 0){
+                points.write(',');
+            }
+            points.write(b);
+        }
+        else{
+            route(b);
+        }
+    }
+
+    private void close(byte b){
+        if(inValues && depth == 6){
+            points.write(b);
+            pointCount++;
+            if(pointCount >= chunkPoints){
+                emitSeries(false);
+            }
+        }
+        else if(inValues && depth == 5){
+            inValues = false;
+            seriesHeader.write(b);
+        }
+        else if(inResults && depth == 4){
+            seriesHeader.write(b);
+            emitSeries(true);
+        }
+        else if(inResults && depth == 3){
+            inResults = false;
+            queryHeader.write(b);
+        }
+        else if(inQueries && depth == 2){
+            queryHeader.write(b);
+            listener.queryComplete(queryIndex, new JsonObject(new String(queryHeader.toByteArray(), UTF8)));
+        }
+        else if(inQueries && depth == 1){
+            inQueries = false;
+        }
+        else{
+            route(b);
+        }
+    }
+
+    private void route(byte b){
+        if(inValues && depth >= 7){
+            points.write(b);
+        }
+        else if(inValues && depth == 6){
+            // separators between points are written as the points are
+        }
+        else if(inResults && depth >= 5){
+            seriesHeader.write(b);
+        }
+        else if(inResults && depth == 4){
+            // separators between series are not needed
+        }
+        else if(inQueries && depth >= 3){
+            queryHeader.write(b);
+        }
+    }
+
+    private void emitSeries(boolean last){
+        String header = new String(seriesHeader.toByteArray(), UTF8);
+        if(!last){
+            header = header + "]}";
+        }
+        JsonObject series = new JsonObject(header);
+        JsonArray values = new JsonArray("[" + new String(points.toByteArray(), UTF8) + "]");
+        series.putArray("values", values);
+        points.reset();
+        pointCount = 0;
+        listener.series(queryIndex, seriesIndex, series, last);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Delivers a query metrics response to the caller as a sequence of bounded size messages while the response is still
+ * arriving from KairosDB.
+ *
+ * Each message has status <code>more-exist</code> and holds a <code>results</code> array of series slices from a single
+ * query, identified by <code>query</code>. The caller requests the next message by replying to the one it received.
+ * The final message has status <code>ok</code> and holds the <code>queries</code> array with the remaining fields of
+ * each query and empty results. When more than a fixed number of messages are waiting for the caller the response from
+ * KairosDB is paused, so memory use is bounded regardless of the size of the result.
+ *
+ * @author Jonny Wray
+ */
+public class QueryResultStream implements QueryResultSplitter.Listener {
+
+    private static final String MORE_EXIST = "more-exist";
+
+    private final HttpClientResponse response;
+    private final int chunkPoints;
+    private final int maxQueued;
+    private final long timeout;
+    private final Logger logger;
+    private final QueryResultSplitter splitter;
+
+    private final Deque<JsonObject> chunks = new ArrayDeque<>();
+    private final JsonArray queries = new JsonArray();
+    private JsonArray pendingResults = new JsonArray();
+    private int pendingQuery = -1;
+    private int pendingPoints;
+
+    private Message<JsonObject> replyTo;
+    private boolean paused;
+    private boolean cancelled;
+    private boolean ended;
+    private Handler<Void> endHandler;
+
+    /**
+     * @param message the query message, to which the first chunk is the reply
+     * @param response the successful response from KairosDB
+     * @param chunkPoints the approximate maximum number of points in each message
+     * @param maxQueued the number of messages waiting for the caller at which the response is paused
+     * @param timeout the time in milliseconds to wait for the caller to request the next message
+     * @param logger the logger
+     */
+    public QueryResultStream(Message<JsonObject> message, HttpClientResponse response, int chunkPoints, int maxQueued,
+                             long timeout, Logger logger){
+        this.replyTo = message;
+        this.response = response;
+        this.chunkPoints = chunkPoints;
+        this.maxQueued = maxQueued;
+        this.timeout = timeout;
+        this.logger = logger;
+        this.splitter = new QueryResultSplitter(chunkPoints, this);
+    }
+
+    /**
+     * Set a handler called once when the final message has been sent or the stream has been abandoned
+     *
+     * @param endHandler the handler
+     * @return this stream
+     */
+    public QueryResultStream endHandler(Handler<Void> endHandler){
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    /**
+     * Start reading the response
+     */
+    public void start(){
+        response.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer data) {
+                if(cancelled){
+                    return;
+                }
+                try{
+                    splitter.feed(data);
+                }
+                catch (DecodeException e){
+                    fail("error querying metrics: unable to parse response: " + e.getMessage());
+                    return;
+                }
+                if(!paused && chunks.size() >= maxQueued){
+                    response.pause();
+                    paused = true;
+                }
+                pump();
+            }
+        });
+        response.endHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                if(cancelled){
+                    return;
+                }
+                flushPending();
+                chunks.add(new JsonObject().putString("status", "ok").putArray("queries", queries));
+                pump();
+            }
+        });
+        response.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable throwable) {
+                fail("error querying metrics: " + throwable.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void series(int queryIndex, int seriesIndex, JsonObject series, boolean last) {
+        if(queryIndex != pendingQuery){
+            flushPending();
+            pendingQuery = queryIndex;
+        }
+        pendingResults.addObject(series);
+        pendingPoints += series.getArray("values").size() + 1;
+        if(pendingPoints >= chunkPoints){
+            flushPending();
+        }
+    }
+
+    @Override
+    public void queryComplete(int queryIndex, JsonObject query) {
+        flushPending();
+        queries.addObject(query);
+    }
+
+    private void flushPending(){
+        if(pendingResults.size() > 0){
+            chunks.add(new JsonObject()
+                .putString("status", MORE_EXIST)
+                .putNumber("query", pendingQuery)
+                .putArray("results", pendingResults));
+            pendingResults = new JsonArray();
+            pendingPoints = 0;
+        }
+    }
+
+    private void fail(String errorMessage){
+        if(cancelled){
+            return;
+        }
+        logger.error(errorMessage);
+        cancel();
+        chunks.add(new JsonObject().putString("status", "error").putString("message", errorMessage));
+        pump();
+    }
+
+    /**
+     * Abandon the stream. The rest of the response is read and discarded rather than the connection closed: the only
+     * way to close it is to take it over with {@link HttpClientResponse#netSocket()}, after which the HTTP client never
+     * learns the connection has gone and its pool slot is lost for good. The cost is that the connection stays busy
+     * until KairosDB has sent the whole result
+     */
+    private void cancel(){
+        cancelled = true;
+        chunks.clear();
+        if(paused){
+            paused = false;
+            response.resume();
+        }
+    }
+
+    private void pump(){
+        while(replyTo != null && !chunks.isEmpty()){
+            JsonObject chunk = chunks.poll();
+            Message<JsonObject> message = replyTo;
+            replyTo = null;
+            if(!MORE_EXIST.equals(chunk.getString("status"))){
+                message.reply(chunk);
+                end();
+                return;
+            }
+            message.replyWithTimeout(chunk, timeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+                @Override
+                public void handle(AsyncResult<Message<JsonObject>> next) {
+                    if(cancelled){
+                        return;
+                    }
+                    if(next.failed()){
+                        logger.error("query result stream abandoned: caller did not request the next results in time");
+                        cancel();
+                        end();
+                        return;
+                    }
+                    replyTo = next.result();
+                    pump();
+                    if(paused && chunks.size() < maxQueued){
+                        paused = false;
+                        response.resume();
+                    }
+                }
+            });
+        }
+    }
+
+    private void end(){
+        if(!ended){
+            ended = true;
+            if(endHandler != null){
+                endHandler.handle(null);
+            }
+        }
+    }
+}
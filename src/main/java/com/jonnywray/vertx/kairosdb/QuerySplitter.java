@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits a <a href="https://code.google.com/p/kairosdb/wiki/QueryMetrics">query metrics</a> request into queries of
+ * consecutive sub-ranges of its time range, and merges their results. Splits are placed on boundaries shared by
+ * every sampling window of every range aggregator in the query, so each window falls entirely within one
+ * sub-query and the merged result is the same as that of the original query. A query that cannot be split that way,
+ * because it uses calendar units, a limit, time grouping, time zones or an aggregator that depends on the points
+ * either side of it, is not split.
+ *
+ * @author Jonny Wray
+ */
+public class QuerySplitter {
+
+    private static final Set<String> RANGE_AGGREGATORS = new HashSet<>(Arrays.asList("avg", "dev", "count", "first",
+            "gaps", "last", "least_squares", "max", "min", "percentile", "sum"));
+    private static final Set<String> POINT_AGGREGATORS = new HashSet<>(Arrays.asList("div", "scale"));
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+
+    private QuerySplitter(){
+    }
+
+    /**
+     * Split a query into queries of consecutive absolute sub-ranges
+     *
+     * @param query the query
+     * @param subRange the approximate length of each sub-range in milliseconds, rounded up to a multiple of the
+     *                 sampling windows
+     * @param now the current time in milliseconds, used to resolve relative times
+     * @return the queries in time order, or null if the query cannot be split or covers only one sub-range
+     */
+    public static List<JsonObject> split(JsonObject query, long subRange, long now){
+        if(query.getField("time_zone") != null || query.getField("metrics") == null){
+            return null;
+        }
+        long start;
+        long end;
+        if(query.getField("start_absolute") != null){
+            start = query.getLong("start_absolute");
+        }
+        else{
+            long relative = relativeMillis(query.getObject("start_relative"));
+            if(relative < 0){
+                return null;
+            }
+            start = now - relative;
+        }
+        if(query.getField("end_absolute") != null){
+            end = query.getLong("end_absolute");
+        }
+        else if(query.getField("end_relative") != null){
+            long relative = relativeMillis(query.getObject("end_relative"));
+            if(relative < 0){
+                return null;
+            }
+            end = now - relative;
+        }
+        else{
+            end = now;
+        }
+
+        // every split boundary must be the origin of the sampling windows plus a multiple of step
+        long step = 1;
+        long alignment = 0;
+        boolean unaligned = false;
+        for(Object metricObject : query.getArray("metrics")){
+            JsonObject metric = (JsonObject) metricObject;
+            if(metric.getField("limit") != null || hasTimeGrouping(metric)){
+                return null;
+            }
+            JsonArray aggregators = metric.getArray("aggregators", new JsonArray());
+            for(Object aggregatorObject : aggregators){
+                JsonObject aggregator = (JsonObject) aggregatorObject;
+                String name = aggregator.getString("name");
+                if(POINT_AGGREGATORS.contains(name)){
+                    continue;
+                }
+                if(!RANGE_AGGREGATORS.contains(name) || aggregator.getBoolean("align_start_time", false)
+                        || aggregator.getBoolean("align_end_time", false)){
+                    return null;
+                }
+                JsonObject sampling = aggregator.getObject("sampling");
+                long samplingMillis = sampling == null ? -1 : unitMillis(sampling.getString("unit"));
+                if(samplingMillis <= 0 || sampling.getNumber("value") == null || sampling.getNumber("value").longValue() <= 0){
+                    return null;
+                }
+                samplingMillis *= sampling.getNumber("value").longValue();
+                step = lcm(step, samplingMillis);
+                if(aggregator.getBoolean("align_sampling", false)){
+                    // KairosDB aligns the start of every query, and so of every split, to the top of the hour, or
+                    // of the day for days, so splits must also fall on those
+                    long unitAlignment = "days".equals(sampling.getString("unit")) ? DAY : HOUR;
+                    if("weeks".equals(sampling.getString("unit")) || (alignment != 0 && alignment != unitAlignment)){
+                        return null;
+                    }
+                    alignment = unitAlignment;
+                    step = lcm(step, alignment);
+                }
+                else{
+                    unaligned = true;
+                }
+            }
+        }
+        if(alignment != 0 && unaligned){
+            return null;
+        }
+        long origin = alignment == 0 ? start : start - ((start % alignment) + alignment) % alignment;
+        long splitStep = Math.max(step, (subRange + step - 1) / step * step);
+        List<JsonObject> queries = new ArrayList<>();
+        long splitStart = start;
+        long boundary = origin + splitStep;
+        while(boundary <= start){
+            boundary += splitStep;
+        }
+        while(splitStart <= end){
+            long splitEnd = Math.min(end, boundary - 1);
+            JsonObject subQuery = query.copy();
+            subQuery.removeField("start_relative");
+            subQuery.removeField("end_relative");
+            subQuery.putNumber("start_absolute", splitStart);
+            subQuery.putNumber("end_absolute", splitEnd);
+            queries.add(subQuery);
+            splitStart = boundary;
+            boundary += splitStep;
+        }
+        return queries.size() > 1 ? queries : null;
+    }
+
+    /**
+     * Merge the responses of split queries, concatenating the values of each result, identified by its name and
+     * grouping, in time order
+     *
+     * @param query the original query
+     * @param responses the responses to the split queries, in the order of the queries
+     * @return the merged response
+     */
+    public static JsonObject merge(JsonObject query, List<JsonObject> responses){
+        JsonArray metrics = query.getArray("metrics");
+        JsonArray mergedQueries = new JsonArray();
+        for(int i=0;i<metrics.size();i++){
+            boolean descending = "desc".equals(((JsonObject) metrics.get(i)).getString("order"));
+            Map<String, JsonObject> results = new LinkedHashMap<>();
+            Map<String, Map<String, Set<Object>>> tags = new LinkedHashMap<>();
+            long sampleSize = 0;
+            for(int j=0;j<responses.size();j++){
+                JsonObject response = responses.get(descending ? responses.size() - 1 - j : j);
+                JsonObject queryResult = (JsonObject) response.getArray("queries").get(i);
+                Number size = queryResult.getNumber("sample_size");
+                sampleSize += size == null ? 0 : size.longValue();
+                for(Object resultObject : queryResult.getArray("results", new JsonArray())){
+                    JsonObject result = (JsonObject) resultObject;
+                    JsonArray groupBy = result.getArray("group_by");
+                    String key = result.getString("name") + '\u0000' + (groupBy == null ? "" : groupBy.encode());
+                    JsonObject merged = results.get(key);
+                    if(merged == null){
+                        results.put(key, result);
+                        tags.put(key, new LinkedHashMap<String, Set<Object>>());
+                    }
+                    else{
+                        for(Object value : result.getArray("values", new JsonArray())){
+                            merged.getArray("values").add(value);
+                        }
+                    }
+                    JsonObject resultTags = result.getObject("tags");
+                    if(resultTags != null){
+                        Map<String, Set<Object>> mergedTags = tags.get(key);
+                        for(String tagName : resultTags.getFieldNames()){
+                            Set<Object> values = mergedTags.get(tagName);
+                            if(values == null){
+                                values = new LinkedHashSet<>();
+                                mergedTags.put(tagName, values);
+                            }
+                            for(Object value : resultTags.getArray(tagName)){
+                                values.add(value);
+                            }
+                        }
+                    }
+                }
+            }
+            JsonArray mergedResults = new JsonArray();
+            for(Map.Entry<String, JsonObject> entry : results.entrySet()){
+                JsonObject merged = entry.getValue();
+                if(merged.getArray("values") == null){
+                    merged.putArray("values", new JsonArray());
+                }
+                JsonObject mergedTags = new JsonObject();
+                for(Map.Entry<String, Set<Object>> tag : tags.get(entry.getKey()).entrySet()){
+                    mergedTags.putArray(tag.getKey(), new JsonArray(new ArrayList<>(tag.getValue())));
+                }
+                merged.putObject("tags", mergedTags);
+                mergedResults.addObject(merged);
+            }
+            mergedQueries.addObject(new JsonObject().putNumber("sample_size", sampleSize).putArray("results", mergedResults));
+        }
+        return new JsonObject().putArray("queries", mergedQueries);
+    }
+
+    private static boolean hasTimeGrouping(JsonObject metric){
+        for(Object groupBy : metric.getArray("group_by", new JsonArray())){
+            if("time".equals(((JsonObject) groupBy).getString("name"))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long relativeMillis(JsonObject relative){
+        if(relative == null || relative.getNumber("value") == null){
+            return -1;
+        }
+        long unit = unitMillis(relative.getString("unit"));
+        return unit < 0 ? -1 : relative.getNumber("value").longValue() * unit;
+    }
+
+    /**
+     * @return the length of a unit in milliseconds, or -1 for calendar units whose length varies
+     */
+    private static long unitMillis(String unit){
+        if(unit == null){
+            return -1;
+        }
+        switch (unit){
+            case "milliseconds":
+                return 1;
+            case "seconds":
+                return 1000;
+            case "minutes":
+                return 60000;
+            case "hours":
+                return HOUR;
+            case "days":
+                return DAY;
+            case "weeks":
+                return 7 * DAY;
+            default:
+                return -1;
+        }
+    }
+
+    private static long lcm(long a, long b){
+        long x = a;
+        long y = b;
+        while(y != 0){
+            long t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+}
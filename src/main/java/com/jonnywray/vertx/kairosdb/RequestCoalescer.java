@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces identical requests that are in flight at the same time. The first request for a key becomes the leader
+ * and is executed; requests for the same key that arrive before the leader completes become its followers and are
+ * not executed, but receive the leader's result when it completes.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class RequestCoalescer<T> {
+
+    private final Map<String, List<T>> followers = new HashMap<>();
+    private final Map<T, String> leaders = new IdentityHashMap<>();
+    private final Map<String, T> leadersByKey = new HashMap<>();
+    private long coalesced;
+
+    /**
+     * Register a request
+     *
+     * @param key the key identifying identical requests
+     * @param request the request
+     * @return true if the request has joined one already in flight and must not be executed, false if it is the leader
+     * and must be executed
+     */
+    public boolean join(String key, T request){
+        List<T> waiting = followers.get(key);
+        if(waiting != null){
+            waiting.add(request);
+            coalesced++;
+            return true;
+        }
+        followers.put(key, new ArrayList<T>());
+        leaders.put(request, key);
+        leadersByKey.put(key, request);
+        return false;
+    }
+
+    /**
+     * @param key the key identifying identical requests
+     * @return the request in flight for the key, which a request joining it would follow, or null if there is none
+     */
+    public T getLeader(String key){
+        return leadersByKey.get(key);
+    }
+
+    /**
+     * Complete a request
+     *
+     * @param request the request that has completed
+     * @return the followers that should receive the same result, or null if the request was not a leader
+     */
+    public List<T> complete(T request){
+        String key = leaders.remove(request);
+        if(key == null){
+            return null;
+        }
+        leadersByKey.remove(key);
+        return followers.remove(key);
+    }
+
+    /**
+     * @return the number of distinct requests in flight
+     */
+    public int getInFlight(){
+        return leaders.size();
+    }
+
+    /**
+     * @return the total number of requests that were answered by joining another
+     */
+    public long getCoalesced(){
+        return coalesced;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Random;
+
+/**
+ * How many times a failed request is attempted and how long to wait between attempts. The wait grows exponentially
+ * from a base delay up to a maximum, and a random half of each wait is jittered so that requests that failed together
+ * do not retry together.
+ *
+ * @author Jonny Wray
+ */
+public class RetryPolicy {
+
+    /**
+     * A policy of a single attempt
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxAttempts the total number of attempts, including the first
+     * @param baseDelay the delay in milliseconds before the first retry, before jitter
+     * @param maxDelay the maximum delay in milliseconds before any retry
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay){
+        if(maxAttempts < 1){
+            throw new IllegalArgumentException("max_attempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Create a policy from configuration
+     *
+     * @param config the configuration object, or null to use the defaults
+     * @param defaultMaxAttempts the number of attempts if not configured
+     * @return the policy
+     */
+    public static RetryPolicy fromConfig(JsonObject config, int defaultMaxAttempts){
+        if(config == null){
+            config = new JsonObject();
+        }
+        return new RetryPolicy(config.getInteger("max_attempts", defaultMaxAttempts),
+                config.getLong("base_delay", 50),
+                config.getLong("max_delay", 2000));
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @return whether another attempt may be made
+     */
+    public boolean canRetry(int attempt){
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @param random the source of jitter
+     * @return the time in milliseconds to wait before the next attempt
+     */
+    public long delay(int attempt, Random random){
+        long ceiling = baseDelay;
+        for(int i=1;i<attempt && ceiling < maxDelay;i++){
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelay);
+        long half = ceiling / 2;
+        return ceiling - half + (half == 0 ? 0 : (long) (random.nextDouble() * (half + 1)));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Pre-aggregates data points into fixed time windows before they are written. Each rule matches metric names with a
+ * regular expression and, for every series of a matching metric, keeps the count, sum, minimum and maximum of the
+ * values in each window and optionally a {@link ValueSketch} from which percentiles are estimated. When a window
+ * closes, a fixed lateness after its end, one data point is produced for each configured aggregate, named by
+ * appending the aggregate to the metric name, with the tags of the series and the start of the window as timestamp.
+ * Windows are closed by the current time, so points arriving for a window that has already closed, including
+ * points with old timestamps, are counted and dropped, as writing them would overwrite the rollup already written.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class RollupAggregator {
+
+    /**
+     * The aggregates that can be produced for a window, in addition to percentiles
+     */
+    public static final Set<String> AGGREGATES = new HashSet<>(Arrays.asList("count", "sum", "min", "max", "avg"));
+
+    private static final int MAX_CACHED_NAMES = 10000;
+    private static final double DEFAULT_ACCURACY = 0.01;
+    private static final Rule NO_RULE = new Rule(null, 1, 0, new ArrayList<String>(), new double[0], DEFAULT_ACCURACY);
+
+    private final List<Rule> rules;
+    private final Map<String, Rule> ruleCache = new HashMap<>();
+    private final Map<String, SeriesWindows> series = new HashMap<>();
+
+    private int openWindows;
+    private long rolledUpPoints;
+    private long latePoints;
+    private long emittedPoints;
+
+    /**
+     * @param rules the rules, the first rule matching a metric name is used
+     */
+    public RollupAggregator(List<Rule> rules){
+        this.rules = rules;
+    }
+
+    /**
+     * Create an aggregator from configuration
+     *
+     * @param rulesConfig the array of rule configuration objects
+     * @return the aggregator
+     */
+    public static RollupAggregator fromConfig(JsonArray rulesConfig){
+        List<Rule> rules = new ArrayList<>();
+        for(Object ruleConfig : rulesConfig){
+            rules.add(Rule.fromConfig((JsonObject) ruleConfig));
+        }
+        return new RollupAggregator(rules);
+    }
+
+    /**
+     * Find the rule for a metric name
+     *
+     * @param name the metric name
+     * @return the first matching rule, or null if none match
+     */
+    public Rule match(String name){
+        Rule rule = ruleCache.get(name);
+        if(rule == null){
+            rule = NO_RULE;
+            for(Rule candidate : rules){
+                if(candidate.pattern.matcher(name).matches()){
+                    rule = candidate;
+                    break;
+                }
+            }
+            if(ruleCache.size() < MAX_CACHED_NAMES){
+                ruleCache.put(name, rule);
+            }
+        }
+        return rule == NO_RULE ? null : rule;
+    }
+
+    /**
+     * Aggregate the points of a data points object if a rule matches its metric name
+     *
+     * @param dataPoints the validated data points object, in either single or multiple form
+     * @param now the current time in milliseconds
+     * @return the matching rule, or null if the points were not aggregated because no rule matches or the object
+     *         has values that are not numbers or fields other than the name, tags and points
+     */
+    public Rule add(JsonObject dataPoints, long now){
+        Rule rule = match(dataPoints.getString("name"));
+        if(rule == null || !isAggregatable(dataPoints)){
+            return null;
+        }
+        JsonObject tags = dataPoints.getObject("tags");
+        String key = SeriesAccumulator.key(dataPoints.getString("name"), tags);
+        SeriesWindows windows = series.get(key);
+        if(windows == null){
+            windows = new SeriesWindows(dataPoints.getString("name"), tags.copy(), rule);
+            series.put(key, windows);
+        }
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            add(windows, dataPoints.getNumber("timestamp").longValue(), dataPoints.getNumber("value"), now);
+        }
+        else{
+            for(Object point : multiple){
+                JsonArray pair = (JsonArray) point;
+                add(windows, ((Number) pair.get(0)).longValue(), (Number) pair.get(1), now);
+            }
+        }
+        return rule;
+    }
+
+    /**
+     * Remove the windows that have closed and produce their rollup data points
+     *
+     * @param now the current time in milliseconds
+     * @return the data points objects, possibly empty
+     */
+    public JsonArray closeWindows(long now){
+        JsonArray dataPoints = new JsonArray();
+        Iterator<SeriesWindows> iterator = series.values().iterator();
+        while(iterator.hasNext()){
+            SeriesWindows windows = iterator.next();
+            Iterator<Map.Entry<Long, Window>> windowIterator = windows.windows.entrySet().iterator();
+            while(windowIterator.hasNext()){
+                Map.Entry<Long, Window> entry = windowIterator.next();
+                if(!windows.rule.isClosed(entry.getKey(), now)){
+                    break;
+                }
+                emit(windows, entry.getKey(), entry.getValue(), dataPoints);
+                windowIterator.remove();
+                openWindows--;
+            }
+            if(windows.windows.isEmpty()){
+                iterator.remove();
+            }
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Remove every window, closed or not, and produce their rollup data points
+     *
+     * @return the data points objects, possibly empty
+     */
+    public JsonArray closeAll(){
+        JsonArray dataPoints = closeWindows(Long.MAX_VALUE);
+        series.clear();
+        return dataPoints;
+    }
+
+    public int getOpenWindows() {
+        return openWindows;
+    }
+
+    /**
+     * @return the counters as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("series", series.size())
+            .putNumber("open_windows", openWindows)
+            .putNumber("rolled_up_points", rolledUpPoints)
+            .putNumber("late_points", latePoints)
+            .putNumber("emitted_points", emittedPoints);
+    }
+
+    private void add(SeriesWindows windows, long timestamp, Number value, long now){
+        Rule rule = windows.rule;
+        long windowStart = timestamp - ((timestamp % rule.window) + rule.window) % rule.window;
+        Window window = windows.windows.get(windowStart);
+        if(window == null){
+            if(rule.isClosed(windowStart, now)){
+                latePoints++;
+                return;
+            }
+            window = new Window(rule.percentiles.isEmpty() ? null : new ValueSketch(rule.percentileAccuracy));
+            windows.windows.put(windowStart, window);
+            openWindows++;
+        }
+        window.add(value);
+        rolledUpPoints++;
+    }
+
+    private void emit(SeriesWindows windows, long windowStart, Window window, JsonArray dataPoints){
+        Rule rule = windows.rule;
+        for(String aggregate : rule.aggregates){
+            Number value;
+            switch (aggregate){
+                case "count":
+                    value = window.count;
+                    break;
+                case "sum":
+                    value = window.allLong ? (Number) window.longSum : (Number) window.sum;
+                    break;
+                case "min":
+                    value = window.allLong ? (Number) window.longMin : (Number) window.min;
+                    break;
+                case "max":
+                    value = window.allLong ? (Number) window.longMax : (Number) window.max;
+                    break;
+                default:
+                    value = window.sum / window.count;
+            }
+            dataPoints.addObject(dataPoint(windows.name + "." + aggregate, windowStart, value, windows.tags));
+        }
+        for(int i=0;i<rule.percentiles.size();i++){
+            double percentile = window.sketch.percentile(rule.percentiles.get(i));
+            dataPoints.addObject(dataPoint(windows.name + "." + rule.percentileNames.get(i), windowStart, percentile, windows.tags));
+        }
+        emittedPoints += rule.aggregates.size() + rule.percentiles.size();
+    }
+
+    private static JsonObject dataPoint(String name, long timestamp, Number value, JsonObject tags){
+        return new JsonObject()
+            .putString("name", name)
+            .putNumber("timestamp", timestamp)
+            .putNumber("value", value)
+            .putObject("tags", tags.copy());
+    }
+
+    private static boolean isAggregatable(JsonObject dataPoints){
+        for(String field : dataPoints.getFieldNames()){
+            switch (field){
+                case "name":
+                case "tags":
+                case "timestamp":
+                case "value":
+                case "datapoints":
+                    break;
+                default:
+                    return false;
+            }
+        }
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            return dataPoints.getField("timestamp") instanceof Number && dataPoints.getField("value") instanceof Number;
+        }
+        for(Object point : multiple){
+            if(!(point instanceof JsonArray)){
+                return false;
+            }
+            JsonArray pair = (JsonArray) point;
+            if(pair.size() != 2 || !(pair.get(0) instanceof Number) || !(pair.get(1) instanceof Number)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A pre-aggregation rule
+     */
+    public static class Rule {
+
+        private final Pattern pattern;
+        private final long window;
+        private final long lateness;
+        private final List<String> aggregates;
+        private final List<Double> percentiles = new ArrayList<>();
+        private final List<String> percentileNames = new ArrayList<>();
+        private final double percentileAccuracy;
+        private boolean keepRaw;
+
+        /**
+         * @param pattern the regular expression matching the metric names the rule applies to
+         * @param window the length of each window in milliseconds
+         * @param lateness the time in milliseconds after the end of a window that points are still accepted
+         * @param aggregates the aggregates to produce
+         * @param percentiles the percentiles to produce, between 0 and 100
+         * @param percentileAccuracy the relative accuracy of estimated percentiles, between 0 and 1 exclusive
+         */
+        public Rule(String pattern, long window, long lateness, List<String> aggregates, double[] percentiles,
+                    double percentileAccuracy){
+            if(window < 1){
+                throw new IllegalArgumentException("rollup window must be positive");
+            }
+            for(String aggregate : aggregates){
+                if(!AGGREGATES.contains(aggregate)){
+                    throw new IllegalArgumentException("unsupported rollup aggregate: " + aggregate);
+                }
+            }
+            this.pattern = pattern == null ? null : Pattern.compile(pattern);
+            this.window = window;
+            this.lateness = lateness;
+            this.aggregates = aggregates;
+            for(double percentile : percentiles){
+                if(percentile <= 0 || percentile > 100){
+                    throw new IllegalArgumentException("rollup percentiles must be between 0 and 100");
+                }
+                this.percentiles.add(percentile);
+                this.percentileNames.add("p" + (percentile == Math.rint(percentile)
+                        ? Long.toString((long) percentile) : Double.toString(percentile).replace(".", "")));
+            }
+            if(!(percentileAccuracy > 0 && percentileAccuracy < 1)){
+                throw new IllegalArgumentException("rollup percentile_accuracy must be between 0 and 1");
+            }
+            this.percentileAccuracy = percentileAccuracy;
+        }
+
+        /**
+         * Create a rule from configuration
+         *
+         * @param config the rule configuration object
+         * @return the rule
+         */
+        public static Rule fromConfig(JsonObject config){
+            String pattern = config.getString("pattern");
+            if(pattern == null){
+                throw new IllegalArgumentException("rollup rules must specify a pattern");
+            }
+            List<String> aggregates = new ArrayList<>();
+            for(Object aggregate : config.getArray("aggregates", new JsonArray().addString("count").addString("sum")
+                    .addString("min").addString("max").addString("avg"))){
+                aggregates.add((String) aggregate);
+            }
+            JsonArray percentilesConfig = config.getArray("percentiles", new JsonArray());
+            double[] percentiles = new double[percentilesConfig.size()];
+            for(int i=0;i<percentiles.length;i++){
+                percentiles[i] = ((Number) percentilesConfig.get(i)).doubleValue();
+            }
+            Number accuracy = config.getNumber("percentile_accuracy");
+            Rule rule = new Rule(pattern, config.getLong("window", 10000), config.getLong("lateness", 1000),
+                    aggregates, percentiles, accuracy == null ? DEFAULT_ACCURACY : accuracy.doubleValue());
+            rule.keepRaw = config.getBoolean("keep_raw", false);
+            return rule;
+        }
+
+        /**
+         * @return whether the raw data points are written as well as the rollups
+         */
+        public boolean isKeepRaw() {
+            return keepRaw;
+        }
+
+        private boolean isClosed(long windowStart, long now){
+            return now - lateness >= windowStart + window;
+        }
+    }
+
+    /**
+     * The open windows of one series, in time order
+     */
+    private static class SeriesWindows {
+
+        private final String name;
+        private final JsonObject tags;
+        private final Rule rule;
+        private final TreeMap<Long, Window> windows = new TreeMap<>();
+
+        private SeriesWindows(String name, JsonObject tags, Rule rule){
+            this.name = name;
+            this.tags = tags;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * The aggregates of the values in one window. Sums, minima and maxima of long values stay longs
+     */
+    private static class Window {
+
+        private final ValueSketch sketch;
+        private long count;
+        private double sum;
+        private long longSum;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+        private long longMin = Long.MAX_VALUE;
+        private long longMax = Long.MIN_VALUE;
+        private boolean allLong = true;
+
+        private Window(ValueSketch sketch){
+            this.sketch = sketch;
+        }
+
+        private void add(Number value){
+            double doubleValue = value.doubleValue();
+            if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+                long longValue = value.longValue();
+                longSum += longValue;
+                longMin = Math.min(longMin, longValue);
+                longMax = Math.max(longMax, longValue);
+            }
+            else{
+                allLong = false;
+            }
+            count++;
+            sum += doubleValue;
+            min = Math.min(min, doubleValue);
+            max = Math.max(max, doubleValue);
+            if(sketch != null){
+                sketch.record(doubleValue);
+            }
+        }
+    }
+}
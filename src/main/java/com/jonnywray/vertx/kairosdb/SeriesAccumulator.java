@@ -0,0 +1,327 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage for buffered data points. Points are grouped by series, the metric name and tags, and each
+ * series keeps its timestamps and values in growable primitive arrays rather than as boxed JSON values. The name and
+ * tags of a series are encoded once, when the series is first seen, and the points are only converted to the
+ * <a href="https://code.google.com/p/kairosdb/wiki/AddDataPoints">add data points</a> JSON form when they are
+ * written out, with all the points of a series in a single data points object.
+ *
+ * Series are kept between batches so their storage is reused, and a series that receives no points during a whole
+ * batch is removed when that batch is cleared.
+ *
+ * Only data points objects with a name, string tags, and integral timestamps with long or double values are
+ * accumulated; {@link #add(JsonObject)} returns false for anything else, such as objects with a <code>ttl</code> or
+ * custom type, so that the caller can keep them in their original form.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class SeriesAccumulator {
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int BYTES_PER_POINT = 32;
+
+    private final Map<String, Series> series = new LinkedHashMap<>();
+    private int points;
+    private int activeSeries;
+    private long headerBytes;
+
+    /**
+     * Add the points of a data points object
+     *
+     * @param dataPoints the validated data points object, in either single or multiple form
+     * @return whether the points were added, false if the object cannot be held in columnar form
+     */
+    public boolean add(JsonObject dataPoints){
+        if(!isColumnar(dataPoints)){
+            return false;
+        }
+        JsonObject tags = dataPoints.getObject("tags");
+        String key = key(dataPoints.getString("name"), tags);
+        Series target = series.get(key);
+        if(target == null){
+            target = new Series(dataPoints.getString("name"), tags);
+            series.put(key, target);
+        }
+        if(target.count == 0){
+            activeSeries++;
+            headerBytes += target.header.length;
+        }
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            target.add(dataPoints.getNumber("timestamp").longValue(), dataPoints.getNumber("value"));
+            points++;
+        }
+        else{
+            target.ensureCapacity(target.count + multiple.size());
+            for(Object point : multiple){
+                JsonArray pair = (JsonArray) point;
+                target.add(((Number) pair.get(0)).longValue(), (Number) pair.get(1));
+            }
+            points += multiple.size();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of points held
+     */
+    public int getPoints(){
+        return points;
+    }
+
+    /**
+     * @return the number of series with points held
+     */
+    public int getSeries(){
+        return activeSeries;
+    }
+
+    /**
+     * @return the number of series being tracked, including those without points in the current batch
+     */
+    public int getTrackedSeries(){
+        return series.size();
+    }
+
+    /**
+     * @return an estimate of the size in bytes of the points when written out
+     */
+    public long estimateBytes(){
+        return headerBytes + (long) points * BYTES_PER_POINT;
+    }
+
+    /**
+     * Write a data points object for each series with points, separated by commas
+     *
+     * @param out the buffer to append to
+     * @param separate whether to write a comma before the first object
+     * @return the number of objects written
+     */
+    public int writeTo(ByteBuf out, boolean separate){
+        out.ensureWritable((int) Math.min(Integer.MAX_VALUE, estimateBytes() + activeSeries * 2));
+        int written = 0;
+        for(Series entry : series.values()){
+            if(entry.count == 0){
+                continue;
+            }
+            if(separate || written > 0){
+                out.writeByte(',');
+            }
+            entry.writeTo(out);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Remove all the points held, and stop tracking series that received no points since the previous clear
+     */
+    public void clear(){
+        Iterator<Series> iterator = series.values().iterator();
+        while(iterator.hasNext()){
+            Series entry = iterator.next();
+            if(entry.count == 0){
+                iterator.remove();
+            }
+            else{
+                entry.clear();
+            }
+        }
+        points = 0;
+        activeSeries = 0;
+        headerBytes = 0;
+    }
+
+    private static boolean isColumnar(JsonObject dataPoints){
+        for(String field : dataPoints.getFieldNames()){
+            switch (field){
+                case "name":
+                case "tags":
+                case "timestamp":
+                case "value":
+                case "datapoints":
+                    break;
+                default:
+                    return false;
+            }
+        }
+        if(!(dataPoints.getField("name") instanceof String) || !(dataPoints.getField("tags") instanceof JsonObject)){
+            return false;
+        }
+        JsonObject tags = dataPoints.getObject("tags");
+        for(String tagName : tags.getFieldNames()){
+            if(!(tags.getField(tagName) instanceof String)){
+                return false;
+            }
+        }
+        Object multiple = dataPoints.getField("datapoints");
+        if(multiple == null){
+            return isTimestamp(dataPoints.getField("timestamp")) && isValue(dataPoints.getField("value"));
+        }
+        if(!(multiple instanceof JsonArray) || dataPoints.getField("timestamp") != null || dataPoints.getField("value") != null){
+            return false;
+        }
+        for(Object point : (JsonArray) multiple){
+            if(!(point instanceof JsonArray)){
+                return false;
+            }
+            JsonArray pair = (JsonArray) point;
+            if(pair.size() != 2 || !isTimestamp(pair.get(0)) || !isValue(pair.get(1))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTimestamp(Object value){
+        return value instanceof Long || value instanceof Integer;
+    }
+
+    private static boolean isValue(Object value){
+        if(value instanceof Double){
+            double doubleValue = (Double) value;
+            return !Double.isNaN(doubleValue) && !Double.isInfinite(doubleValue);
+        }
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Build a key identifying a series, independent of the order of its tags
+     */
+    static String key(String name, JsonObject tags){
+        List<String> tagNames = new ArrayList<>(tags.getFieldNames());
+        Collections.sort(tagNames);
+        StringBuilder key = new StringBuilder(name);
+        for(String tagName : tagNames){
+            key.append('\u0000').append(tagName).append('\u0000').append(tags.getString(tagName));
+        }
+        return key.toString();
+    }
+
+    /**
+     * The points of one series. Values are held as longs, with double values held as their bit patterns and marked
+     * in a bit set that is only created once a series has a double value
+     */
+    private static class Series {
+
+        private final byte[] header;
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private BitSet doubles;
+        private int count;
+
+        private Series(String name, JsonObject tags){
+            ByteBuf encoded = Unpooled.buffer();
+            encoded.writeBytes("{\"name\":".getBytes());
+            JsonBodyEncoder.writeString(encoded, name);
+            encoded.writeBytes(",\"tags\":{".getBytes());
+            boolean first = true;
+            for(String tagName : tags.getFieldNames()){
+                if(!first){
+                    encoded.writeByte(',');
+                }
+                first = false;
+                JsonBodyEncoder.writeString(encoded, tagName);
+                encoded.writeByte(':');
+                JsonBodyEncoder.writeString(encoded, tags.getString(tagName));
+            }
+            encoded.writeBytes("},\"datapoints\":[".getBytes());
+            header = new byte[encoded.readableBytes()];
+            encoded.readBytes(header);
+        }
+
+        private void add(long timestamp, Number value){
+            ensureCapacity(count + 1);
+            timestamps[count] = timestamp;
+            if(value instanceof Double){
+                if(doubles == null){
+                    doubles = new BitSet();
+                }
+                doubles.set(count);
+                values[count] = Double.doubleToRawLongBits(value.doubleValue());
+            }
+            else{
+                values[count] = value.longValue();
+            }
+            count++;
+        }
+
+        private void ensureCapacity(int capacity){
+            if(capacity > timestamps.length){
+                int newLength = Math.max(capacity, timestamps.length * 2);
+                timestamps = Arrays.copyOf(timestamps, newLength);
+                values = Arrays.copyOf(values, newLength);
+            }
+        }
+
+        private void writeTo(ByteBuf out){
+            out.writeBytes(header);
+            for(int i=0;i<count;i++){
+                if(i > 0){
+                    out.writeByte(',');
+                }
+                out.writeByte('[');
+                JsonBodyEncoder.writeLong(out, timestamps[i]);
+                out.writeByte(',');
+                if(doubles != null && doubles.get(i)){
+                    JsonBodyEncoder.writeDouble(out, Double.longBitsToDouble(values[i]));
+                }
+                else{
+                    JsonBodyEncoder.writeLong(out, values[i]);
+                }
+                out.writeByte(']');
+            }
+            out.writeByte(']');
+            out.writeByte('}');
+        }
+
+        /**
+         * Remove the points, shrinking storage that is much larger than the batch just written
+         */
+        private void clear(){
+            if(timestamps.length > INITIAL_CAPACITY && count < timestamps.length / 4){
+                int newLength = Math.max(INITIAL_CAPACITY, count);
+                timestamps = new long[newLength];
+                values = new long[newLength];
+            }
+            doubles = null;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns series to the instances of a persistor deployed with several instances. Each instance claims a distinct
+ * shard index and listens on its own shard address, and data points are routed to the shard chosen by a hash of the
+ * metric name and tags, so that every point of a series is handled by the same instance and per series state such
+ * as batches, rollups and change filters stays in one place.
+ *
+ * Claims are held in Vert.x shared data, which is local to one JVM, so the shard addresses include an identifier of
+ * the JVM. In a cluster the instances in each JVM form their own group of shards and never receive the shard
+ * messages of another JVM, as they would if the event bus shared an address between instances in several JVMs.
+ *
+ * @author Jonny Wray
+ */
+public class ShardRouter {
+
+    private static final String NODE_KEY = "node";
+
+    private final String address;
+    private final String node;
+    private final int shards;
+
+    /**
+     * @param address the main address of the persistor
+     * @param node the identifier of the JVM, as returned by {@link #node(ConcurrentMap, String)}
+     * @param shards the number of shards, which must be the number of instances deployed in the JVM
+     */
+    public ShardRouter(String address, String node, int shards){
+        if(shards < 1){
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        this.address = address;
+        this.node = node;
+        this.shards = shards;
+    }
+
+    /**
+     * Determine the identifier of the JVM, which the first instance to start chooses
+     *
+     * @param claims the map of claims shared between the instances
+     * @param candidate the identifier to use if no instance has chosen one, which must be unique across a cluster
+     * @return the identifier of the JVM
+     */
+    public static String node(ConcurrentMap<String, String> claims, String candidate){
+        String existing = claims.putIfAbsent(NODE_KEY, candidate);
+        return existing == null ? candidate : existing;
+    }
+
+    /**
+     * Claim the lowest shard index not claimed by another instance
+     *
+     * @param claims the map of claims shared between the instances
+     * @param owner an identifier unique to the claiming instance
+     * @return the claimed index, or -1 if every shard is claimed
+     */
+    public int claim(ConcurrentMap<String, String> claims, String owner){
+        for(int i=0;i<shards;i++){
+            if(claims.putIfAbsent(shardAddress(i), owner) == null){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Release a claimed shard index
+     *
+     * @param claims the map of claims shared between the instances
+     * @param owner the identifier the index was claimed with
+     * @param shard the claimed index
+     */
+    public void release(ConcurrentMap<String, String> claims, String owner, int shard){
+        claims.remove(shardAddress(shard), owner);
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the address of the shard
+     */
+    public String shardAddress(int shard){
+        return address + ".shard." + node + "." + shard;
+    }
+
+    /**
+     * @param dataPoints a data points object
+     * @return the shard for the series of the data points, or -1 if the object has no name or tags
+     */
+    public int shardFor(JsonObject dataPoints){
+        if(dataPoints == null || !(dataPoints.getField("name") instanceof String)
+                || !(dataPoints.getField("tags") instanceof JsonObject)){
+            return -1;
+        }
+        return shard(dataPoints.getString("name"), dataPoints.getObject("tags"), shards);
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Determine the shard of a series. The result does not depend on the order of the tags, so producers may use this
+     * to send data points straight to the shard address
+     *
+     * @param name the metric name
+     * @param tags the tags
+     * @param shards the number of shards
+     * @return the shard index
+     */
+    public static int shard(String name, JsonObject tags, int shards){
+        int hash = SeriesAccumulator.key(name, tags).hashCode();
+        // spread the bits of the string hash, as in the murmur3 finalizer
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Helper class responsible for converting <a href="https://code.google.com/p/kairosdb/wiki/AddDataPoints">add data points</a>
+ * objects into lines of the KairosDB <a href="https://code.google.com/p/kairosdb/wiki/Telnet">telnet protocol</a>, one
+ * <code>put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tag&gt;=&lt;value&gt; ...</code> line per data point.
+ *
+ * @author Jonny Wray
+ */
+public class TelnetFormatter {
+
+    private final String command;
+
+    public TelnetFormatter(){
+        this("put");
+    }
+
+    /**
+     * @param command the telnet command used for each line, <code>put</code> or <code>putm</code> depending on KairosDB version
+     */
+    public TelnetFormatter(String command){
+        this.command = command;
+    }
+
+    /**
+     * Format a validated data points object as telnet lines
+     *
+     * @param dataPoints the data points object, in either single or multiple form
+     * @return the lines, each terminated by a new line, or null if the object cannot be represented in the telnet
+     * protocol because a name or tag contains white space
+     */
+    public Buffer format(JsonObject dataPoints){
+        String name = dataPoints.getString("name");
+        if(!isToken(name)){
+            return null;
+        }
+        StringBuilder tags = new StringBuilder();
+        JsonObject tagObject = dataPoints.getObject("tags");
+        for(String tagName : tagObject.getFieldNames()){
+            Object tagValue = tagObject.getValue(tagName);
+            String tagString = tagValue == null ? null : tagValue.toString();
+            if(!isToken(tagName) || !isToken(tagString)){
+                return null;
+            }
+            tags.append(' ').append(tagName).append('=').append(tagString);
+        }
+
+        StringBuilder lines = new StringBuilder();
+        JsonArray multiple = dataPoints.getArray("datapoints");
+        if(multiple == null){
+            appendLine(lines, name, dataPoints.getNumber("timestamp"), dataPoints.getNumber("value"), tags);
+        }
+        else{
+            for(Object point : multiple){
+                JsonArray pair = (JsonArray) point;
+                appendLine(lines, name, (Number) pair.get(0), (Number) pair.get(1), tags);
+            }
+        }
+        return new Buffer(lines.toString());
+    }
+
+    private void appendLine(StringBuilder lines, String name, Number timestamp, Number value, CharSequence tags){
+        lines.append(command).append(' ').append(name).append(' ').append(timestamp.longValue()).append(' ');
+        if(value instanceof Double || value instanceof Float){
+            lines.append(value.doubleValue());
+        }
+        else{
+            lines.append(value.longValue());
+        }
+        lines.append(tags).append('\n');
+    }
+
+    private boolean isToken(String value){
+        if(value == null || value.isEmpty()){
+            return false;
+        }
+        for(int i=0;i<value.length();i++){
+            if(Character.isWhitespace(value.charAt(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+}
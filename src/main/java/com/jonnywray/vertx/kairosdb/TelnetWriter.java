@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.net.NetClient;
+import org.vertx.java.core.net.NetSocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Writes telnet protocol lines to KairosDB over a fixed size pool of persistent connections. Writes are spread
+ * round robin across the connections whose write queue is not full. When every connection is full, or while
+ * connections are still being opened, writes wait in a bounded pending queue that is drained as connections become
+ * available, and once that is also full writes are refused. Writes are also refused when no connection is open and
+ * none is being opened.
+ *
+ * The KairosDB telnet protocol has no acknowledgement, so a write is considered complete once it has been handed to a
+ * connection.
+ *
+ * @author Jonny Wray
+ */
+public class TelnetWriter {
+
+    /**
+     * The outcome of a write
+     */
+    public enum Result {
+        /** the lines were handed to a connection */
+        WRITTEN,
+        /** the lines were refused because max pending writes were already waiting */
+        QUEUE_FULL,
+        /** the lines were refused because no connection is open */
+        NOT_CONNECTED
+    }
+
+    private final Vertx vertx;
+    private final Logger logger;
+    private final List<String> hosts;
+    private final int port;
+    private final int connections;
+    private final int writeQueueMaxSize;
+    private final int maxPending;
+    private final long reconnectInterval;
+
+    private final List<NetSocket> sockets = new ArrayList<>();
+    private final Deque<PendingWrite> pending = new ArrayDeque<>();
+    private NetClient client;
+    private int connecting;
+    private int next;
+    private boolean closed;
+
+    /**
+     * @param vertx the vertx instance
+     * @param logger the logger used to report connection problems
+     * @param hosts the KairosDB hosts, across which connections are spread evenly
+     * @param port the KairosDB telnet port
+     * @param connections the number of persistent connections to maintain
+     * @param writeQueueMaxSize the write queue size in bytes at which a connection is considered full
+     * @param maxPending the number of writes that may wait for a connection before writes are refused
+     * @param reconnectInterval the time in milliseconds between attempts to re-establish a lost connection
+     */
+    public TelnetWriter(Vertx vertx, Logger logger, List<String> hosts, int port, int connections, int writeQueueMaxSize,
+                        int maxPending, long reconnectInterval){
+        this.vertx = vertx;
+        this.logger = logger;
+        this.hosts = hosts;
+        this.port = port;
+        this.connections = connections;
+        this.writeQueueMaxSize = writeQueueMaxSize;
+        this.maxPending = maxPending;
+        this.reconnectInterval = reconnectInterval;
+    }
+
+    /**
+     * Open the connection pool
+     */
+    public void start(){
+        client = vertx.createNetClient()
+            .setTCPKeepAlive(true);
+        for(int i=0;i<connections;i++){
+            connect(hosts.get(i % hosts.size()));
+        }
+    }
+
+    /**
+     * Close the connection pool, failing any writes still waiting for a connection
+     */
+    public void close(){
+        closed = true;
+        failPending();
+        if(client != null){
+            client.close();
+        }
+    }
+
+    /**
+     * @return the number of connections currently open
+     */
+    public int getOpenConnections(){
+        return sockets.size();
+    }
+
+    /**
+     * @return the number of writes waiting for a connection
+     */
+    public int getPendingWrites(){
+        return pending.size();
+    }
+
+    /**
+     * Write lines to KairosDB
+     *
+     * @param lines the telnet lines
+     * @param handler called once the lines have been handed to a connection or refused, with the reason
+     */
+    public void write(Buffer lines, Handler<Result> handler){
+        NetSocket socket = pending.isEmpty() ? availableSocket() : null;
+        if(socket != null){
+            socket.write(lines);
+            handler.handle(Result.WRITTEN);
+        }
+        else if(closed || (sockets.isEmpty() && connecting == 0)){
+            handler.handle(Result.NOT_CONNECTED);
+        }
+        else if(pending.size() < maxPending){
+            pending.add(new PendingWrite(lines, handler));
+        }
+        else{
+            handler.handle(Result.QUEUE_FULL);
+        }
+    }
+
+    private NetSocket availableSocket(){
+        for(int i=0;i<sockets.size();i++){
+            NetSocket socket = sockets.get((next + i) % sockets.size());
+            if(!socket.writeQueueFull()){
+                next = (next + i + 1) % sockets.size();
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    private void drainPending(){
+        NetSocket socket;
+        while(!pending.isEmpty() && (socket = availableSocket()) != null){
+            PendingWrite write = pending.poll();
+            socket.write(write.lines);
+            write.handler.handle(Result.WRITTEN);
+        }
+    }
+
+    /**
+     * Fail the writes waiting for a connection once no connection is open or being opened
+     */
+    private void failPending(){
+        while(!pending.isEmpty()){
+            pending.poll().handler.handle(Result.NOT_CONNECTED);
+        }
+    }
+
+    private void connect(final String host){
+        connecting++;
+        client.connect(port, host, new Handler<AsyncResult<NetSocket>>() {
+            @Override
+            public void handle(AsyncResult<NetSocket> result) {
+                connecting--;
+                if(result.failed()){
+                    logger.error("unable to open telnet connection to " + host + ":" + port, result.cause());
+                    if(sockets.isEmpty() && connecting == 0){
+                        failPending();
+                    }
+                    scheduleReconnect(host);
+                    return;
+                }
+                final NetSocket socket = result.result();
+                socket.setWriteQueueMaxSize(writeQueueMaxSize);
+                socket.drainHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        drainPending();
+                    }
+                });
+                socket.dataHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(Buffer data) {
+                        logger.warn("telnet response from KairosDB: " + data.toString().trim());
+                    }
+                });
+                socket.exceptionHandler(new Handler<Throwable>() {
+                    @Override
+                    public void handle(Throwable throwable) {
+                        logger.error("telnet connection error", throwable);
+                    }
+                });
+                socket.closeHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        sockets.remove(socket);
+                        if(sockets.isEmpty() && connecting == 0){
+                            failPending();
+                        }
+                        scheduleReconnect(host);
+                    }
+                });
+                sockets.add(socket);
+                drainPending();
+            }
+        });
+    }
+
+    private void scheduleReconnect(final String host){
+        if(closed){
+            return;
+        }
+        vertx.setTimer(reconnectInterval, new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                if(!closed){
+                    connect(host);
+                }
+            }
+        });
+    }
+
+    private static class PendingWrite {
+
+        private final Buffer lines;
+        private final Handler<Result> handler;
+
+        private PendingWrite(Buffer lines, Handler<Result> handler){
+            this.lines = lines;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb;
+
+/**
+ * Mergeable sketch of signed values from which quantiles are estimated with a bounded relative error. Values are
+ * counted in logarithmically sized buckets, separately for positive and negative values, with values very close to
+ * zero counted as zero. A bucket covers values whose magnitude is within a factor of <code>(1 + a) / (1 - a)</code>,
+ * so any estimated quantile is within a relative error <code>a</code> of a value recorded. Each sign keeps at most a
+ * fixed number of buckets; beyond that the buckets of the smallest magnitudes are merged, which only loses accuracy
+ * for quantiles among those magnitudes. Sketches with the same accuracy can be merged, for example to combine
+ * windows.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class ValueSketch {
+
+    private static final double MIN_MAGNITUDE = 1e-9;
+    private static final int MAX_BUCKETS = 2048;
+    private static final int INITIAL_BUCKETS = 32;
+
+    private final double accuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private final Buckets positive = new Buckets();
+    private final Buckets negative = new Buckets();
+    private long zeros;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param accuracy the relative accuracy of estimated quantiles, between 0 and 1 exclusive
+     */
+    public ValueSketch(double accuracy){
+        if(!(accuracy > 0 && accuracy < 1)){
+            throw new IllegalArgumentException("sketch accuracy must be between 0 and 1");
+        }
+        this.accuracy = accuracy;
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value the value
+     * @throws IllegalArgumentException if the value is not finite
+     */
+    public void record(double value){
+        if(Double.isNaN(value) || Double.isInfinite(value)){
+            throw new IllegalArgumentException("cannot record a value that is not finite: " + value);
+        }
+        if(value > MIN_MAGNITUDE){
+            positive.add(index(value), 1);
+        }
+        else if(value < -MIN_MAGNITUDE){
+            negative.add(index(-value), 1);
+        }
+        else{
+            zeros++;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add the values recorded by another sketch to this one
+     *
+     * @param other a sketch with the same accuracy
+     * @throws IllegalArgumentException if the accuracies differ
+     */
+    public void merge(ValueSketch other){
+        if(other.accuracy != accuracy){
+            throw new IllegalArgumentException("cannot merge sketches of different accuracy");
+        }
+        positive.addAll(other.positive);
+        negative.addAll(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Estimate a quantile
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated value below which the given percentage of values fall, or 0 if nothing is recorded
+     */
+    public double percentile(double percentile){
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        if(negative.counts != null){
+            for(int i=negative.counts.length-1;i>=0;i--){
+                seen += negative.counts[i];
+                if(seen >= rank){
+                    return clamp(-value(negative.offset + i));
+                }
+            }
+        }
+        seen += zeros;
+        if(seen >= rank){
+            return clamp(0);
+        }
+        if(positive.counts != null){
+            for(int i=0;i<positive.counts.length;i++){
+                seen += positive.counts[i];
+                if(seen >= rank){
+                    return clamp(value(positive.offset + i));
+                }
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value recorded, or positive infinity if nothing is recorded
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value recorded, or negative infinity if nothing is recorded
+     */
+    public double getMax() {
+        return max;
+    }
+
+    private int index(double magnitude){
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /**
+     * The magnitude representing a bucket, within the relative accuracy of every magnitude in it
+     */
+    private double value(int index){
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private double clamp(double value){
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Counts of a contiguous range of bucket indices, grown as needed up to the maximum number of buckets
+     */
+    private static class Buckets {
+
+        private long[] counts;
+        private int offset;
+
+        private void add(int index, long n){
+            if(counts == null){
+                counts = new long[INITIAL_BUCKETS];
+                offset = index - INITIAL_BUCKETS / 2;
+            }
+            else if(index < offset || index >= offset + counts.length){
+                resize(index);
+            }
+            // an index below the range has been merged into its lowest bucket
+            counts[Math.max(index, offset) - offset] += n;
+        }
+
+        private void addAll(Buckets other){
+            if(other.counts == null){
+                return;
+            }
+            for(int i=0;i<other.counts.length;i++){
+                if(other.counts[i] > 0){
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        private void resize(int index){
+            int high = offset + counts.length - 1;
+            int size = Math.min(MAX_BUCKETS, Math.max(counts.length * 2,
+                    Math.max(high, index) - Math.min(offset, index) + 1));
+            int newLow;
+            if(index > high){
+                newLow = Math.max(offset, index - size + 1);
+            }
+            else{
+                newLow = high - size + 1;
+            }
+            long[] resized = new long[size];
+            for(int i=0;i<counts.length;i++){
+                resized[Math.max(offset + i, newLow) - newLow] += counts[i];
+            }
+            counts = resized;
+            offset = newLow;
+        }
+    }
+}
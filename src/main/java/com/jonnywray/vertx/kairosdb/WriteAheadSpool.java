@@ -0,0 +1,433 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable first in first out queue of records held in a directory of fixed size, memory mapped segment files.
+ *
+ * Each segment starts with a header holding a magic number, a format version and the offset of the first record not
+ * yet acknowledged. Records follow as a length, a CRC32 of the payload and the payload. The length is written last,
+ * after a zero length marking the end of the segment, so a record is only visible once it is complete. On opening,
+ * each segment is scanned from its read offset and the scan stops at the first zero length or checksum mismatch,
+ * which discards a record torn by a crash. Fully acknowledged segments are deleted.
+ *
+ * Writes to the mapped files survive a crash of the process as soon as they are made. {@link #force()} must be called
+ * for them to also survive a crash of the operating system.
+ *
+ * This class is not thread safe and is expected to be used from a single event loop.
+ *
+ * @author Jonny Wray
+ */
+public class WriteAheadSpool {
+
+    private static final int MAGIC = 0x4b535031;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_OFFSET_POSITION = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SUFFIX = ".spool";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSequence;
+    private long records;
+    private long bytes;
+
+    private long appended;
+    private long acknowledged;
+    private long rejected;
+
+    /**
+     * @param directory the directory holding the segment files
+     * @param segmentSize the size in bytes of each segment file
+     * @param maxBytes the maximum total size in bytes of the segment files
+     */
+    public WriteAheadSpool(File directory, int segmentSize, long maxBytes){
+        if(segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE){
+            throw new IllegalArgumentException("segment_size is too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open the spool, recovering any records left by a previous run
+     *
+     * @throws IOException if the directory or segment files cannot be accessed
+     */
+    public void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("unable to create spool directory " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for(File file : files){
+            String name = file.getName();
+            try{
+                nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+            }
+            catch (NumberFormatException e){
+                continue;
+            }
+            Segment segment = Segment.open(file);
+            if(segment == null || segment.records == 0){
+                if(segment != null){
+                    segment.close();
+                }
+                delete(file);
+                continue;
+            }
+            segments.add(segment);
+            records += segment.records;
+            bytes += segment.bytes;
+        }
+    }
+
+    /**
+     * Append a record
+     *
+     * @param record the record payload
+     * @return true if the record was appended, false if it would exceed the size limit
+     * @throws IOException if a new segment file cannot be created
+     */
+    public boolean append(byte[] record) throws IOException {
+        int needed = RECORD_HEADER_SIZE + record.length;
+        if(needed > segmentSize - HEADER_SIZE){
+            rejected++;
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if(tail == null || tail.remaining() < needed){
+            if((long) (segments.size() + 1) * segmentSize > maxBytes){
+                rejected++;
+                return false;
+            }
+            tail = Segment.create(new File(directory, String.format("%020d", nextSequence++) + SUFFIX), segmentSize);
+            segments.add(tail);
+        }
+        tail.append(record);
+        records++;
+        bytes += record.length;
+        appended++;
+        return true;
+    }
+
+    /**
+     * Read records from the head of the spool without removing them
+     *
+     * @param maxBytes the maximum total payload size to read, although at least one record is read if any are present
+     * @return the records, oldest first
+     */
+    public List<byte[]> peek(int maxBytes){
+        List<byte[]> result = new ArrayList<>();
+        int total = 0;
+        for(Segment segment : segments){
+            int offset = segment.readOffset;
+            while(offset < segment.writeOffset){
+                int length = segment.buffer.getInt(offset);
+                if(!result.isEmpty() && total + length > maxBytes){
+                    return result;
+                }
+                byte[] record = new byte[length];
+                segment.read(offset + RECORD_HEADER_SIZE, record);
+                result.add(record);
+                total += length;
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove records from the head of the spool, deleting segments that have been completely read
+     *
+     * @param count the number of records, normally the number returned by the last call to {@link #peek(int)}
+     */
+    public void acknowledge(int count){
+        while(count > 0 && !segments.isEmpty()){
+            Segment head = segments.peekFirst();
+            int length = head.advance();
+            records--;
+            bytes -= length;
+            acknowledged++;
+            count--;
+            if(head.readOffset >= head.writeOffset){
+                segments.pollFirst();
+                head.close();
+                delete(head.file);
+            }
+        }
+    }
+
+    /**
+     * Force all writes to the segment files to the storage device
+     */
+    public void force(){
+        for(Segment segment : segments){
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Force all writes and close the segment files
+     */
+    public void close(){
+        force();
+        for(Segment segment : segments){
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * @return whether there are no records in the spool
+     */
+    public boolean isEmpty(){
+        return records == 0;
+    }
+
+    /**
+     * @return the number of records in the spool
+     */
+    public long getRecords(){
+        return records;
+    }
+
+    /**
+     * @return the total payload size in bytes of the records in the spool
+     */
+    public long getBytes(){
+        return bytes;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegments(){
+        return segments.size();
+    }
+
+    /**
+     * @return the current state and counters as a JSON object
+     */
+    public JsonObject toJson(){
+        return new JsonObject()
+            .putNumber("records", records)
+            .putNumber("bytes", bytes)
+            .putNumber("segments", segments.size())
+            .putNumber("appended", appended)
+            .putNumber("acknowledged", acknowledged)
+            .putNumber("rejected", rejected);
+    }
+
+    /**
+     * Join records that each hold a JSON array into a single JSON array, skipping records holding an empty array
+     *
+     * @param records the records, such as those returned by {@link #peek(int)}
+     * @return the joined array, or null if every record is empty
+     */
+    public static Buffer joinArrays(List<byte[]> records){
+        Buffer joined = new Buffer();
+        joined.appendByte((byte) '[');
+        boolean empty = true;
+        for(byte[] record : records){
+            int start = 0;
+            int end = record.length;
+            if(end > 1 && record[0] == '['){
+                start = 1;
+                end--;
+            }
+            if(isBlank(record, start, end)){
+                continue;
+            }
+            if(!empty){
+                joined.appendByte((byte) ',');
+            }
+            joined.appendBytes(start == 0 && end == record.length ? record : Arrays.copyOfRange(record, start, end));
+            empty = false;
+        }
+        joined.appendByte((byte) ']');
+        return empty ? null : joined;
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end){
+        for(int i=start;i<end;i++){
+            if(bytes[i] != ' ' && bytes[i] != '\n' && bytes[i] != '\r' && bytes[i] != '\t'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void delete(File file){
+        if(!file.delete()){
+            file.deleteOnExit();
+        }
+    }
+
+    private static int crc(byte[] bytes){
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private final int size;
+        private int readOffset;
+        private int writeOffset;
+        private long records;
+        private long bytes;
+
+        private Segment(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer, int size){
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        private static Segment create(File file, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Segment segment = new Segment(file, randomAccessFile, buffer, size);
+            buffer.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(0, MAGIC);
+            segment.readOffset = HEADER_SIZE;
+            segment.writeOffset = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * @return the segment, or null if the file is not a valid segment
+         */
+        private static Segment open(File file) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            long length = randomAccessFile.length();
+            if(length < HEADER_SIZE || length > Integer.MAX_VALUE){
+                randomAccessFile.close();
+                return null;
+            }
+            int size = (int) length;
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Segment segment = new Segment(file, randomAccessFile, buffer, size);
+            int readOffset = buffer.getInt(READ_OFFSET_POSITION);
+            if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || readOffset < HEADER_SIZE || readOffset > size){
+                segment.close();
+                return null;
+            }
+            segment.readOffset = readOffset;
+            segment.writeOffset = readOffset;
+            segment.scan();
+            return segment;
+        }
+
+        private void scan(){
+            int offset = writeOffset;
+            while(offset + RECORD_HEADER_SIZE <= size){
+                int length = buffer.getInt(offset);
+                if(length <= 0 || length > size - offset - RECORD_HEADER_SIZE){
+                    break;
+                }
+                byte[] record = new byte[length];
+                read(offset + RECORD_HEADER_SIZE, record);
+                if(crc(record) != buffer.getInt(offset + 4)){
+                    break;
+                }
+                offset += RECORD_HEADER_SIZE + length;
+                records++;
+                bytes += length;
+            }
+            writeOffset = offset;
+        }
+
+        private int remaining(){
+            return size - writeOffset;
+        }
+
+        private void append(byte[] record){
+            int end = writeOffset + RECORD_HEADER_SIZE + record.length;
+            if(end + 4 <= size){
+                buffer.putInt(end, 0);
+            }
+            buffer.position(writeOffset + RECORD_HEADER_SIZE);
+            buffer.put(record);
+            buffer.putInt(writeOffset + 4, crc(record));
+            buffer.putInt(writeOffset, record.length);
+            writeOffset = end;
+            records++;
+            bytes += record.length;
+        }
+
+        private void read(int offset, byte[] record){
+            buffer.position(offset);
+            buffer.get(record);
+        }
+
+        /**
+         * @return the payload length of the record passed over
+         */
+        private int advance(){
+            int length = buffer.getInt(readOffset);
+            readOffset += RECORD_HEADER_SIZE + length;
+            buffer.putInt(READ_OFFSET_POSITION, readOffset);
+            records--;
+            bytes -= length;
+            return length;
+        }
+
+        private void close(){
+            try{
+                randomAccessFile.close();
+            }
+            catch (IOException e){
+                // nothing more can be done with the segment
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.ActionMetrics;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the action metrics
+ *
+ * @author Jonny Wray
+ */
+public class ActionMetricsTest {
+
+    @Test
+    public void testCounters(){
+        ActionMetrics metrics = new ActionMetrics("query_metrics");
+        metrics.requestReceived();
+        metrics.requestReceived();
+        metrics.replied("ok");
+        metrics.replied("error");
+        metrics.responseReceived(200, 1500);
+        metrics.responseReceived(500, 2500);
+        metrics.sent(100);
+        metrics.parsed(400, 50);
+        JsonObject json = metrics.toJson();
+        assertEquals("Request count is not correct", 2, json.getNumber("requests").intValue());
+        assertEquals("Error replies are not correct", 1, json.getObject("replies").getNumber("error").intValue());
+        assertEquals("HTTP status count is not correct", 1, json.getObject("http_statuses").getNumber("500").intValue());
+        assertEquals("Bytes sent is not correct", 100, json.getNumber("bytes_sent").intValue());
+        assertEquals("Bytes received is not correct", 400, json.getNumber("bytes_received").intValue());
+        assertEquals("Round trip count is not correct", 2, json.getObject("round_trip").getNumber("count").intValue());
+    }
+
+    @Test
+    public void testReportOnlyNewLatencies(){
+        ActionMetrics metrics = new ActionMetrics("version");
+        metrics.requestReceived();
+        metrics.responseReceived(200, 1000);
+        JsonArray first = new JsonArray();
+        metrics.report("mod-kairosdb", new JsonObject().putString("address", "test"), 0, first);
+        assertTrue("Latency not reported", containsMetric(first, "mod-kairosdb.latency"));
+        JsonArray second = new JsonArray();
+        metrics.report("mod-kairosdb", new JsonObject().putString("address", "test"), 1, second);
+        assertFalse("Latency reported again without new values", containsMetric(second, "mod-kairosdb.latency"));
+        assertTrue("Counters not reported", containsMetric(second, "mod-kairosdb.requests"));
+    }
+
+    private boolean containsMetric(JsonArray dataPoints, String name){
+        for(Object dataPoint : dataPoints){
+            JsonObject object = (JsonObject) dataPoint;
+            if(object.getString("name").equals(name)){
+                assertEquals("Action tag missing", "version", object.getObject("tags").getString("action"));
+                return true;
+            }
+        }
+        return false;
+    }
+}
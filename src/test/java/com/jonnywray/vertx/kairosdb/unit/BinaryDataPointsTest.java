@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.BinaryDataPoints;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the binary data points format
+ *
+ * @author Jonny Wray
+ */
+public class BinaryDataPointsTest {
+
+    @Test
+    public void testConversionMatchesJson() throws Exception {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "server1");
+        tags.put("data_center", "DC1");
+        Buffer message = new BinaryDataPoints.Writer()
+            .series("archive.file.tracked", tags, false)
+            .add(1359788400000L, 10L)
+            .add(1359788500000L, -30L)
+            .series("archive.file.search", tags, true)
+            .add(1359788400000L, 1.5)
+            .add(1359788500000L, 42.0)
+            .build();
+
+        JsonArray expected = new JsonArray()
+            .addObject(new JsonObject()
+                .putString("name", "archive.file.tracked")
+                .putObject("tags", new JsonObject().putString("host", "server1").putString("data_center", "DC1"))
+                .putArray("datapoints", new JsonArray()
+                    .addArray(new JsonArray().addNumber(1359788400000L).addNumber(10))
+                    .addArray(new JsonArray().addNumber(1359788500000L).addNumber(-30))))
+            .addObject(new JsonObject()
+                .putString("name", "archive.file.search")
+                .putObject("tags", new JsonObject().putString("host", "server1").putString("data_center", "DC1"))
+                .putArray("datapoints", new JsonArray()
+                    .addArray(new JsonArray().addNumber(1359788400000L).addNumber(1.5))
+                    .addArray(new JsonArray().addNumber(1359788500000L).addNumber(42.0))));
+        assertEquals("Converted body is not correct", expected.encode(), BinaryDataPoints.toJson(message, null).toString("UTF-8"));
+    }
+
+    @Test
+    public void testListenerReceivesSeries(){
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "server \"quoted\"");
+        Buffer message = new BinaryDataPoints.Writer().series("a", tags, false).add(1, 1L).series("b", tags, false).add(2, 2L).build();
+        final List<String> names = new ArrayList<>();
+        BinaryDataPoints.toJson(message, new BinaryDataPoints.Listener() {
+            @Override
+            public void series(String name, Map<String, String> seriesTags) {
+                names.add(name + " " + seriesTags.get("host"));
+            }
+        });
+        assertEquals("Listener was not notified of each series", 2, names.size());
+        assertEquals("Series name or tags are not correct", "b server \"quoted\"", names.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedMessageRejected(){
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "server1");
+        Buffer message = new BinaryDataPoints.Writer().series("a", tags, false).add(1, 1L).add(2, 2L).build();
+        BinaryDataPoints.toJson(message.getBuffer(0, message.length() - 4), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersionRejected(){
+        BinaryDataPoints.toJson(new Buffer().appendByte((byte) 2), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyMessageRejected(){
+        BinaryDataPoints.toJson(new Buffer().appendByte(BinaryDataPoints.VERSION), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingTagsRejected(){
+        new BinaryDataPoints.Writer().series("a", new LinkedHashMap<String, String>(), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueTypeMismatchRejected(){
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "server1");
+        new BinaryDataPoints.Writer().series("a", tags, true).add(1, 1L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmptySeriesRejected(){
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("host", "server1");
+        new BinaryDataPoints.Writer().series("a", tags, false).build();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.BodyCompressor;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the body compressor
+ *
+ * @author Jonny Wray
+ */
+public class BodyCompressorTest {
+
+    @Test
+    public void testParseMode(){
+        assertEquals("Mode not parsed", BodyCompressor.Mode.OFF, BodyCompressor.parseMode("off"));
+        assertEquals("Mode not parsed", BodyCompressor.Mode.GZIP, BodyCompressor.parseMode("gzip"));
+        assertEquals("Mode not parsed", BodyCompressor.Mode.THRESHOLD, BodyCompressor.parseMode("threshold"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMode(){
+        BodyCompressor.parseMode("deflate");
+    }
+
+    @Test
+    public void testShouldCompress(){
+        assertFalse("Off mode compresses", new BodyCompressor(BodyCompressor.Mode.OFF, 0).shouldCompress(100000));
+        assertTrue("Gzip mode does not compress", new BodyCompressor(BodyCompressor.Mode.GZIP, 1000).shouldCompress(1));
+        BodyCompressor threshold = new BodyCompressor(BodyCompressor.Mode.THRESHOLD, 1000);
+        assertFalse("Threshold mode compresses below threshold", threshold.shouldCompress(999));
+        assertTrue("Threshold mode does not compress at threshold", threshold.shouldCompress(1000));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i=0;i<100;i++){
+            builder.append("{\"name\":\"integration.tests\",\"timestamp\":").append(i).append(",\"value\":42},");
+        }
+        builder.append("{}]");
+        byte[] original = builder.toString().getBytes("UTF-8");
+        Buffer compressed = new BodyCompressor(BodyCompressor.Mode.GZIP, 0).compress(original);
+        assertTrue("Repetitive body was not reduced in size", compressed.length() < original.length / 4);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.getBytes()))){
+            byte[] chunk = new byte[1024];
+            int read;
+            while((read = in.read(chunk)) != -1){
+                out.write(chunk, 0, read);
+            }
+        }
+        assertArrayEquals("Decompressed body does not match", original, out.toByteArray());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.ChangeFilter;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the change filter
+ *
+ * @author Jonny Wray
+ */
+public class ChangeFilterTest {
+
+    @Test
+    public void testExactDuplicatesDropped(){
+        ChangeFilter filter = new ChangeFilter(new ArrayList<ChangeFilter.Rule>(), 100, 0);
+        assertNotNull("First point was dropped", write(filter, point("m", 1000, 5)));
+        assertNull("Duplicate point was not dropped", write(filter, point("m", 1000, 5)));
+        assertNotNull("Corrected value was dropped", write(filter, point("m", 1000, 6)));
+        assertNotNull("Same value at a new timestamp was dropped without a dead-band", write(filter, point("m", 2000, 6)));
+    }
+
+    @Test
+    public void testAbsoluteDeadBandAndHeartbeat(){
+        ChangeFilter filter = new ChangeFilter(Arrays.asList(new ChangeFilter.Rule("gauge\\..*", 0.5, -1)), 100, 10000);
+        assertNotNull("First point was dropped", write(filter, point("gauge.temp", 0, 20)));
+        assertNull("Point within the band was not dropped", write(filter, point("gauge.temp", 1000, 20.4)));
+        assertNotNull("Point outside the band was dropped", write(filter, point("gauge.temp", 2000, 21)));
+        assertNull("Point within the band of the last written value was not dropped", write(filter, point("gauge.temp", 3000, 20.6)));
+        assertNotNull("Heartbeat did not force a point", write(filter, point("gauge.temp", 12000, 21)));
+        assertNotNull("Unmatched metric was dead-banded", write(filter, point("other", 0, 20)));
+        assertNotNull("Unmatched metric was dead-banded", write(filter, point("other", 1000, 20.1)));
+        JsonObject counters = filter.toJson();
+        assertEquals("Dead-band count is not correct", 2, counters.getNumber("dead_band_dropped").intValue());
+        assertEquals("Heartbeat count is not correct", 1, counters.getNumber("heartbeats").intValue());
+    }
+
+    @Test
+    public void testRelativeDeadBand(){
+        ChangeFilter filter = new ChangeFilter(Arrays.asList(new ChangeFilter.Rule(".*", -1, 0.01)), 100, 0);
+        write(filter, point("m", 0, 1000));
+        assertNull("Point within 1% was not dropped", write(filter, point("m", 1, 1009)));
+        assertNotNull("Point beyond 1% was dropped", write(filter, point("m", 2, 1011)));
+    }
+
+    @Test
+    public void testMultiplePointsFiltered(){
+        ChangeFilter filter = new ChangeFilter(Arrays.asList(new ChangeFilter.Rule(".*", 0, -1)), 100, 0);
+        JsonObject dataPoints = new JsonObject().putString("name", "m")
+            .putArray("datapoints", new JsonArray()
+                .addArray(new JsonArray().addNumber(1).addNumber(5))
+                .addArray(new JsonArray().addNumber(2).addNumber(5))
+                .addArray(new JsonArray().addNumber(3).addNumber(7))
+                .addArray(new JsonArray().addNumber(4).addNumber(7)))
+            .putObject("tags", new JsonObject().putString("host", "server1"));
+        JsonObject filtered = filter.filter(dataPoints);
+        assertEquals("Unchanged points were not removed", "[[1,5],[3,7]]", filtered.getArray("datapoints").encode());
+        assertEquals("Original object was modified", 4, dataPoints.getArray("datapoints").size());
+        assertEquals("Tags were not kept", "server1", filtered.getObject("tags").getString("host"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSeriesEvicted(){
+        ChangeFilter filter = new ChangeFilter(new ArrayList<ChangeFilter.Rule>(), 2, 0);
+        write(filter, point("a", 1, 1));
+        write(filter, point("b", 1, 1));
+        assertNull("Duplicate point was not dropped", write(filter, point("a", 1, 1)));
+        write(filter, point("c", 1, 1));
+        assertEquals("Table is not bounded", 2, filter.getSeries());
+        assertNull("Recently used series was evicted", write(filter, point("a", 1, 1)));
+        assertNotNull("Evicted series was not forgotten", write(filter, point("b", 1, 1)));
+        assertEquals("Evictions were not counted", 2, filter.toJson().getNumber("evictions").intValue());
+    }
+
+    @Test
+    public void testFailedWriteNotRecorded(){
+        ChangeFilter filter = new ChangeFilter(Arrays.asList(new ChangeFilter.Rule(".*", 0.5, -1)), 100, 0);
+        write(filter, point("m", 0, 20));
+        assertNotNull("Point was dropped", filter.filter(point("m", 1000, 25)));
+        assertNotNull("Retry of a point whose write failed was dropped", filter.filter(point("m", 1000, 25)));
+        assertNull("Point within the band of the last written point was not dropped",
+                filter.filter(point("m", 2000, 20.2)));
+        write(filter, point("m", 1000, 25));
+        assertNull("Duplicate of a written point was not dropped", filter.filter(point("m", 1000, 25)));
+        assertEquals("Duplicate count is not correct", 1, filter.toJson().getNumber("duplicates_dropped").intValue());
+    }
+
+    @Test
+    public void testMultiplePointsRecordedWhenWritten(){
+        ChangeFilter filter = new ChangeFilter(new ArrayList<ChangeFilter.Rule>(), 100, 0);
+        JsonObject dataPoints = new JsonObject().putString("name", "m")
+            .putArray("datapoints", new JsonArray()
+                .addArray(new JsonArray().addNumber(1).addNumber(5))
+                .addArray(new JsonArray().addNumber(2).addNumber(6)))
+            .putObject("tags", new JsonObject().putString("host", "server1"));
+        assertSame("Changed points were filtered", dataPoints, filter.filter(dataPoints));
+        filter.written(dataPoints);
+        assertNull("Last written point was not recorded", filter.filter(new JsonObject().putString("name", "m")
+            .putNumber("timestamp", 2).putNumber("value", 6)
+            .putObject("tags", new JsonObject().putString("host", "server1"))));
+    }
+
+    /**
+     * Filter data points and record the result as successfully written
+     */
+    private JsonObject write(ChangeFilter filter, JsonObject dataPoints){
+        JsonObject filtered = filter.filter(dataPoints);
+        if(filtered != null){
+            filter.written(filtered);
+        }
+        return filtered;
+    }
+
+    private JsonObject point(String name, long timestamp, Number value){
+        return new JsonObject().putString("name", name).putNumber("timestamp", timestamp).putNumber("value", value)
+            .putObject("tags", new JsonObject().putString("host", "server1"));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.CircuitBreaker;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the circuit breaker
+ *
+ * @author Jonny Wray
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAtFailureRate(){
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 1);
+        breaker.recordFailure(0);
+        breaker.recordFailure(0);
+        breaker.recordSuccess();
+        assertEquals("Breaker opened before the minimum requests", CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure(0);
+        assertEquals("Breaker did not open at the failure rate", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Open breaker allows requests", breaker.allowsRequest(500));
+    }
+
+    @Test
+    public void testStaysClosedBelowFailureRate(){
+        CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, 1000, 1);
+        for(int i=0;i<20;i++){
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+            breaker.recordFailure(0);
+        }
+        assertEquals("Breaker opened below the failure rate", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbeCloses(){
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 0.5, 1000, 1);
+        breaker.recordFailure(0);
+        assertTrue("Breaker does not allow a probe after the open duration", breaker.allowsRequest(1000));
+        breaker.requestStarted(1000);
+        assertEquals("Breaker is not half open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("Half open breaker allows more than the probe requests", breaker.allowsRequest(1000));
+        breaker.recordSuccess();
+        assertEquals("Successful probe did not close the breaker", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbeFailureReopens(){
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 0.5, 1000, 1);
+        breaker.recordFailure(0);
+        breaker.requestStarted(1000);
+        breaker.recordFailure(1000);
+        assertEquals("Failed probe did not reopen the breaker", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Reopened breaker allows requests", breaker.allowsRequest(1500));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.ConnectionPoolMonitor;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the connection pool monitor
+ *
+ * @author Jonny Wray
+ */
+public class ConnectionPoolMonitorTest {
+
+    @Test
+    public void testNoQueueWithinPool(){
+        ConnectionPoolMonitor monitor = new ConnectionPoolMonitor(2);
+        monitor.requestStarted();
+        monitor.requestStarted();
+        assertEquals("In flight count is not correct", 2, monitor.getInFlight());
+        assertEquals("Requests are queued when they should not be", 0, monitor.getQueued());
+    }
+
+    @Test
+    public void testQueueBeyondPool(){
+        ConnectionPoolMonitor monitor = new ConnectionPoolMonitor(1);
+        monitor.requestStarted();
+        monitor.requestStarted();
+        monitor.requestStarted();
+        assertEquals("Queue depth is not correct", 2, monitor.getQueued());
+        assertEquals("Queued request count is not correct", 2, monitor.getQueuedRequests());
+        monitor.requestCompleted();
+        monitor.requestCompleted();
+        assertEquals("Queue depth is not correct after completion", 0, monitor.getQueued());
+        assertEquals("Peak queue depth is not correct", 2, monitor.getPeakQueued());
+    }
+}
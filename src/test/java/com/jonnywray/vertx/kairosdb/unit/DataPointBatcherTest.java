@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.DataPointBatcher;
+import org.junit.Test;
+import org.vertx.java.core.json.EncodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the data point batcher
+ *
+ * @author Jonny Wray
+ */
+public class DataPointBatcherTest {
+
+    @Test
+    public void testEmptyDrain(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(10, 1024);
+        assertTrue("New batcher is not empty", batcher.isEmpty());
+        assertNull("Empty batcher returned a batch", batcher.drain());
+    }
+
+    @Test
+    public void testBodyIsJsonArray(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(10, 1024 * 1024);
+        batcher.add(exampleSingleDataPoint(), "first");
+        batcher.add(exampleMultipleDataPoint(), "second");
+        DataPointBatcher.Batch<String> batch = batcher.drain();
+        assertNotNull("No batch returned", batch);
+        JsonArray body = new JsonArray(batch.getBody().toString("UTF-8"));
+        assertEquals("Body does not contain the series merged into one data points object", 1, body.size());
+        assertEquals("Merged object does not contain every point", 3, ((JsonObject) body.get(0)).getArray("datapoints").size());
+        assertEquals("Tokens are not correct", 2, batch.getTokens().size());
+        assertEquals("First token is not correct", "first", batch.getTokens().get(0));
+        assertEquals("Point count is not correct", 3, batch.getPoints());
+        assertTrue("Batcher is not empty after drain", batcher.isEmpty());
+    }
+
+    @Test
+    public void testSameSeriesMergedAndOthersKept(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(10, 1024 * 1024);
+        batcher.add(exampleSingleDataPoint(), "first");
+        batcher.add(exampleSingleDataPoint(), "second");
+        batcher.add(exampleSingleDataPoint().putNumber("ttl", 60), "third");
+        JsonArray body = new JsonArray(batcher.drain().getBody().toString("UTF-8"));
+        assertEquals("Body does not contain the merged series and the object with a ttl", 2, body.size());
+        assertEquals("Object with a ttl is not first", 60, ((JsonObject) body.get(0)).getInteger("ttl").intValue());
+        assertEquals("Series was not merged", 2, ((JsonObject) body.get(1)).getArray("datapoints").size());
+    }
+
+    @Test
+    public void testUnencodableObjectLeavesBatchUnchanged(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(10, 1024 * 1024);
+        batcher.add(exampleSingleDataPoint().putNumber("ttl", 60), "first");
+        JsonObject invalid = exampleSingleDataPoint().putNumber("ttl", 60);
+        invalid.getObject("tags").putString("host", "bad\uD800");
+        try{
+            batcher.add(invalid, "second");
+            fail("Unencodable data points were added");
+        }
+        catch (EncodeException e){
+            // expected
+        }
+        DataPointBatcher.Batch<String> batch = batcher.drain();
+        JsonArray body = new JsonArray(batch.getBody().toString("UTF-8"));
+        assertEquals("Body does not contain only the valid object", 1, body.size());
+        assertEquals("Token of the unencodable object was kept", 1, batch.getTokens().size());
+    }
+
+    @Test
+    public void testFullOnPoints(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(3, 1024 * 1024);
+        assertFalse("Batch is full when it should not be", batcher.add(exampleSingleDataPoint(), "first"));
+        assertTrue("Batch is not full when it should be", batcher.add(exampleMultipleDataPoint(), "second"));
+    }
+
+    @Test
+    public void testFullOnBytes(){
+        DataPointBatcher<String> batcher = new DataPointBatcher<>(1000, 10);
+        assertTrue("Batch is not full when it should be", batcher.add(exampleSingleDataPoint(), "first"));
+    }
+
+    private JsonObject exampleMultipleDataPoint(){
+        JsonArray points = new JsonArray();
+        JsonArray first = new JsonArray();
+        first.addNumber(System.currentTimeMillis()).addNumber(42);
+        points.addArray(first);
+        JsonArray second = new JsonArray();
+        second.addNumber(System.currentTimeMillis() + 100).addNumber(52);
+        points.addArray(second);
+
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putArray("datapoints", points);
+        dataPoints.putObject("tags", exampleTags());
+        return dataPoints;
+    }
+
+    private JsonObject exampleSingleDataPoint(){
+
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putNumber("timestamp", System.currentTimeMillis());
+        dataPoints.putNumber("value", 42);
+        dataPoints.putObject("tags", exampleTags());
+        return dataPoints;
+    }
+
+    private JsonObject exampleTags(){
+
+        JsonObject tags = new JsonObject();
+        tags.putString("test_type", "integration");
+        return tags;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.Downsampler;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the downsampler
+ *
+ * @author Jonny Wray
+ */
+public class DownsamplerTest {
+
+    @Test
+    public void testSmallSeriesNotDownsampled(){
+        Downsampler downsampler = new Downsampler(Downsampler.Method.LTTB, 10);
+        assertNull("Series within the maximum was downsampled", downsampler.select(new long[10], new double[10], 10));
+    }
+
+    @Test
+    public void testLargestTrianglesKeepsEndsAndPeaks(){
+        int count = 1000;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        for(int i=0;i<count;i++){
+            timestamps[i] = 1364968800000L + i * 1000L;
+        }
+        values[500] = 100;
+        values[750] = -50;
+        int[] selected = new Downsampler(Downsampler.Method.LTTB, 20).select(timestamps, values, count);
+        assertEquals("Selected point count is not correct", 20, selected.length);
+        assertEquals("First point was not kept", 0, selected[0]);
+        assertEquals("Last point was not kept", count - 1, selected[19]);
+        assertAscending(selected);
+        assertContains("Peak was not kept", selected, 500);
+        assertContains("Trough was not kept", selected, 750);
+    }
+
+    @Test
+    public void testMinMaxKeepsExtremes(){
+        int count = 1000;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        for(int i=0;i<count;i++){
+            timestamps[i] = i;
+            values[i] = Math.sin(i / 10.0);
+        }
+        values[123] = 5;
+        values[877] = -5;
+        int[] selected = new Downsampler(Downsampler.Method.MIN_MAX, 50).select(timestamps, values, count);
+        assertTrue("Too many points were selected", selected.length <= 50);
+        assertAscending(selected);
+        assertContains("Maximum was not kept", selected, 123);
+        assertContains("Minimum was not kept", selected, 877);
+    }
+
+    @Test
+    public void testMinMaxConstantSeries(){
+        int[] selected = new Downsampler(Downsampler.Method.MIN_MAX, 4).select(new long[10], new double[10], 10);
+        assertEquals("Constant buckets should keep one point each", 2, selected.length);
+    }
+
+    @Test
+    public void testMethodNames(){
+        assertEquals("Method name is not correct", Downsampler.Method.MIN_MAX, Downsampler.Method.fromName("min_max"));
+        assertEquals("Method name is not correct", "lttb", Downsampler.Method.LTTB.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMethod(){
+        Downsampler.Method.fromName("average");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewPoints(){
+        new Downsampler(Downsampler.Method.LTTB, 2);
+    }
+
+    private void assertAscending(int[] selected){
+        for(int i=1;i<selected.length;i++){
+            assertTrue("Selected points are not in order", selected[i] > selected[i - 1]);
+        }
+    }
+
+    private void assertContains(String message, int[] selected, int index){
+        for(int value : selected){
+            if(value == index){
+                return;
+            }
+        }
+        fail(message);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.InFlightLimiter;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the in flight limiter
+ *
+ * @author Jonny Wray
+ */
+public class InFlightLimiterTest {
+
+    @Test
+    public void testAdmitQueueReject(){
+        InFlightLimiter<String> limiter = new InFlightLimiter<>(1, 1);
+        assertEquals("First request is not admitted", InFlightLimiter.Admission.ADMITTED, limiter.offer("a"));
+        assertEquals("Second request is not queued", InFlightLimiter.Admission.QUEUED, limiter.offer("b"));
+        assertEquals("Third request is not rejected", InFlightLimiter.Admission.REJECTED, limiter.offer("c"));
+        assertEquals("In flight count is not correct", 1, limiter.getInFlight());
+        assertEquals("Queued count is not correct", 1, limiter.getQueued());
+        assertEquals("Rejected count is not correct", 1, limiter.getRejected());
+    }
+
+    @Test
+    public void testReleaseRunsQueuedInOrder(){
+        InFlightLimiter<String> limiter = new InFlightLimiter<>(1, 2);
+        limiter.offer("a");
+        limiter.offer("b");
+        limiter.offer("c");
+        assertEquals("Queued requests are not released in order", "b", limiter.release());
+        assertEquals("In flight count changed when a queued request was released", 1, limiter.getInFlight());
+        assertEquals("Queued requests are not released in order", "c", limiter.release());
+        assertNull("A request was released from an empty queue", limiter.release());
+        assertEquals("In flight count is not correct after release", 0, limiter.getInFlight());
+        assertEquals("Request is not admitted after release", InFlightLimiter.Admission.ADMITTED, limiter.offer("d"));
+    }
+
+    @Test
+    public void testZeroQueueRejectsImmediately(){
+        InFlightLimiter<String> limiter = new InFlightLimiter<>(1, 0);
+        limiter.offer("a");
+        assertEquals("Request is not rejected without a queue", InFlightLimiter.Admission.REJECTED, limiter.offer("b"));
+    }
+}
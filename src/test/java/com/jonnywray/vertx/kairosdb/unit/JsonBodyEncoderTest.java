@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.JsonBodyEncoder;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the JSON body encoder, comparing its output to the Vert.x encoding
+ *
+ * @author Jonny Wray
+ */
+public class JsonBodyEncoderTest {
+
+    @Test
+    public void testMultipleDataPoints() throws Exception {
+        JsonArray points = new JsonArray();
+        points.addArray(new JsonArray().addNumber(1359788400000L).addNumber(10));
+        points.addArray(new JsonArray().addNumber(1359788500000L).addNumber(-30.5));
+        points.addArray(new JsonArray().addNumber(1359788600000L).addNumber(Long.MIN_VALUE));
+        JsonObject dataPoints = new JsonObject()
+            .putString("name", "archive.file.tracked")
+            .putArray("datapoints", points)
+            .putObject("tags", new JsonObject().putString("host", "server1").putString("data_center", "DC1"));
+        assertSameEncoding(dataPoints);
+    }
+
+    @Test
+    public void testSingleDataPointAndBatch() throws Exception {
+        JsonObject single = new JsonObject()
+            .putString("name", "archive.file.search")
+            .putNumber("timestamp", 1359788400000L)
+            .putNumber("value", 321)
+            .putNumber("ttl", 300)
+            .putObject("tags", new JsonObject().putString("host", "server2"));
+        assertSameEncoding(single);
+        assertSameEncoding(new JsonArray().addObject(single).addObject(single.copy().putNumber("value", 1.5)));
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        JsonArray numbers = new JsonArray()
+            .addNumber(0).addNumber(-1).addNumber(Integer.MAX_VALUE).addNumber(Long.MAX_VALUE)
+            .addNumber(0.0).addNumber(-0.0).addNumber(1.0).addNumber(-42.0).addNumber(9999999.0).addNumber(1e7)
+            .addNumber(1e-7).addNumber(3.14159).addNumber(1.5f).addNumber(1e20).addNumber(Double.MAX_VALUE)
+            .addNumber(Double.MIN_VALUE).addNumber(Double.NaN).addNumber(Double.POSITIVE_INFINITY);
+        assertSameEncoding(new JsonObject().putArray("datapoints", numbers).putArray("other", numbers));
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        JsonObject strings = new JsonObject()
+            .putString("quotes", "a \"quoted\" \\ value / slash")
+            .putString("control", "tab\tnewline\nreturn\rbell\u0007null\u0000feed\fback\b")
+            .putString("unicode", "caf\u00e9 \u20ac \ud83d\ude00 \u65e5\u672c")
+            .putString("empty", "");
+        assertSameEncoding(strings);
+    }
+
+    @Test
+    public void testOtherValues() throws Exception {
+        JsonObject other = new JsonObject()
+            .putBoolean("yes", true)
+            .putBoolean("no", false)
+            .putValue("nothing", null)
+            .putArray("empty", new JsonArray())
+            .putObject("nested", new JsonObject().putArray("datapoints", new JsonArray().addString("not a pair")))
+            .putBinary("binary", new byte[]{1, 2, 3});
+        assertSameEncoding(other);
+    }
+
+    private void assertSameEncoding(JsonObject object) throws Exception {
+        assertEquals("Encoding is not the same", object.encode(), JsonBodyEncoder.encode(object).toString("UTF-8"));
+    }
+
+    private void assertSameEncoding(JsonArray array) throws Exception {
+        assertEquals("Encoding is not the same", array.encode(), JsonBodyEncoder.encode(array).toString("UTF-8"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.LatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the latency histogram
+ *
+ * @author Jonny Wray
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testSmallValuesExact(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=1;i<=10;i++){
+            histogram.record(i);
+        }
+        assertEquals("Median is not correct", 5, histogram.percentile(50));
+        assertEquals("Maximum percentile is not correct", 10, histogram.percentile(100));
+        assertEquals("Mean is not correct", 5.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testPercentileAccuracy(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=1;i<=100000;i++){
+            histogram.record(i);
+        }
+        assertEquals("Median is not within tolerance", 50000, histogram.percentile(50), 50000 * 0.07);
+        assertEquals("99th percentile is not within tolerance", 99000, histogram.percentile(99), 99000 * 0.07);
+        assertEquals("99.9th percentile is not within tolerance", 99900, histogram.percentile(99.9), 99900 * 0.07);
+        assertEquals("Maximum is not correct", 100000, histogram.getMax());
+    }
+
+    @Test
+    public void testSince(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000000);
+        LatencyHistogram earlier = histogram.copy();
+        histogram.record(10);
+        histogram.record(20);
+        LatencyHistogram recent = histogram.since(earlier);
+        assertEquals("Count since copy is not correct", 2, recent.getCount());
+        assertEquals("Percentile since copy includes earlier values", 20, recent.percentile(100));
+        assertEquals("Copy was changed by later records", 1, earlier.getCount());
+    }
+
+    @Test
+    public void testEmpty(){
+        assertEquals("Empty histogram percentile is not zero", 0, new LatencyHistogram().percentile(99));
+    }
+}
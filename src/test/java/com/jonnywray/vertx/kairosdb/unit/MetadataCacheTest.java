@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.MetadataCache;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the metadata cache
+ *
+ * @author Jonny Wray
+ */
+public class MetadataCacheTest {
+
+    @Test
+    public void testNotLoaded(){
+        MetadataCache cache = new MetadataCache();
+        assertFalse("List is loaded when it should not be", cache.isLoaded(MetadataCache.Kind.METRIC_NAMES));
+        cache.observe(exampleDataPoint());
+        assertFalse("Observing data points loaded the list", cache.isLoaded(MetadataCache.Kind.METRIC_NAMES));
+    }
+
+    @Test
+    public void testPrefixFilter(){
+        MetadataCache cache = new MetadataCache();
+        cache.replace(MetadataCache.Kind.METRIC_NAMES, exampleNames());
+        JsonArray results = cache.list(MetadataCache.Kind.METRIC_NAMES, "kairosdb.jvm", null);
+        assertEquals("Prefix filter is not correct", 3, results.size());
+        assertEquals("Results are not sorted", "kairosdb.jvm.free_memory", results.get(0));
+    }
+
+    @Test
+    public void testContainsFilter(){
+        MetadataCache cache = new MetadataCache();
+        cache.replace(MetadataCache.Kind.METRIC_NAMES, exampleNames());
+        JsonArray results = cache.list(MetadataCache.Kind.METRIC_NAMES, null, "memory");
+        assertEquals("Contains filter is not correct", 2, results.size());
+        assertEquals("Unfiltered list is not complete", 4, cache.list(MetadataCache.Kind.METRIC_NAMES, null, null).size());
+    }
+
+    @Test
+    public void testObserve(){
+        MetadataCache cache = new MetadataCache();
+        cache.replace(MetadataCache.Kind.METRIC_NAMES, exampleNames());
+        cache.replace(MetadataCache.Kind.TAG_NAMES, new JsonArray());
+        cache.replace(MetadataCache.Kind.TAG_VALUES, new JsonArray());
+        cache.observe(exampleDataPoint());
+        assertTrue("Metric name not added", cache.list(MetadataCache.Kind.METRIC_NAMES, null, null).contains("integration.tests"));
+        assertTrue("Tag name not added", cache.list(MetadataCache.Kind.TAG_NAMES, null, null).contains("test_type"));
+        assertTrue("Tag value not added", cache.list(MetadataCache.Kind.TAG_VALUES, null, null).contains("integration"));
+    }
+
+    @Test
+    public void testStaticFilter(){
+        JsonArray filtered = MetadataCache.filter(exampleNames(), "kairosdb", "thread");
+        assertEquals("Filter is not correct", 1, filtered.size());
+    }
+
+    private JsonArray exampleNames(){
+        return new JsonArray()
+            .addString("kairosdb.jvm.thread_count")
+            .addString("kairosdb.jvm.total_memory")
+            .addString("kairosdb.jvm.free_memory")
+            .addString("weather.humidity");
+    }
+
+    private JsonObject exampleDataPoint(){
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putNumber("timestamp", System.currentTimeMillis());
+        dataPoints.putNumber("value", 42);
+        dataPoints.putObject("tags", new JsonObject().putString("test_type", "integration"));
+        return dataPoints;
+    }
+}
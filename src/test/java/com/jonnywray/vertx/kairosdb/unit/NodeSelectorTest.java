@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.CircuitBreaker;
+import com.jonnywray.vertx.kairosdb.KairosNode;
+import com.jonnywray.vertx.kairosdb.NodeSelector;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the node selector
+ *
+ * @author Jonny Wray
+ */
+public class NodeSelectorTest {
+
+    @Test
+    public void testRoundRobin(){
+        List<KairosNode> nodes = exampleNodes();
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.ROUND_ROBIN);
+        Set<KairosNode> selected = new HashSet<>();
+        for(int i=0;i<nodes.size();i++){
+            selected.add(selector.select());
+        }
+        assertEquals("Round robin did not select every node", nodes.size(), selected.size());
+    }
+
+    @Test
+    public void testLeastOutstanding(){
+        List<KairosNode> nodes = exampleNodes();
+        nodes.get(0).getMonitor().requestStarted();
+        nodes.get(2).getMonitor().requestStarted();
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.LEAST_OUTSTANDING);
+        assertSame("Least outstanding node not selected", nodes.get(1), selector.select());
+    }
+
+    @Test
+    public void testLatencyWeighted(){
+        List<KairosNode> nodes = exampleNodes();
+        nodes.get(0).recordLatency(1000);
+        nodes.get(1).recordLatency(1);
+        nodes.get(2).recordLatency(1000);
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.LATENCY_WEIGHTED, new Random(42));
+        int fastest = 0;
+        for(int i=0;i<1000;i++){
+            if(selector.select() == nodes.get(1)){
+                fastest++;
+            }
+        }
+        assertTrue("Lowest latency node was not preferred", fastest > 900);
+    }
+
+    @Test
+    public void testUnsampledNodeWeightedAsAverage(){
+        List<KairosNode> nodes = exampleNodes();
+        nodes.get(0).recordLatency(1);
+        nodes.get(1).recordLatency(1000);
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.LATENCY_WEIGHTED, new Random(42));
+        int fastest = 0;
+        int unsampled = 0;
+        for(int i=0;i<1000;i++){
+            KairosNode node = selector.select();
+            if(node == nodes.get(0)){
+                fastest++;
+            }
+            else if(node == nodes.get(2)){
+                unsampled++;
+            }
+        }
+        assertTrue("Node without a latency sample was preferred over the lowest latency node", fastest > 900);
+        assertTrue("Node without a latency sample was never selected", unsampled > 0);
+    }
+
+    @Test
+    public void testUnhealthyNodeSkipped(){
+        List<KairosNode> nodes = exampleNodes();
+        nodes.get(0).healthCheckFailed(1);
+        nodes.get(1).healthCheckFailed(1);
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.ROUND_ROBIN);
+        for(int i=0;i<5;i++){
+            assertSame("Unhealthy node selected", nodes.get(2), selector.select());
+        }
+        nodes.get(0).healthCheckPassed();
+        Set<KairosNode> selected = new HashSet<>();
+        for(int i=0;i<5;i++){
+            selected.add(selector.select());
+        }
+        assertTrue("Healthy node was not brought back", selected.contains(nodes.get(0)));
+    }
+
+    @Test
+    public void testAllUnhealthyFallsBack(){
+        List<KairosNode> nodes = exampleNodes();
+        for(KairosNode node : nodes){
+            node.healthCheckFailed(1);
+        }
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.ROUND_ROBIN);
+        assertNotNull("No node selected when all are unhealthy", selector.select());
+    }
+
+    @Test
+    public void testOpenCircuitSkipped(){
+        List<KairosNode> nodes = exampleNodes();
+        for(KairosNode node : nodes){
+            node.setCircuitBreaker(new CircuitBreaker(1, 1, 0.5, 1000, 1));
+        }
+        nodes.get(0).getCircuitBreaker().recordFailure(0);
+        nodes.get(1).getCircuitBreaker().recordFailure(0);
+        NodeSelector selector = new NodeSelector(nodes, NodeSelector.Strategy.ROUND_ROBIN);
+        for(int i=0;i<5;i++){
+            assertSame("Node with an open circuit selected", nodes.get(2), selector.select(10));
+        }
+        nodes.get(2).getCircuitBreaker().recordFailure(0);
+        assertNull("Node selected when every circuit is open", selector.select(10));
+    }
+
+    private List<KairosNode> exampleNodes(){
+        return Arrays.asList(new KairosNode("kairos1", 8080, null, 5),
+                new KairosNode("kairos2", 8080, null, 5),
+                new KairosNode("kairos3", 8080, null, 5));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.QueryBatcher;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the query batcher
+ *
+ * @author Jonny Wray
+ */
+public class QueryBatcherTest {
+
+    @Test
+    public void testKeyIgnoresMetrics(){
+        assertEquals("Queries with the same range have different keys",
+                QueryBatcher.key(query(0, 1000, "a")), QueryBatcher.key(query(0, 1000, "b", "c")));
+        assertNotEquals("Queries with different ranges have the same key",
+                QueryBatcher.key(query(0, 1000, "a")), QueryBatcher.key(query(0, 2000, "a")));
+        assertNull("Query without metrics has a key", QueryBatcher.key(new JsonObject().putNumber("start_absolute", 0)));
+    }
+
+    @Test
+    public void testCombinedQuery(){
+        QueryBatcher<String> batcher = new QueryBatcher<>(100);
+        String key = QueryBatcher.key(query(0, 1000, "a"));
+        QueryBatcher.Batch<String> batch = batcher.add(key, query(0, 1000, "a"), "first");
+        assertEquals("New batch does not hold the query", 1, batch.size());
+        assertSame("Query was not added to the existing batch", batch, batcher.add(key, query(0, 1000, "b", "c"), "second"));
+        assertEquals("Pending queries are not correct", 2, batcher.getPending());
+
+        JsonObject combined = batcher.drain(key).getQuery();
+        assertEquals("Range was not kept", 1000, combined.getNumber("end_absolute").intValue());
+        JsonArray metrics = combined.getArray("metrics");
+        assertEquals("Metrics were not combined", 3, metrics.size());
+        assertEquals("Metrics are not in order", "c", ((JsonObject) metrics.get(2)).getString("name"));
+        assertEquals("Batch was not drained", 0, batcher.getPending());
+        assertEquals("Batched queries are not counted", 2, batcher.getBatchedQueries());
+    }
+
+    @Test
+    public void testFull(){
+        QueryBatcher<String> batcher = new QueryBatcher<>(3);
+        String key = QueryBatcher.key(query(0, 1000, "a"));
+        batcher.add(key, query(0, 1000, "a", "b"), "first");
+        assertFalse("Batch is full before the maximum metrics", batcher.isFull(key));
+        batcher.add(key, query(0, 1000, "c"), "second");
+        assertTrue("Batch is not full at the maximum metrics", batcher.isFull(key));
+    }
+
+    @Test
+    public void testDemultiplex(){
+        QueryBatcher<String> batcher = new QueryBatcher<>(100);
+        String key = QueryBatcher.key(query(0, 1000, "a"));
+        batcher.add(key, query(0, 1000, "a", "b"), "first");
+        batcher.add(key, query(0, 1000, "c"), "second");
+        QueryBatcher.Batch<String> batch = batcher.drain(key);
+
+        JsonObject response = new JsonObject().putArray("queries", new JsonArray()
+            .addObject(result("a")).addObject(result("b")).addObject(result("c")));
+        List<JsonObject> responses = batch.demultiplex(response);
+        assertEquals("Response count is not correct", 2, responses.size());
+        assertEquals("First response does not hold its metrics", 2, responses.get(0).getArray("queries").size());
+        assertEquals("Second response does not hold its metric", "c",
+                ((JsonObject) ((JsonObject) responses.get(1).getArray("queries").get(0)).getArray("results").get(0)).getString("name"));
+        assertEquals("Tokens are not in order", "second", batch.getTokens().get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDemultiplexMismatch(){
+        QueryBatcher<String> batcher = new QueryBatcher<>(100);
+        String key = QueryBatcher.key(query(0, 1000, "a"));
+        batcher.add(key, query(0, 1000, "a"), "first");
+        batcher.add(key, query(0, 1000, "b"), "second");
+        batcher.drain(key).demultiplex(new JsonObject().putArray("queries", new JsonArray().addObject(result("a"))));
+    }
+
+    private JsonObject query(long start, long end, String... names){
+        JsonArray metrics = new JsonArray();
+        for(String name : names){
+            metrics.addObject(new JsonObject().putString("name", name));
+        }
+        return new JsonObject().putNumber("start_absolute", start).putNumber("end_absolute", end).putArray("metrics", metrics);
+    }
+
+    private JsonObject result(String name){
+        return new JsonObject().putNumber("sample_size", 1)
+            .putArray("results", new JsonArray().addObject(new JsonObject().putString("name", name)));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.QueryCache;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the query cache
+ *
+ * @author Jonny Wray
+ */
+public class QueryCacheTest {
+
+    private static final long NOW = 1386622880074L;
+    private static final long ONE_DAY = 1000 * 60 * 60 * 24;
+
+    @Test
+    public void testCanonicalKey(){
+        JsonObject first = new JsonObject("{\"start_absolute\":1,\"end_absolute\":2,\"metrics\":[{\"name\":\"a\",\"tags\":{\"x\":\"1\",\"y\":\"2\"}}]}");
+        JsonObject second = new JsonObject("{\"metrics\":[{\"tags\":{\"y\":\"2\",\"x\":\"1\"},\"name\":\"a\"}],\"end_absolute\":2,\"start_absolute\":1}");
+        assertEquals("Keys differ for equivalent queries", QueryCache.key("query_metrics", first), QueryCache.key("query_metrics", second));
+        assertNotEquals("Keys are the same for different actions", QueryCache.key("query_metrics", first), QueryCache.key("query_metric_tags", first));
+    }
+
+    @Test
+    public void testHitAndExpiry(){
+        QueryCache cache = new QueryCache(10, 1024, 1000, 0);
+        JsonObject query = absoluteQuery("integration.tests");
+        String key = QueryCache.key("query_metrics", query);
+        assertNull("Empty cache returned a result", cache.get(key, NOW));
+        cache.put(key, query, new JsonObject(), 10, cache.getGeneration(), NOW);
+        assertNotNull("Cached result not returned", cache.get(key, NOW + 999));
+        assertNull("Expired result returned", cache.get(key, NOW + 1000));
+    }
+
+    @Test
+    public void testRelativeQueryTtl(){
+        QueryCache cache = new QueryCache(10, 1024, 1000, 0);
+        JsonObject query = new JsonObject().putObject("start_relative", new JsonObject().putNumber("value", 1).putString("unit", "hours"));
+        String key = QueryCache.key("query_metrics", query);
+        cache.put(key, query, new JsonObject(), 10, cache.getGeneration(), NOW);
+        assertNull("Relative query was cached with a zero relative ttl", cache.get(key, NOW));
+        JsonObject open = new JsonObject().putNumber("start_absolute", NOW - ONE_DAY).putNumber("end_absolute", NOW + ONE_DAY);
+        assertTrue("Range ending in the future is not treated as relative", QueryCache.isRelative(open, NOW));
+    }
+
+    @Test
+    public void testEvictionByEntries(){
+        QueryCache cache = new QueryCache(2, 1024, 1000, 0);
+        for(int i=0;i<3;i++){
+            JsonObject query = absoluteQuery("metric." + i);
+            cache.put(QueryCache.key("query_metrics", query), query, new JsonObject(), 10, cache.getGeneration(), NOW);
+        }
+        assertEquals("Cache size not bounded", 2, cache.size());
+        assertNull("Eldest entry not evicted", cache.get(QueryCache.key("query_metrics", absoluteQuery("metric.0")), NOW));
+        assertEquals("Eviction not counted", 1, (long) cache.toJson().getLong("evictions"));
+    }
+
+    @Test
+    public void testEvictionByBytes(){
+        QueryCache cache = new QueryCache(10, 100, 1000, 0);
+        for(int i=0;i<3;i++){
+            JsonObject query = absoluteQuery("metric." + i);
+            cache.put(QueryCache.key("query_metrics", query), query, new JsonObject(), 40, cache.getGeneration(), NOW);
+        }
+        assertEquals("Cache bytes not bounded", 2, cache.size());
+    }
+
+    @Test
+    public void testInvalidation(){
+        QueryCache cache = new QueryCache(10, 1024, 1000, 0);
+        JsonObject first = absoluteQuery("integration.tests");
+        JsonObject second = absoluteQuery("other.tests");
+        cache.put(QueryCache.key("query_metrics", first), first, new JsonObject(), 10, cache.getGeneration(), NOW);
+        cache.put(QueryCache.key("query_metrics", second), second, new JsonObject(), 10, cache.getGeneration(), NOW);
+        cache.invalidateMetric("integration.tests");
+        assertNull("Invalidated entry returned", cache.get(QueryCache.key("query_metrics", first), NOW));
+        assertNotNull("Unrelated entry invalidated", cache.get(QueryCache.key("query_metrics", second), NOW));
+    }
+
+    @Test
+    public void testPutAfterInvalidationDropped(){
+        QueryCache cache = new QueryCache(10, 1024, 1000, 0);
+        JsonObject query = absoluteQuery("integration.tests");
+        String key = QueryCache.key("query_metrics", query);
+        long generation = cache.getGeneration();
+        cache.invalidateQuery(query);
+        cache.put(key, query, new JsonObject(), 10, generation, NOW);
+        assertNull("Result of a query sent before an invalidation was cached", cache.get(key, NOW));
+        assertEquals("Stale put not counted", 1, (long) cache.toJson().getLong("stale_puts"));
+        cache.put(key, query, new JsonObject(), 10, cache.getGeneration(), NOW);
+        assertNotNull("Result of a query sent after an invalidation was not cached", cache.get(key, NOW));
+    }
+
+    private JsonObject absoluteQuery(String metricName){
+        JsonArray metrics = new JsonArray().addObject(new JsonObject().putString("name", metricName));
+        return new JsonObject()
+            .putNumber("start_absolute", NOW - ONE_DAY)
+            .putNumber("end_absolute", NOW - 1000)
+            .putArray("metrics", metrics);
+    }
+}
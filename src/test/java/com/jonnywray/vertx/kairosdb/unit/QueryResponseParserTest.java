@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.Downsampler;
+import com.jonnywray.vertx.kairosdb.QueryResponseParser;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the streaming response parser
+ *
+ * @author Jonny Wray
+ */
+public class QueryResponseParserTest {
+
+    private static final String RESPONSE = "{\"queries\":[{\"sample_size\":3,\"results\":[{\"name\":\"test\"," +
+            "\"group_by\":[{\"name\":\"type\",\"type\":\"number\"}],\"tags\":{\"host\":[\"server1\",\"server2\"]}," +
+            "\"values\":[[1364968800000,11019],[1366351200000,2.5],[1366351200001,4294967296]]}]}]}";
+
+    @Test
+    public void testSameAsTreeDecoding(){
+        assertParsedAsTree(RESPONSE);
+        assertParsedAsTree("{\"version\":\"KairosDB 0.9.1\"}");
+        assertParsedAsTree("{\"results\":[\"a\",\"b\\u00e9\\n\"],\"empty\":{},\"flag\":true,\"other\":false,\"nothing\":null}");
+        assertParsedAsTree("{\"queries\":[{\"sample_size\":0,\"results\":[{\"name\":\"test\",\"tags\":{},\"values\":[]}]}]}");
+    }
+
+    @Test
+    public void testNonNumericValuesKept(){
+        assertParsedAsTree("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,2],[3,\"text\"],[4,5]]}]}]}");
+        assertParsedAsTree("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,2],{\"a\":1},[4,5]]}]}]}");
+        assertParsedAsTree("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,2],[3,4,5],[6,7]]}]}]}");
+        assertParsedAsTree("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1.5,2],[3]]}]}]}");
+        assertParsedAsTree("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,123456789012345678901234567890]]}]}]}");
+    }
+
+    @Test
+    public void testManyValues(){
+        StringBuilder response = new StringBuilder("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[");
+        for(int i=0;i<1000;i++){
+            response.append(i == 0 ? "" : ",").append('[').append(i).append(',').append(i % 3 == 0 ? i + 0.5 : i).append(']');
+        }
+        assertParsedAsTree(response.append("]}]}]}").toString());
+    }
+
+    @Test
+    public void testColumnar(){
+        JsonObject parsed = QueryResponseParser.parse(new Buffer(RESPONSE), true);
+        JsonObject series = ((JsonObject) parsed.getArray("queries").get(0)).getArray("results").get(0);
+        assertEquals("Series fields were not kept", "test", series.getString("name"));
+        assertEquals("Value type is not correct", "double", series.getString("value_type"));
+        ByteBuffer timestamps = ByteBuffer.wrap(series.getBinary("timestamps"));
+        ByteBuffer values = ByteBuffer.wrap(series.getBinary("values"));
+        assertEquals("Point count is not correct", 24, timestamps.remaining());
+        assertEquals("Timestamp is not correct", 1364968800000L, timestamps.getLong(0));
+        assertEquals("Timestamp is not correct", 1366351200001L, timestamps.getLong(16));
+        assertEquals("Value is not correct", 11019, values.getDouble(0), 0);
+        assertEquals("Value is not correct", 2.5, values.getDouble(8), 0);
+        assertEquals("Value is not correct", 4294967296.0, values.getDouble(16), 0);
+    }
+
+    @Test
+    public void testColumnarLongs(){
+        JsonObject parsed = QueryResponseParser.parse(new Buffer(
+                "{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,-2],[3,4294967296]]}]}]}"), true);
+        JsonObject series = ((JsonObject) parsed.getArray("queries").get(0)).getArray("results").get(0);
+        assertEquals("Value type is not correct", "long", series.getString("value_type"));
+        ByteBuffer values = ByteBuffer.wrap(series.getBinary("values"));
+        assertEquals("Value is not correct", -2, values.getLong(0));
+        assertEquals("Value is not correct", 4294967296L, values.getLong(8));
+    }
+
+    @Test
+    public void testColumnarFallsBackForNonNumericValues(){
+        JsonObject parsed = QueryResponseParser.parse(new Buffer(
+                "{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[[1,\"text\"]]}]}]}"), true);
+        JsonObject series = ((JsonObject) parsed.getArray("queries").get(0)).getArray("results").get(0);
+        assertNull("Non numeric series is columnar", series.getString("value_type"));
+        assertEquals("Values were not kept", "[[1,\"text\"]]", series.getArray("values").encode());
+    }
+
+    @Test
+    public void testDownsampled(){
+        StringBuilder response = new StringBuilder("{\"queries\":[{\"results\":[{\"name\":\"test\",\"values\":[");
+        for(int i=0;i<1000;i++){
+            response.append(i == 0 ? "" : ",").append('[').append(i).append(',').append(i == 400 ? "99.5" : String.valueOf(i % 7)).append(']');
+        }
+        JsonObject parsed = QueryResponseParser.parse(new Buffer(response.append("]}]}]}").toString()), false,
+                new Downsampler(Downsampler.Method.LTTB, 100));
+        JsonObject series = ((JsonObject) parsed.getArray("queries").get(0)).getArray("results").get(0);
+        assertEquals("Original point count is not correct", 1000, series.getInteger("downsampled_from").intValue());
+        JsonArray values = series.getArray("values");
+        assertEquals("Point count is not correct", 100, values.size());
+        assertEquals("First point is not correct", "[0,0]", ((JsonArray) values.get(0)).encode());
+        assertEquals("Last point is not correct", "[999,5]", ((JsonArray) values.get(99)).encode());
+        assertTrue("Peak was not kept", values.encode().contains("[400,99.5]"));
+    }
+
+    @Test
+    public void testSmallSeriesNotDownsampled(){
+        JsonObject parsed = QueryResponseParser.parse(new Buffer(RESPONSE), false, new Downsampler(Downsampler.Method.MIN_MAX, 2));
+        JsonObject series = ((JsonObject) parsed.getArray("queries").get(0)).getArray("results").get(0);
+        assertEquals("Point count is not correct", 2, series.getArray("values").size());
+        parsed = QueryResponseParser.parse(new Buffer(RESPONSE), false, new Downsampler(Downsampler.Method.LTTB, 3));
+        assertEquals("Series within the maximum was changed", new JsonObject(RESPONSE), parsed);
+    }
+
+    @Test(expected = DecodeException.class)
+    public void testMalformed(){
+        QueryResponseParser.parse(new Buffer("{\"queries\":[{\"results\""), false);
+    }
+
+    @Test(expected = DecodeException.class)
+    public void testNotObject(){
+        QueryResponseParser.parse(new Buffer("[1,2]"), false);
+    }
+
+    private void assertParsedAsTree(String body){
+        assertEquals("Parsed response differs from tree decoding", new JsonObject(body),
+                QueryResponseParser.parse(new Buffer(body), false));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.QueryResultSplitter;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the query result splitter
+ *
+ * @author Jonny Wray
+ */
+public class QueryResultSplitterTest {
+
+    @Test
+    public void testSplitIntoSlices(){
+        RecordingListener listener = new RecordingListener();
+        QueryResultSplitter splitter = new QueryResultSplitter(2, listener);
+        feedInPieces(splitter, exampleResponse(), 7);
+
+        assertEquals("Slice count is not correct", 3, listener.series.size());
+        JsonObject first = listener.series.get(0);
+        assertEquals("Series name is not correct", "integration.tests", first.getString("name"));
+        assertEquals("Series tags are not correct", "integration", first.getObject("tags").getArray("test_type").get(0));
+        assertEquals("Slice size is not correct", 2, first.getArray("values").size());
+        assertEquals("Final slice size is not correct", 1, listener.series.get(1).getArray("values").size());
+        assertEquals("Second series name is not correct", "other.tests", listener.series.get(2).getString("name"));
+        assertEquals("Empty series slice is not correct", 0, listener.series.get(2).getArray("values").size());
+
+        assertEquals("Last flags are not correct", "[false, true, true]", listener.last.toString());
+        assertEquals("Query count is not correct", 1, listener.queries.size());
+        assertEquals("Sample size is not correct", 3, (int) listener.queries.get(0).getInteger("sample_size"));
+        assertEquals("Query results are not empty", 0, listener.queries.get(0).getArray("results").size());
+    }
+
+    @Test
+    public void testSingleChunk(){
+        RecordingListener listener = new RecordingListener();
+        QueryResultSplitter splitter = new QueryResultSplitter(1000, listener);
+        splitter.feed(new Buffer(exampleResponse()));
+        assertEquals("Slice count is not correct", 2, listener.series.size());
+        assertEquals("Values are not correct", 3, listener.series.get(0).getArray("values").size());
+        long timestamp = ((Number) ((JsonArray) listener.series.get(0).getArray("values").get(2)).get(0)).longValue();
+        assertEquals("Timestamp is not correct", 1386622973842L, timestamp);
+    }
+
+    @Test
+    public void testStringsContainingStructure(){
+        RecordingListener listener = new RecordingListener();
+        QueryResultSplitter splitter = new QueryResultSplitter(10, listener);
+        String response = "{\"queries\":[{\"sample_size\":1,\"results\":[{\"name\":\"odd]}\\\"name\",\"tags\":{\"k\":[\"v{\"]},\"values\":[[1,2]]}]}]}";
+        feedInPieces(splitter, response, 3);
+        assertEquals("Slice count is not correct", 1, listener.series.size());
+        assertEquals("Escaped name is not correct", "odd]}\"name", listener.series.get(0).getString("name"));
+    }
+
+    private void feedInPieces(QueryResultSplitter splitter, String response, int pieceSize){
+        for(int i=0;i<response.length();i+=pieceSize){
+            splitter.feed(new Buffer(response.substring(i, Math.min(response.length(), i + pieceSize))));
+        }
+    }
+
+    private String exampleResponse(){
+        return "{\"queries\": [ {\n" +
+            "  \"sample_size\": 3,\n" +
+            "  \"results\": [ {\n" +
+            "    \"name\": \"integration.tests\",\n" +
+            "    \"group_by\": [ { \"name\": \"type\", \"type\": \"number\" } ],\n" +
+            "    \"tags\": { \"test_type\": [ \"integration\" ] },\n" +
+            "    \"values\": [ [ 1386622973642, 42 ], [ 1386622973742, 52.5 ], [ 1386622973842, 62 ] ]\n" +
+            "  }, {\n" +
+            "    \"name\": \"other.tests\",\n" +
+            "    \"tags\": { },\n" +
+            "    \"values\": [ ]\n" +
+            "  } ]\n" +
+            "} ] }";
+    }
+
+    private static class RecordingListener implements QueryResultSplitter.Listener {
+
+        private final List<JsonObject> series = new ArrayList<>();
+        private final List<Boolean> last = new ArrayList<>();
+        private final List<JsonObject> queries = new ArrayList<>();
+
+        @Override
+        public void series(int queryIndex, int seriesIndex, JsonObject series, boolean last) {
+            this.series.add(series);
+            this.last.add(last);
+        }
+
+        @Override
+        public void queryComplete(int queryIndex, JsonObject query) {
+            queries.add(query);
+        }
+    }
+}
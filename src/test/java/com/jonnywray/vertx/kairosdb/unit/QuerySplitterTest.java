@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.QuerySplitter;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the query splitter
+ *
+ * @author Jonny Wray
+ */
+public class QuerySplitterTest {
+
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+
+    @Test
+    public void testAbsoluteRangeSplit(){
+        JsonObject query = query(0, 3 * DAY - 1, metric());
+        List<JsonObject> splits = QuerySplitter.split(query, DAY, 0);
+        assertEquals("Split count is not correct", 3, splits.size());
+        assertEquals("First split start is not correct", 0L, splits.get(0).getLong("start_absolute").longValue());
+        assertEquals("First split end is not correct", DAY - 1, splits.get(0).getLong("end_absolute").longValue());
+        assertEquals("Last split start is not correct", 2 * DAY, splits.get(2).getLong("start_absolute").longValue());
+        assertEquals("Last split end is not correct", 3 * DAY - 1, splits.get(2).getLong("end_absolute").longValue());
+        assertEquals("Metrics were not kept", "m", ((JsonObject) splits.get(1).getArray("metrics").get(0)).getString("name"));
+    }
+
+    @Test
+    public void testRelativeRangeSplit(){
+        long now = 10 * DAY;
+        JsonObject query = new JsonObject()
+            .putObject("start_relative", new JsonObject().putNumber("value", 2).putString("unit", "days"))
+            .putArray("metrics", new JsonArray().addObject(metric()));
+        List<JsonObject> splits = QuerySplitter.split(query, DAY, now);
+        assertEquals("Split count is not correct", 3, splits.size());
+        assertEquals("Relative start was not resolved", 8 * DAY, splits.get(0).getLong("start_absolute").longValue());
+        assertEquals("End was not resolved to now", now, splits.get(2).getLong("end_absolute").longValue());
+        assertNull("Relative start was kept", splits.get(0).getObject("start_relative"));
+    }
+
+    @Test
+    public void testSmallRangeNotSplit(){
+        assertNull("Query within one sub-range was split", QuerySplitter.split(query(0, DAY - 1, metric()), DAY, 0));
+    }
+
+    @Test
+    public void testSplitsOnSamplingBoundaries(){
+        long start = 5 * 60000L;
+        JsonObject query = query(start, start + 2 * DAY, metric().putArray("aggregators", new JsonArray()
+            .addObject(aggregator("sum", 7, "minutes"))));
+        List<JsonObject> splits = QuerySplitter.split(query, DAY, 0);
+        for(JsonObject split : splits){
+            assertEquals("Split does not start on a sampling boundary", 0,
+                    (split.getLong("start_absolute") - start) % (7 * 60000L));
+        }
+    }
+
+    @Test
+    public void testAlignedSamplingSplitsOnHourAndSamplingBoundaries(){
+        long start = 5 * 60000L;
+        JsonObject query = query(start, start + 2 * DAY, metric().putArray("aggregators", new JsonArray()
+            .addObject(aggregator("avg", 7, "minutes").putBoolean("align_sampling", true))));
+        List<JsonObject> splits = QuerySplitter.split(query, DAY, 0);
+        assertTrue("Aligned query was not split", splits.size() > 1);
+        for(JsonObject split : splits.subList(1, splits.size())){
+            long splitStart = split.getLong("start_absolute");
+            assertEquals("Split does not start on the hour", 0, splitStart % HOUR);
+            assertEquals("Split does not start on a sampling boundary", 0, splitStart % (7 * 60000L));
+        }
+    }
+
+    @Test
+    public void testUnsplittableQueries(){
+        assertNull("Query with a limit was split", QuerySplitter.split(query(0, 3 * DAY, metric().putNumber("limit", 10)), DAY, 0));
+        assertNull("Query with a rate was split", QuerySplitter.split(query(0, 3 * DAY, metric().putArray("aggregators",
+                new JsonArray().addObject(new JsonObject().putString("name", "rate")))), DAY, 0));
+        assertNull("Query with monthly sampling was split", QuerySplitter.split(query(0, 100 * DAY, metric().putArray("aggregators",
+                new JsonArray().addObject(aggregator("sum", 1, "months")))), DAY, 0));
+        assertNull("Query with time grouping was split", QuerySplitter.split(query(0, 3 * DAY, metric().putArray("group_by",
+                new JsonArray().addObject(new JsonObject().putString("name", "time")))), DAY, 0));
+        assertNull("Query with a time zone was split", QuerySplitter.split(query(0, 3 * DAY, metric()).putString("time_zone", "Europe/London"), DAY, 0));
+    }
+
+    @Test
+    public void testMerge(){
+        JsonObject query = query(0, 2 * DAY, metric());
+        JsonObject first = response(1, result("m", "server1", new JsonArray().addArray(new JsonArray().addNumber(1).addNumber(10))));
+        JsonObject second = response(2, result("m", "server2", new JsonArray()
+            .addArray(new JsonArray().addNumber(DAY).addNumber(20))
+            .addArray(new JsonArray().addNumber(DAY + 1).addNumber(30))));
+        JsonObject merged = QuerySplitter.merge(query, Arrays.asList(first, second));
+        JsonObject queryResult = merged.getArray("queries").get(0);
+        assertEquals("Sample sizes were not summed", 3, queryResult.getNumber("sample_size").intValue());
+        JsonArray results = queryResult.getArray("results");
+        assertEquals("Results were not merged", 1, results.size());
+        JsonObject result = results.get(0);
+        assertEquals("Values were not merged in order", "[[1,10],[86400000,20],[86400001,30]]", result.getArray("values").encode());
+        assertEquals("Tags were not merged", "[\"server1\",\"server2\"]", result.getObject("tags").getArray("host").encode());
+    }
+
+    @Test
+    public void testMergeDescending(){
+        JsonObject query = query(0, 2 * DAY, metric().putString("order", "desc"));
+        JsonObject first = response(1, result("m", "server1", new JsonArray().addArray(new JsonArray().addNumber(1).addNumber(10))));
+        JsonObject second = response(1, result("m", "server1", new JsonArray().addArray(new JsonArray().addNumber(DAY).addNumber(20))));
+        JsonObject merged = QuerySplitter.merge(query, Arrays.asList(first, second));
+        JsonObject result = ((JsonObject) merged.getArray("queries").get(0)).getArray("results").get(0);
+        assertEquals("Descending values are not in order", "[[86400000,20],[1,10]]", result.getArray("values").encode());
+    }
+
+    private JsonObject query(long start, long end, JsonObject metric){
+        return new JsonObject().putNumber("start_absolute", start).putNumber("end_absolute", end)
+            .putArray("metrics", new JsonArray().addObject(metric));
+    }
+
+    private JsonObject metric(){
+        return new JsonObject().putString("name", "m");
+    }
+
+    private JsonObject aggregator(String name, int value, String unit){
+        return new JsonObject().putString("name", name)
+            .putObject("sampling", new JsonObject().putNumber("value", value).putString("unit", unit));
+    }
+
+    private JsonObject response(int sampleSize, JsonObject result){
+        return new JsonObject().putArray("queries", new JsonArray().addObject(new JsonObject()
+            .putNumber("sample_size", sampleSize)
+            .putArray("results", new JsonArray().addObject(result))));
+    }
+
+    private JsonObject result(String name, String host, JsonArray values){
+        return new JsonObject().putString("name", name)
+            .putObject("tags", new JsonObject().putArray("host", new JsonArray().addString(host)))
+            .putArray("values", values);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.RequestCoalescer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the request coalescer
+ *
+ * @author Jonny Wray
+ */
+public class RequestCoalescerTest {
+
+    @Test
+    public void testFollowersJoinLeader(){
+        RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+        assertFalse("First request is not the leader", coalescer.join("version", "first"));
+        assertTrue("Second request did not join", coalescer.join("version", "second"));
+        assertTrue("Third request did not join", coalescer.join("version", "third"));
+        assertFalse("Different request joined", coalescer.join("list_tag_names", "other"));
+
+        List<String> followers = coalescer.complete("first");
+        assertEquals("Followers are not correct", 2, followers.size());
+        assertEquals("Coalesced count is not correct", 2, coalescer.getCoalesced());
+        assertNull("Follower was treated as a leader", coalescer.complete("second"));
+    }
+
+    @Test
+    public void testNewLeaderAfterCompletion(){
+        RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+        coalescer.join("version", "first");
+        coalescer.complete("first");
+        assertFalse("Request after completion joined a completed request", coalescer.join("version", "second"));
+        assertEquals("In flight count is not correct", 1, coalescer.getInFlight());
+    }
+
+    @Test
+    public void testLeaderLookup(){
+        RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+        assertNull("Leader found before any request", coalescer.getLeader("version"));
+        coalescer.join("version", "first");
+        coalescer.join("version", "second");
+        assertEquals("Leader is not correct", "first", coalescer.getLeader("version"));
+        coalescer.complete("first");
+        assertNull("Leader found after completion", coalescer.getLeader("version"));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.RetryPolicy;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the retry policy
+ *
+ * @author Jonny Wray
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void testAttempts(){
+        RetryPolicy policy = new RetryPolicy(3, 10, 1000);
+        assertTrue("First failure cannot be retried", policy.canRetry(1));
+        assertTrue("Second failure cannot be retried", policy.canRetry(2));
+        assertFalse("Third failure can be retried", policy.canRetry(3));
+        assertFalse("Single attempt policy can be retried", RetryPolicy.NONE.canRetry(1));
+    }
+
+    @Test
+    public void testExponentialDelayWithJitter(){
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        Random random = new Random(42);
+        for(int i=0;i<100;i++){
+            long first = policy.delay(1, random);
+            assertTrue("First delay is out of range: " + first, first >= 50 && first <= 100);
+            long third = policy.delay(3, random);
+            assertTrue("Third delay is out of range: " + third, third >= 200 && third <= 400);
+            long capped = policy.delay(9, random);
+            assertTrue("Delay is not capped: " + capped, capped >= 500 && capped <= 1000);
+        }
+    }
+}
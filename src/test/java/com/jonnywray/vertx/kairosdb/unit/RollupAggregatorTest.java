@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.RollupAggregator;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the rollup aggregator
+ *
+ * @author Jonny Wray
+ */
+public class RollupAggregatorTest {
+
+    @Test
+    public void testMatching(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", "request\\..*"));
+        assertNotNull("Matching name was not matched", aggregator.match("request.latency"));
+        assertNull("Other name was matched", aggregator.match("disk.used"));
+        assertNull("Unmatched points were aggregated", aggregator.add(point("disk.used", 1000, 1), 1000));
+    }
+
+    @Test
+    public void testAggregatesProducedWhenWindowCloses(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", "request\\..*")
+            .putNumber("window", 10000).putNumber("lateness", 1000));
+        aggregator.add(point("request.latency", 10000, 4), 10000);
+        aggregator.add(point("request.latency", 15000, 2), 15000);
+        aggregator.add(point("request.latency", 19999, 6), 19999);
+        aggregator.add(point("request.latency", 20000, 100), 20000);
+        assertEquals("Window closed before the lateness passed", 0, aggregator.closeWindows(20999).size());
+
+        Map<String, JsonObject> rollups = byName(aggregator.closeWindows(21000));
+        assertEquals("Aggregate count is not correct", 5, rollups.size());
+        assertEquals("Count is not correct", 3L, rollups.get("request.latency.count").getNumber("value"));
+        assertEquals("Sum is not correct", 12L, rollups.get("request.latency.sum").getNumber("value"));
+        assertEquals("Min is not correct", 2L, rollups.get("request.latency.min").getNumber("value"));
+        assertEquals("Max is not correct", 6L, rollups.get("request.latency.max").getNumber("value"));
+        assertEquals("Average is not correct", 4.0, rollups.get("request.latency.avg").getNumber("value"));
+        assertEquals("Timestamp is not the window start", 10000L, rollups.get("request.latency.count").getNumber("timestamp"));
+        assertEquals("Tags are not kept", "server1", rollups.get("request.latency.count").getObject("tags").getString("host"));
+        assertEquals("Later window was closed", 1, aggregator.getOpenWindows());
+    }
+
+    @Test
+    public void testSeriesAggregatedSeparately(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*")
+            .putArray("aggregates", new JsonArray().addString("count")));
+        aggregator.add(point("m", 0, 1), 0);
+        aggregator.add(point("m", 1, 1).putObject("tags", new JsonObject().putString("host", "server2")), 1);
+        aggregator.add(multiple("m", 2, 1.5, 3, 2.5), 3);
+        JsonArray rollups = aggregator.closeAll();
+        assertEquals("Series were not aggregated separately", 2, rollups.size());
+        long total = 0;
+        for(Object rollup : rollups){
+            total += ((JsonObject) rollup).getNumber("value").longValue();
+        }
+        assertEquals("Points were not all counted", 4, total);
+    }
+
+    @Test
+    public void testDoubleValuesAndPercentiles(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*")
+            .putArray("aggregates", new JsonArray().addString("sum").addString("max"))
+            .putArray("percentiles", new JsonArray().addNumber(50).addNumber(99.9)));
+        for(int i=1;i<=100;i++){
+            aggregator.add(point("m", 0, i == 100 ? (Number) 100.5 : (Number) i), 0);
+        }
+        Map<String, JsonObject> rollups = byName(aggregator.closeAll());
+        assertEquals("Sum is not correct", 5050.5, rollups.get("m.sum").getNumber("value"));
+        assertEquals("Max is not correct", 100.5, rollups.get("m.max").getNumber("value"));
+        assertEquals("Median is not correct", 50, rollups.get("m.p50").getNumber("value").doubleValue(), 50 * 0.02);
+        assertNotNull("High percentile is not named correctly", rollups.get("m.p999"));
+    }
+
+    @Test
+    public void testNegativeAndFractionalPercentiles(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*")
+            .putArray("aggregates", new JsonArray())
+            .putArray("percentiles", new JsonArray().addNumber(10).addNumber(50).addNumber(90)));
+        for(int i=0;i<100;i++){
+            aggregator.add(point("m", 0, (i - 50) / 100.0), 0);
+        }
+        Map<String, JsonObject> rollups = byName(aggregator.closeAll());
+        assertEquals("Negative percentile is not correct", -0.41, rollups.get("m.p10").getNumber("value").doubleValue(), 0.41 * 0.01);
+        assertEquals("Median is not correct", -0.01, rollups.get("m.p50").getNumber("value").doubleValue(), 0.01 * 0.01);
+        assertEquals("Fractional percentile is not correct", 0.39, rollups.get("m.p90").getNumber("value").doubleValue(), 0.39 * 0.01);
+    }
+
+    @Test
+    public void testLongMinMaxExact(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*")
+            .putArray("aggregates", new JsonArray().addString("min").addString("max")));
+        aggregator.add(point("m", 0, Long.MAX_VALUE - 1), 0);
+        aggregator.add(point("m", 1, Long.MIN_VALUE + 1), 0);
+        Map<String, JsonObject> rollups = byName(aggregator.closeAll());
+        assertEquals("Min is not exact", Long.MIN_VALUE + 1, rollups.get("m.min").getNumber("value"));
+        assertEquals("Max is not exact", Long.MAX_VALUE - 1, rollups.get("m.max").getNumber("value"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAccuracyRejected(){
+        aggregator(new JsonObject().putString("pattern", ".*").putNumber("percentile_accuracy", 1));
+    }
+
+    @Test
+    public void testLatePointsDropped(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*")
+            .putNumber("window", 1000).putNumber("lateness", 0));
+        assertNotNull("Late point was not handled by the rule", aggregator.add(point("m", 0, 1), 5000));
+        assertEquals("Late point was aggregated", 0, aggregator.getOpenWindows());
+        assertEquals("Late point was not counted", 1, aggregator.toJson().getNumber("late_points").intValue());
+    }
+
+    @Test
+    public void testUnsupportedObjectsNotAggregated(){
+        RollupAggregator aggregator = aggregator(new JsonObject().putString("pattern", ".*"));
+        assertNull("Object with a ttl was aggregated", aggregator.add(point("m", 0, 1).putNumber("ttl", 60), 0));
+        assertNull("Non numeric value was aggregated", aggregator.add(new JsonObject().putString("name", "m")
+            .putNumber("timestamp", 0).putString("value", "x").putObject("tags", new JsonObject().putString("host", "s")), 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAggregateRejected(){
+        aggregator(new JsonObject().putString("pattern", ".*").putArray("aggregates", new JsonArray().addString("median")));
+    }
+
+    private RollupAggregator aggregator(JsonObject rule){
+        return RollupAggregator.fromConfig(new JsonArray().addObject(rule));
+    }
+
+    private Map<String, JsonObject> byName(JsonArray dataPoints){
+        Map<String, JsonObject> byName = new HashMap<>();
+        for(Object dataPoint : dataPoints){
+            byName.put(((JsonObject) dataPoint).getString("name"), (JsonObject) dataPoint);
+        }
+        return byName;
+    }
+
+    private JsonObject point(String name, long timestamp, Number value){
+        return new JsonObject().putString("name", name).putNumber("timestamp", timestamp).putNumber("value", value)
+            .putObject("tags", new JsonObject().putString("host", "server1"));
+    }
+
+    private JsonObject multiple(String name, long firstTimestamp, double firstValue, long secondTimestamp, double secondValue){
+        return new JsonObject().putString("name", name)
+            .putArray("datapoints", new JsonArray()
+                .addArray(new JsonArray().addNumber(firstTimestamp).addNumber(firstValue))
+                .addArray(new JsonArray().addNumber(secondTimestamp).addNumber(secondValue)))
+            .putObject("tags", new JsonObject().putString("host", "server1"));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.SeriesAccumulator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the columnar series accumulator
+ *
+ * @author Jonny Wray
+ */
+public class SeriesAccumulatorTest {
+
+    @Test
+    public void testPointsOfSameSeriesMerged(){
+        SeriesAccumulator accumulator = new SeriesAccumulator();
+        assertTrue("Single data point was not accumulated", accumulator.add(single("disk.used", "server1", 1000L, 10)));
+        assertTrue("Multiple data points were not accumulated", accumulator.add(multiple("disk.used", "server1", 2000L, 20.5)));
+        assertTrue("Data points were not accumulated", accumulator.add(single("disk.used", "server2", 1000L, 30)));
+        assertEquals("Point count is not correct", 3, accumulator.getPoints());
+        assertEquals("Series count is not correct", 2, accumulator.getSeries());
+
+        JsonArray written = write(accumulator);
+        assertEquals("Series were not merged", 2, written.size());
+        JsonObject first = written.get(0);
+        assertEquals("Name is not correct", "disk.used", first.getString("name"));
+        assertEquals("Tags are not correct", "server1", first.getObject("tags").getString("host"));
+        assertEquals("Merged points are not correct", "[[1000,10],[2000,20.5]]", first.getArray("datapoints").encode());
+    }
+
+    @Test
+    public void testTagOrderDoesNotSplitSeries(){
+        SeriesAccumulator accumulator = new SeriesAccumulator();
+        accumulator.add(new JsonObject().putString("name", "m").putNumber("timestamp", 1L).putNumber("value", 1)
+            .putObject("tags", new JsonObject().putString("a", "1").putString("b", "2")));
+        accumulator.add(new JsonObject().putString("name", "m").putNumber("timestamp", 2L).putNumber("value", 2)
+            .putObject("tags", new JsonObject().putString("b", "2").putString("a", "1")));
+        assertEquals("Tag order split the series", 1, accumulator.getSeries());
+    }
+
+    @Test
+    public void testUnsupportedObjectsRejected(){
+        SeriesAccumulator accumulator = new SeriesAccumulator();
+        assertFalse("Object with ttl was accumulated", accumulator.add(single("m", "s", 1L, 1).putNumber("ttl", 60)));
+        assertFalse("Non numeric value was accumulated", accumulator.add(new JsonObject().putString("name", "m")
+            .putNumber("timestamp", 1L).putString("value", "x").putObject("tags", new JsonObject().putString("host", "s"))));
+        assertFalse("Float value was accumulated", accumulator.add(single("m", "s", 1L, 1.5f)));
+        assertEquals("Rejected points were held", 0, accumulator.getPoints());
+    }
+
+    @Test
+    public void testIdleSeriesEvictedOnClear(){
+        SeriesAccumulator accumulator = new SeriesAccumulator();
+        accumulator.add(single("a", "s", 1L, 1));
+        accumulator.add(single("b", "s", 1L, 1));
+        accumulator.clear();
+        assertEquals("Active series were not kept", 2, accumulator.getTrackedSeries());
+        assertEquals("Points were not removed", 0, accumulator.getPoints());
+        accumulator.add(single("a", "s", 2L, 2));
+        accumulator.clear();
+        assertEquals("Idle series was not evicted", 1, accumulator.getTrackedSeries());
+        accumulator.add(single("a", "s", 3L, 3));
+        assertEquals("Cleared points were written", "[[3,3]]", write(accumulator).<JsonObject>get(0).getArray("datapoints").encode());
+    }
+
+    @Test
+    public void testGrowth(){
+        SeriesAccumulator accumulator = new SeriesAccumulator();
+        for(int i=0;i<1000;i++){
+            accumulator.add(single("m", "s", i, i % 2 == 0 ? (Number) i : (Number) (i + 0.5)));
+        }
+        JsonArray points = write(accumulator).<JsonObject>get(0).getArray("datapoints");
+        assertEquals("Point count is not correct", 1000, points.size());
+        assertEquals("Long value is not correct", 998L, ((Number) points.<JsonArray>get(998).get(1)).longValue());
+        assertEquals("Double value is not correct", 999.5, ((Number) points.<JsonArray>get(999).get(1)).doubleValue(), 0);
+    }
+
+    private JsonArray write(SeriesAccumulator accumulator){
+        ByteBuf out = Unpooled.buffer();
+        out.writeByte('[');
+        accumulator.writeTo(out, false);
+        out.writeByte(']');
+        return new JsonArray(out.toString(Charset.forName("UTF-8")));
+    }
+
+    private JsonObject single(String name, String host, long timestamp, Number value){
+        return new JsonObject().putString("name", name).putNumber("timestamp", timestamp).putNumber("value", value)
+            .putObject("tags", new JsonObject().putString("host", host));
+    }
+
+    private JsonObject multiple(String name, String host, long timestamp, Number value){
+        return new JsonObject().putString("name", name)
+            .putArray("datapoints", new JsonArray().addArray(new JsonArray().addNumber(timestamp).addNumber(value)))
+            .putObject("tags", new JsonObject().putString("host", host));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.ShardRouter;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the shard router
+ *
+ * @author Jonny Wray
+ */
+public class ShardRouterTest {
+
+    @Test
+    public void testShardIndependentOfTagOrder(){
+        JsonObject tags = new JsonObject().putString("host", "server1").putString("data_center", "DC1");
+        JsonObject reordered = new JsonObject().putString("data_center", "DC1").putString("host", "server1");
+        for(int shards=1;shards<=16;shards++){
+            assertEquals("Tag order changed the shard", ShardRouter.shard("m", tags, shards), ShardRouter.shard("m", reordered, shards));
+        }
+    }
+
+    @Test
+    public void testSeriesSpreadAcrossShards(){
+        int shards = 4;
+        int[] counts = new int[shards];
+        for(int i=0;i<4000;i++){
+            counts[ShardRouter.shard("metric." + (i % 40), new JsonObject().putString("host", "server" + i / 40), shards)]++;
+        }
+        for(int count : counts){
+            assertTrue("Series are not spread evenly: " + count, count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testShardForDataPoints(){
+        ShardRouter router = new ShardRouter("persistor", "node1", 3);
+        JsonObject tags = new JsonObject().putString("host", "server1");
+        JsonObject dataPoints = new JsonObject().putString("name", "m").putObject("tags", tags);
+        assertEquals("Data points shard is not the series shard", ShardRouter.shard("m", tags, 3), router.shardFor(dataPoints));
+        assertEquals("Data points without tags were given a shard", -1, router.shardFor(new JsonObject().putString("name", "m")));
+        assertEquals("Missing data points were given a shard", -1, router.shardFor(null));
+        assertEquals("Shard address is not correct", "persistor.shard.node1.2", router.shardAddress(2));
+    }
+
+    @Test
+    public void testNodeChosenOnce(){
+        ConcurrentMap<String, String> claims = new ConcurrentHashMap<>();
+        assertEquals("First instance did not choose the node", "a", ShardRouter.node(claims, "a"));
+        assertEquals("Later instance did not use the chosen node", "a", ShardRouter.node(claims, "b"));
+    }
+
+    @Test
+    public void testClaimAndRelease(){
+        ShardRouter router = new ShardRouter("persistor", "node1", 2);
+        ConcurrentMap<String, String> claims = new ConcurrentHashMap<>();
+        assertEquals("First claim is not shard 0", 0, router.claim(claims, "a"));
+        assertEquals("Second claim is not shard 1", 1, router.claim(claims, "b"));
+        assertEquals("Claim beyond the shard count succeeded", -1, router.claim(claims, "c"));
+        router.release(claims, "c", 0);
+        assertEquals("Release by another owner removed the claim", -1, router.claim(claims, "c"));
+        router.release(claims, "a", 0);
+        assertEquals("Released shard was not claimed again", 0, router.claim(claims, "c"));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.TelnetFormatter;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the telnet formatter
+ *
+ * @author Jonny Wray
+ */
+public class TelnetFormatterTest {
+
+    @Test
+    public void testSingleDataPoint(){
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putNumber("timestamp", 1386622880074L);
+        dataPoints.putNumber("value", 42);
+        dataPoints.putObject("tags", exampleTags());
+        Buffer lines = new TelnetFormatter().format(dataPoints);
+        assertEquals("Line is not correct", "put integration.tests 1386622880074 42 test_type=integration\n", lines.toString());
+    }
+
+    @Test
+    public void testMultipleDataPoint(){
+        JsonArray points = new JsonArray();
+        points.addArray(new JsonArray().addNumber(1386622973642L).addNumber(42));
+        points.addArray(new JsonArray().addNumber(1386622973742L).addNumber(52.5));
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putArray("datapoints", points);
+        dataPoints.putObject("tags", exampleTags());
+        Buffer lines = new TelnetFormatter("putm").format(dataPoints);
+        assertEquals("Lines are not correct", "putm integration.tests 1386622973642 42 test_type=integration\n" +
+                "putm integration.tests 1386622973742 52.5 test_type=integration\n", lines.toString());
+    }
+
+    @Test
+    public void testWhiteSpaceRejected(){
+        JsonObject dataPoints = new JsonObject();
+        dataPoints.putString("name", "integration.tests");
+        dataPoints.putNumber("timestamp", 1386622880074L);
+        dataPoints.putNumber("value", 42);
+        dataPoints.putObject("tags", new JsonObject().putString("location", "New York"));
+        assertNull("White space in tag value was accepted", new TelnetFormatter().format(dataPoints));
+    }
+
+    private JsonObject exampleTags(){
+
+        JsonObject tags = new JsonObject();
+        tags.putString("test_type", "integration");
+        return tags;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.ValueSketch;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the value sketch
+ *
+ * @author Jonny Wray
+ */
+public class ValueSketchTest {
+
+    @Test
+    public void testEmpty(){
+        assertEquals("Empty sketch percentile is not zero", 0, new ValueSketch(0.01).percentile(50), 0);
+    }
+
+    @Test
+    public void testRelativeAccuracy(){
+        ValueSketch sketch = new ValueSketch(0.01);
+        for(int i=1;i<=10000;i++){
+            sketch.record(i * 0.001);
+        }
+        assertEquals("Median is not within the accuracy", 5, sketch.percentile(50), 5 * 0.01);
+        assertEquals("99th percentile is not within the accuracy", 9.9, sketch.percentile(99), 9.9 * 0.01);
+        assertEquals("Maximum is not exact", 10, sketch.percentile(100), 0);
+        assertEquals("Minimum is not exact", 0.001, sketch.getMin(), 0);
+    }
+
+    @Test
+    public void testSignedValues(){
+        ValueSketch sketch = new ValueSketch(0.01);
+        for(int i=-100;i<=100;i++){
+            sketch.record(i);
+        }
+        assertEquals("Negative percentile is not correct", -80, sketch.percentile(10), 80 * 0.01);
+        assertEquals("Zero is not counted", 0, sketch.percentile(50), 0);
+        assertEquals("Positive percentile is not correct", 80, sketch.percentile(90), 80 * 0.01);
+        assertEquals("Minimum is not exact", -100, sketch.percentile(0.1), 0);
+    }
+
+    @Test
+    public void testMerge(){
+        ValueSketch first = new ValueSketch(0.01);
+        ValueSketch second = new ValueSketch(0.01);
+        for(int i=1;i<=50;i++){
+            first.record(i);
+            second.record(-i);
+        }
+        first.merge(second);
+        assertEquals("Count was not merged", 100, first.getCount());
+        assertEquals("Minimum was not merged", -50, first.getMin(), 0);
+        assertEquals("Merged percentile is not correct", -25, first.percentile(26), 25 * 0.01);
+        assertEquals("Merged percentile is not correct", 25, first.percentile(75), 25 * 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracyRejected(){
+        new ValueSketch(0.01).merge(new ValueSketch(0.02));
+    }
+
+    @Test
+    public void testWideRangeBounded(){
+        ValueSketch sketch = new ValueSketch(0.001);
+        for(int exponent=-8;exponent<=15;exponent++){
+            sketch.record(Math.pow(10, exponent));
+        }
+        assertEquals("Largest value is not kept", 1e15, sketch.percentile(100), 0);
+        assertEquals("High percentile is not within the accuracy", 1e14, sketch.percentile(95), 1e14 * 0.001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonFiniteRejected(){
+        new ValueSketch(0.01).record(Double.NaN);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Jonny Wray
+ *
+ *  Jonny Wray licenses this file to you under the Apache License, version 2.0
+ *  (the "License"); you may not use this file except in compliance with the
+ *  License.  You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ *
+ *  @author <a href="http://www.jonnywray.com">Jonny Wray</a>
+ */
+
+package com.jonnywray.vertx.kairosdb.unit;
+
+import com.jonnywray.vertx.kairosdb.WriteAheadSpool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the write ahead spool
+ *
+ * @author Jonny Wray
+ */
+public class WriteAheadSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testJoinArraysSkipsEmptyRecords(){
+        assertEquals("Arrays were not joined", "[{\"a\":1},{\"b\":2},{\"c\":3}]", WriteAheadSpool.joinArrays(Arrays.asList(
+                "[]".getBytes(), "[{\"a\":1},{\"b\":2}]".getBytes(), "[ ]".getBytes(), "{\"c\":3}".getBytes())).toString());
+        assertNull("Empty records were joined", WriteAheadSpool.joinArrays(Arrays.asList("[]".getBytes(), "[]".getBytes())));
+    }
+
+    @Test
+    public void testAppendPeekAcknowledge() throws Exception {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.getRoot(), 1024, 10240);
+        spool.open();
+        assertTrue("Record was not appended", spool.append("first".getBytes("UTF-8")));
+        assertTrue("Record was not appended", spool.append("second".getBytes("UTF-8")));
+        List<byte[]> records = spool.peek(1024);
+        assertEquals("Peeked record count is not correct", 2, records.size());
+        assertEquals("Records are not in order", "first", new String(records.get(0), "UTF-8"));
+        assertEquals("Peek removed records", 2, spool.getRecords());
+        spool.acknowledge(1);
+        assertEquals("Acknowledge did not remove the record", "second", new String(spool.peek(1024).get(0), "UTF-8"));
+        spool.acknowledge(1);
+        assertTrue("Spool is not empty", spool.isEmpty());
+        assertEquals("Exhausted segment was not deleted", 0, folder.getRoot().listFiles().length);
+        spool.close();
+    }
+
+    @Test
+    public void testPeekLimitedBySize() throws Exception {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.getRoot(), 1024, 10240);
+        spool.open();
+        spool.append(new byte[100]);
+        spool.append(new byte[100]);
+        assertEquals("Peek did not respect the size limit", 1, spool.peek(150).size());
+        assertEquals("Peek did not return at least one record", 1, spool.peek(10).size());
+        spool.close();
+    }
+
+    @Test
+    public void testRolloverAndSizeCap() throws Exception {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.getRoot(), 256, 512);
+        spool.open();
+        assertTrue("Record was not appended", spool.append(new byte[200]));
+        assertTrue("Record was not appended to a new segment", spool.append(new byte[200]));
+        assertEquals("Segment did not roll over", 2, spool.getSegments());
+        assertFalse("Record beyond the size cap was appended", spool.append(new byte[200]));
+        assertFalse("Record larger than a segment was appended", spool.append(new byte[300]));
+        spool.acknowledge(1);
+        assertEquals("Read segment was not deleted", 1, spool.getSegments());
+        assertTrue("Record was not appended after space was freed", spool.append(new byte[200]));
+        spool.close();
+    }
+
+    @Test
+    public void testRecoveryOnReopen() throws Exception {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.getRoot(), 256, 4096);
+        spool.open();
+        for(int i=0;i<5;i++){
+            spool.append(("record " + i).getBytes("UTF-8"));
+        }
+        spool.acknowledge(2);
+        spool.close();
+
+        WriteAheadSpool reopened = new WriteAheadSpool(folder.getRoot(), 256, 4096);
+        reopened.open();
+        assertEquals("Recovered record count is not correct", 3, reopened.getRecords());
+        assertEquals("Acknowledged records were recovered", "record 2", new String(reopened.peek(4096).get(0), "UTF-8"));
+        reopened.append("record 5".getBytes("UTF-8"));
+        assertEquals("Appending after recovery failed", 4, reopened.peek(4096).size());
+        reopened.close();
+    }
+
+    @Test
+    public void testTornRecordDiscarded() throws Exception {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.getRoot(), 1024, 4096);
+        spool.open();
+        spool.append("intact".getBytes("UTF-8"));
+        spool.append("damaged".getBytes("UTF-8"));
+        spool.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")){
+            file.seek(16 + 8 + 6 + 8);
+            file.write('X');
+        }
+
+        WriteAheadSpool reopened = new WriteAheadSpool(folder.getRoot(), 1024, 4096);
+        reopened.open();
+        assertEquals("Torn record was not discarded", 1, reopened.getRecords());
+        assertEquals("Intact record was not recovered", "intact", new String(reopened.peek(1024).get(0), "UTF-8"));
+        reopened.close();
+    }
+}